@@ -0,0 +1,55 @@
+package controller.engine;
+
+import model.Loop;
+import model.LoopFixtures;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Event build and sort done when playback starts or an edit is published
+ * (LoopSequencer compiles the loop into a LoopTimeline).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LoopTimelineBenchmark {
+
+    @Param({"10", "1000", "100000", "1000000"})
+    public int notes;
+
+    private Loop loop;
+    private LoopTimeline timeline;
+    private long seekTick;
+
+    @Setup
+    public void setUp() {
+        loop = LoopFixtures.randomLoop(notes);
+        timeline = LoopTimeline.compile(loop, 4);
+    }
+
+    @Benchmark
+    public LoopTimeline compile() {
+        return LoopTimeline.compile(loop, 4);
+    }
+
+    /** Looking up where to resume after a mid-loop edit. */
+    @Benchmark
+    public int seek() {
+        seekTick = (seekTick + 7919) % timeline.getLoopLengthTicks();
+        return timeline.indexAtOrAfter(seekTick);
+    }
+}
@@ -0,0 +1,36 @@
+package model;
+
+import java.util.SplittableRandom;
+
+/**
+ * Builds reproducible loops of a given size for the benchmarks.
+ */
+public final class LoopFixtures {
+
+    /** Keeps the density at about one note per beat, without letting the grid grow without bound. */
+    private static final int NOTES_PER_MEASURE = 4;
+    private static final int MAX_MEASURES = 1024;
+
+    private LoopFixtures() {
+    }
+
+    /**
+     * @return a loop with the given number of notes on the 12 piano-roll rows, snapped
+     *         to half beats like notes added in the UI, always the same for the same size
+     */
+    public static Loop randomLoop(int noteCount) {
+        int measures = Math.max(1, Math.min(MAX_MEASURES, noteCount / NOTES_PER_MEASURE));
+        Loop loop = new Loop(new Measures(measures));
+        int halfBeats = measures * 4 * 2;
+
+        SplittableRandom random = new SplittableRandom(noteCount);
+        for (int i = 0; i < noteCount; i++) {
+            loop.addNote(new LoopNote(
+                    Pitch.of(random.nextInt(12)),
+                    new BeatPosition(random.nextInt(halfBeats) / 2.0),
+                    new BeatDuration(0.5 * (1 + random.nextInt(4))),
+                    Velocity.of(40 + random.nextInt(88))));
+        }
+        return loop;
+    }
+}
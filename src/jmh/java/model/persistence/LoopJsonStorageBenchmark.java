@@ -0,0 +1,97 @@
+package model.persistence;
+
+import model.Loop;
+import model.LoopFixtures;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * JSON serialization: streaming the document to a channel that discards it, and the
+ * full save to disk.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LoopJsonStorageBenchmark {
+
+    @Param({"10", "1000", "100000", "1000000"})
+    public int notes;
+
+    private Loop loop;
+    private Path directory;
+    private LoopJsonStorage storage;
+    private final LoopJsonWriter writer = new LoopJsonWriter();
+
+    /** Counts and drops what is written, so only serialization is measured. */
+    private static final class CountingChannel implements WritableByteChannel {
+        long written;
+
+        @Override
+        public int write(ByteBuffer src) {
+            int n = src.remaining();
+            src.position(src.limit());
+            written += n;
+            return n;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        loop = LoopFixtures.randomLoop(notes);
+        directory = Files.createTempDirectory("loop-bench");
+        storage = new LoopJsonStorage(directory);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+
+    @Benchmark
+    public long writeJson() throws IOException {
+        CountingChannel channel = new CountingChannel();
+        writer.write(loop, channel);
+        return channel.written;
+    }
+
+    @Benchmark
+    public void saveLoop() throws IOException {
+        storage.saveLoop(loop, "bench.json");
+    }
+}
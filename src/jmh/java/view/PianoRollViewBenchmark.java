@@ -0,0 +1,89 @@
+package view;
+
+import model.Loop;
+import model.LoopFixtures;
+import model.LoopNote;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Piano-roll hit-testing and painting, rendered headless into a BufferedImage
+ * the size of the view in the main window.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PianoRollViewBenchmark {
+
+    private static final int WIDTH = 800;
+    private static final int HEIGHT = 300;
+
+    @Param({"10", "1000", "100000", "1000000"})
+    public int notes;
+
+    private PianoRollView view;
+    private BufferedImage image;
+    private Graphics2D graphics;
+    private Blackhole blackhole;
+    private final SplittableRandom random = new SplittableRandom(42);
+
+    @Setup(Level.Trial)
+    public void setUp(Blackhole blackhole) {
+        this.blackhole = blackhole;
+        Loop loop = LoopFixtures.randomLoop(notes);
+
+        view = new PianoRollView();
+        view.setSize(WIDTH, HEIGHT);
+        view.setLoop(loop);
+        view.setPianoRollListener(new PianoRollListener() {
+            @Override
+            public void onEmptyCellClicked(double beat, int pitchIndex) {
+                PianoRollViewBenchmark.this.blackhole.consume(beat);
+            }
+
+            @Override
+            public void onNoteClicked(LoopNote note) {
+                PianoRollViewBenchmark.this.blackhole.consume(note);
+            }
+        });
+
+        image = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_ARGB);
+        graphics = image.createGraphics();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        graphics.dispose();
+    }
+
+    @Benchmark
+    public void handleClick() {
+        view.handleClick(random.nextInt(WIDTH), random.nextInt(HEIGHT));
+    }
+
+    @Benchmark
+    public BufferedImage paintComponent() {
+        view.paintComponent(graphics);
+        return image;
+    }
+}
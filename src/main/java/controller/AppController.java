@@ -2,23 +2,40 @@ package controller;
 
 import controller.engine.AudioEngine;
 import controller.engine.LoopSequencer;
+import controller.engine.SchedulingMode;
 import model.*;
+import model.persistence.AsyncLoopSaver;
 import model.persistence.LoopStorage;
+import view.HistoryListener;
 import view.MainView;
 import view.PianoRollListener;
 import view.TransportListener;
 import view.TempoListener;
 import view.SaveLoopListener;
 
-import java.io.IOException;
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
 
-public class AppController implements PianoRollListener, TransportListener, TempoListener, SaveLoopListener {
+public class AppController implements PianoRollListener, TransportListener, TempoListener, SaveLoopListener,
+        HistoryListener {
 
     private final AudioEngine audioEngine;
     private final LoopSequencer loopSequencer;
     private final MainView mainView;
     private final Loop currentLoop;
     private final LoopStorage loopStorage;
+    private final AsyncLoopSaver loopSaver;
+    private final LoopHistory history;
+    /** Revision of the loop the last finished save wrote, -1 if none; used on the EDT. */
+    private long savedRevision = -1;
+    private String savedFileName;
+
+    /** How often the timing summary in the status bar is refreshed while playing. */
+    private static final int TIMING_REFRESH_MS = 500;
+    private final Timer timingTimer;
+
+    /** Heap budget for undo steps; the oldest are dropped beyond it. */
+    private static final long HISTORY_BYTES = 64L * 1024 * 1024;
 
     public AppController(MainView mainView,
                          AudioEngine audioEngine,
@@ -28,15 +45,37 @@ public class AppController implements PianoRollListener, TransportListener, Temp
         this.audioEngine = audioEngine;
         this.currentLoop = loop;
         this.loopStorage = loopStorage;
+        this.loopSaver = new AsyncLoopSaver(loopStorage);
+        this.history = new LoopHistory(loop, HISTORY_BYTES);
 
         // 4 beats per measure for now
         this.loopSequencer = new LoopSequencer(audioEngine, 4);
+        // -Dloopsketch.scheduling=LOOKAHEAD hands events to the synth with timestamps
+        this.loopSequencer.setSchedulingMode(
+                parseSchedulingMode(System.getProperty("loopsketch.scheduling", "DIRECT")));
 
         // Wire listeners
         this.mainView.setPianoRollListener(this);
         this.mainView.setTransportListener(this);
         this.mainView.setTempoListener(this);
         this.mainView.setSaveLoopListener(this);
+        this.mainView.setHistoryListener(this);
+
+        // Runs on the EDT; the sequencer's counters are safe to read from any thread
+        this.timingTimer = new Timer(TIMING_REFRESH_MS, e -> refreshTimingSummary());
+    }
+
+    /** Case-insensitive; an unknown mode falls back to DIRECT rather than stopping the app. */
+    private static SchedulingMode parseSchedulingMode(String mode) {
+        switch (mode.trim().toUpperCase()) {
+            case "DIRECT":
+                return SchedulingMode.DIRECT;
+            case "LOOKAHEAD":
+                return SchedulingMode.LOOKAHEAD;
+            default:
+                System.err.println("AppController: unknown scheduling mode '" + mode + "', using DIRECT.");
+                return SchedulingMode.DIRECT;
+        }
     }
 
     public void startApplication() {
@@ -45,6 +84,7 @@ public class AppController implements PianoRollListener, TransportListener, Temp
         if (success) {
             mainView.showMainScreen(currentLoop);
             mainView.setStatusMessage("System ready. Add notes, set tempo, then Play or Save.");
+            timingTimer.start();
         } else {
             mainView.showAudioError();
         }
@@ -54,11 +94,6 @@ public class AppController implements PianoRollListener, TransportListener, Temp
 
     @Override
     public void onEmptyCellClicked(double beat, int pitchIndex) {
-        if (loopSequencer.isPlaying()) {
-            mainView.setStatusMessage("Stop playback before saving the loop.");
-            return;
-        }
-
         // Map UI grid to domain concepts
         Pitch pitch = new Pitch(pitchIndex);                 // still a simple mapping
         BeatPosition startBeat = new BeatPosition(beat);
@@ -67,6 +102,7 @@ public class AppController implements PianoRollListener, TransportListener, Temp
 
         LoopNote note = new LoopNote(pitch, startBeat, durationBeats, velocity);
         currentLoop.addNote(note);
+        loopSequencer.publish(currentLoop);   // live edit: heard on this pass if still ahead
 
         mainView.refreshPianoRoll();
     }
@@ -74,11 +110,8 @@ public class AppController implements PianoRollListener, TransportListener, Temp
 
     @Override
     public void onNoteClicked(LoopNote note) {
-        if (loopSequencer.isPlaying()) {
-            mainView.setStatusMessage("Stop playback before saving the loop.");
-            return;
-        }
         currentLoop.removeNote(note);
+        loopSequencer.publish(currentLoop);
         mainView.refreshPianoRoll();
     }
 
@@ -97,15 +130,19 @@ public class AppController implements PianoRollListener, TransportListener, Temp
         mainView.setStatusMessage("Playback paused.");
     }
 
+    private void refreshTimingSummary() {
+        if (!loopSequencer.isPlaying()) {
+            return; // keep the last session's numbers on screen
+        }
+        mainView.setTimingSummary("Timing: " + loopSequencer.getEventLateness().summarize()
+                + " | boundary overruns " + loopSequencer.getBoundaryOverrunCount()
+                + "/" + loopSequencer.getLoopBoundaryCount());
+    }
+
     // --- TempoListener (UC5: change tempo) ---
 
     @Override
     public void onTempoChangeRequested(String bpmText) {
-        if (loopSequencer.isPlaying()) {
-            mainView.setStatusMessage("Stop playback before changing tempo.");
-            return;
-        }
-
         double bpm;
         try {
             bpm = Double.parseDouble(bpmText.trim());
@@ -116,6 +153,7 @@ public class AppController implements PianoRollListener, TransportListener, Temp
 
         Tempo newTempo = new Tempo(bpm);
         currentLoop.setTempo(newTempo);
+        loopSequencer.publish(currentLoop);   // applied right away while playing
 
         double effectiveBpm = newTempo.getBpm();
         mainView.setTempoDisplay(effectiveBpm);
@@ -123,24 +161,105 @@ public class AppController implements PianoRollListener, TransportListener, Temp
                 String.format("%.1f", effectiveBpm) + " BPM.");
     }
 
+    @Override
+    public void onTempoRampRequested(String bpmText, String beatsText) {
+        double bpm;
+        double beats;
+        try {
+            bpm = Double.parseDouble(bpmText.trim());
+            beats = Double.parseDouble(beatsText.trim());
+        } catch (NumberFormatException e) {
+            mainView.setStatusMessage("Invalid tempo ramp. Please enter numbers.");
+            return;
+        }
+        if (!(beats >= 0.0) || Double.isInfinite(beats)) {
+            mainView.setStatusMessage("Invalid tempo ramp. Beats must be zero or more.");
+            return;
+        }
+
+        Tempo newTempo = new Tempo(bpm);
+        // Start the ramp before publishing, so publish() sees the target and does not jump
+        loopSequencer.rampTempo(newTempo.getBpm(), beats);
+        currentLoop.setTempo(newTempo);
+        loopSequencer.publish(currentLoop);
+
+        double effectiveBpm = newTempo.getBpm();
+        mainView.setTempoDisplay(effectiveBpm);
+        if (loopSequencer.isPlaying()) {
+            mainView.setStatusMessage("Ramping tempo to " + String.format("%.1f", effectiveBpm)
+                    + " BPM over " + String.format("%.1f", beats) + " beats.");
+        } else {
+            mainView.setStatusMessage("Tempo set to " +
+                    String.format("%.1f", effectiveBpm) + " BPM.");
+        }
+    }
+
+
+    // --- HistoryListener (undo/redo) ---
+
+    @Override
+    public void onUndoRequested() {
+        if (!history.undo()) {
+            mainView.setStatusMessage("Nothing to undo.");
+            return;
+        }
+        showRestoredLoop("Undone.");
+    }
+
+    @Override
+    public void onRedoRequested() {
+        if (!history.redo()) {
+            mainView.setStatusMessage("Nothing to redo.");
+            return;
+        }
+        showRestoredLoop("Redone.");
+    }
+
+    private void showRestoredLoop(String message) {
+        loopSequencer.publish(currentLoop);
+        mainView.setTempoDisplay(currentLoop.getTempo().getBpm());
+        mainView.refreshPianoRoll();
+        mainView.setStatusMessage(message + " " + history.getUndoCount() + " to undo, "
+                + history.getRedoCount() + " to redo.");
+    }
 
     // --- SaveLoopListener (UC6: save loop) ---
 
     @Override
     public void onSaveLoopRequested() {
-        if (loopSequencer.isPlaying()) {
-            mainView.setStatusMessage("Stop playback before saving the loop.");
+        // Saving an unchanged loop again would only add a duplicate file
+        long revision = currentLoop.getRevision();
+        if (revision == savedRevision) {
+            mainView.setStatusMessage("Loop unchanged since it was saved as " + savedFileName + ".");
             return;
         }
 
+        // Each press names a new file; presses made while a save is still queued join it
         String fileName = "loop-" + System.currentTimeMillis() + ".json";
 
-        try {
-            loopStorage.saveLoop(currentLoop, fileName);
-            mainView.setStatusMessage("Loop saved as " + fileName + " in /loops.");
-        } catch (IOException e) {
-            System.err.println("AppController: failed to save loop: " + e.getMessage());
-            mainView.setStatusMessage("Failed to save loop. See console for details.");
+        // Snapshots the loop here on the EDT; serializing and writing happen in the background
+        loopSaver.save(currentLoop, fileName, new AsyncLoopSaver.SaveCallback() {
+            @Override
+            public void onSaved(String savedAs) {
+                SwingUtilities.invokeLater(() -> showSaved(savedAs, revision));
+            }
+
+            @Override
+            public void onSaveFailed(String savedAs, Exception error) {
+                System.err.println("AppController: failed to save loop: " + error.getMessage());
+                SwingUtilities.invokeLater(() ->
+                        mainView.setStatusMessage("Failed to save loop. See console for details."));
+            }
+        });
+        mainView.setStatusMessage("Saving loop...");
+    }
+
+    private void showSaved(String fileName, long revision) {
+        // A merged save wrote the newest of its requests' snapshots
+        if (revision > savedRevision) {
+            savedRevision = revision;
+            savedFileName = fileName;
         }
+        mainView.setStatusMessage("Loop saved as " + fileName + ".");
     }
 }
@@ -3,39 +3,198 @@ package controller.engine;
 import model.Pitch;
 import model.Velocity;
 
+import javax.sound.midi.MidiSystem;
+import javax.sound.midi.MidiUnavailableException;
+import javax.sound.midi.Synthesizer;
+
+/**
+ * Owns the synthesizer and a pool of instruments, one per MIDI channel.
+ * <p>
+ * Notes are played on tracks. Each track has a program (sound) and a primary channel;
+ * the VoiceAllocator spreads overlapping voices over the other channels and steals the
+ * oldest voice once the polyphony cap is reached. The single-track methods play on
+ * {@link #DEFAULT_TRACK}.
+ * <p>
+ * Note methods are meant to be called from one playback thread.
+ */
 public class AudioEngine {
 
-    private Instrument instrument;
+    public static final int DEFAULT_TRACK = 0;
+    public static final int DEFAULT_PROGRAM = 0;   // Acoustic Grand Piano
+    public static final int DEFAULT_POLYPHONY = 64;
+
+    private Synthesizer synth;
+    private final Instrument[] instruments = new Instrument[VoiceAllocator.CHANNELS];
+    private final VoiceAllocator voices = new VoiceAllocator(DEFAULT_POLYPHONY);
+    private boolean initialized;
 
     public AudioEngine() {
-        // No instrument yet – created during initialize()
+        // No instruments yet – created during initialize()
     }
 
     /**
-     * Initializes the audio engine and default piano instrument.
+     * Initializes the audio engine: opens the synth, creates one instrument per
+     * channel, and puts the default track on a piano.
      *
      * @return true if initialization succeeds, false otherwise.
      */
     public boolean initialize() {
         try {
-            this.instrument = new PianoInstrument();  // may throw
-            System.out.println("AudioEngine: initialized with default piano instrument.");
+            synth = MidiSystem.getSynthesizer();
+            synth.open();
+
+            int channels = Math.min(VoiceAllocator.CHANNELS, synth.getChannels().length);
+            for (int channel = 0; channel < channels; channel++) {
+                instruments[channel] = new PianoInstrument(synth, channel);
+            }
+            initialized = true;
+            assignProgram(DEFAULT_TRACK, DEFAULT_PROGRAM);
+
+            System.out.println("AudioEngine: initialized with " + channels + " instrument channels.");
             return true;
         } catch (Exception e) {
-            System.err.println("AudioEngine: failed to initialize instrument: " + e.getMessage());
+            System.err.println("AudioEngine: failed to initialize instruments: " + e.getMessage());
             return false;
         }
     }
 
-    public void noteOn(Pitch pitch, Velocity velocity) {
-        if (instrument != null) {
-            instrument.noteOn(pitch, velocity);
+    /**
+     * Sets the program (GM sound, 0-127) a track plays with, giving the track its own
+     * channel if it does not have one yet. Call before the track starts playing.
+     *
+     * @throws IllegalStateException if every channel is already taken
+     */
+    public void assignProgram(int track, int program) {
+        if (program < 0 || program > 127) {
+            throw new IllegalArgumentException("program must be in [0, 127], got: " + program);
+        }
+        int channel = voices.assignTrack(track, program);
+        if (instruments[channel] != null) {
+            instruments[channel].setProgram(program);
         }
     }
 
+    /**
+     * Caps the number of voices sounding at once; beyond it the oldest voice is stolen.
+     */
+    public void setPolyphony(int maxVoices) {
+        voices.setPolyphony(maxVoices);
+    }
+
+    public int getPolyphony() {
+        return voices.getPolyphony();
+    }
+
+    public int getActiveVoiceCount() {
+        return voices.getActiveVoices();
+    }
+
+    public int getActiveVoiceCount(int channel) {
+        return voices.getActiveVoices(channel);
+    }
+
+    public long getStolenVoiceCount() {
+        return voices.getStolenCount();
+    }
+
+    public void noteOn(Pitch pitch, Velocity velocity) {
+        noteOn(DEFAULT_TRACK, pitch, velocity, -1);
+    }
+
     public void noteOff(Pitch pitch) {
-        if (instrument != null) {
-            instrument.noteOff(pitch);
+        noteOff(DEFAULT_TRACK, pitch, -1);
+    }
+
+    public void noteOn(Pitch pitch, Velocity velocity, long timestampMicros) {
+        noteOn(DEFAULT_TRACK, pitch, velocity, timestampMicros);
+    }
+
+    public void noteOff(Pitch pitch, long timestampMicros) {
+        noteOff(DEFAULT_TRACK, pitch, timestampMicros);
+    }
+
+    /**
+     * Plays a note on the given track. A timestamp of -1 plays it now.
+     */
+    public void noteOn(int track, Pitch pitch, Velocity velocity, long timestampMicros) {
+        if (!initialized) {
+            return;
+        }
+        if (!voices.isTrackAssigned(track)) {
+            assignProgram(track, DEFAULT_PROGRAM);
+        }
+
+        VoiceAllocator.Allocation allocation = voices.noteOn(track, pitch.getMidiNumber());
+
+        if (allocation.stolenChannel >= 0) {
+            Pitch stolen = Pitch.of(allocation.stolenNote);
+            if (EventTracer.INFO) {
+                EventTracer.get().record(EventTracer.VOICE_STOLEN,
+                        allocation.stolenNote, allocation.stolenChannel, timestampMicros);
+            }
+            send(allocation.stolenChannel, stolen, null, timestampMicros);
+        }
+
+        Instrument instrument = instruments[allocation.channel];
+        if (allocation.programChanged && instrument != null) {
+            instrument.setProgram(voices.getChannelProgram(allocation.channel));
+        }
+        send(allocation.channel, pitch, velocity, timestampMicros);
+    }
+
+    /**
+     * Releases the track's oldest sounding voice for the pitch. A timestamp of -1 releases it now.
+     */
+    public void noteOff(int track, Pitch pitch, long timestampMicros) {
+        if (!initialized || !voices.isTrackAssigned(track)) {
+            return;
+        }
+        int channel = voices.noteOff(track, pitch.getMidiNumber());
+        if (channel >= 0) {
+            send(channel, pitch, null, timestampMicros);
+        }
+    }
+
+    /**
+     * @return the synth clock in microseconds, or -1 if timestamped
+     *         scheduling is not available.
+     */
+    public long getMicrosecondPosition() {
+        Instrument instrument = instruments[0];
+        return instrument != null ? instrument.getMicrosecondPosition() : -1;
+    }
+
+    public void close() {
+        for (Instrument instrument : instruments) {
+            if (instrument != null) {
+                instrument.close();
+            }
+        }
+        voices.reset();
+        if (synth != null && synth.isOpen()) {
+            synth.close();
+        }
+        initialized = false;
+    }
+
+    /** Note-on if velocity is given, otherwise note-off. */
+    private void send(int channel, Pitch pitch, Velocity velocity, long timestampMicros) {
+        Instrument instrument = instruments[channel];
+        if (instrument == null) {
+            return;
+        }
+        if (velocity != null) {
+            if (timestampMicros < 0) {
+                instrument.noteOn(pitch, velocity);
+            } else {
+                instrument.noteOn(pitch, velocity, timestampMicros);
+            }
+        } else {
+            if (timestampMicros < 0) {
+                instrument.noteOff(pitch);
+            } else {
+                instrument.noteOff(pitch, timestampMicros);
+            }
         }
     }
 }
@@ -0,0 +1,117 @@
+package controller.engine;
+
+import model.Loop;
+import model.persistence.LoopJsonStorage;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Headless command that renders every loops/*.json file to a WAV file in parallel.
+ * Each worker thread owns its own OfflineRenderer (and therefore its own synth).
+ * <p>
+ * Usage: BatchRender [loopsDir] [outDir] [--bits 16|24] [--threads N] [--repeats N]
+ */
+public class BatchRender {
+
+    public static void main(String[] args) throws Exception {
+        Path loopsDir = Paths.get("loops");
+        Path outDir = Paths.get("renders");
+        int bits = 16;
+        int threads = Runtime.getRuntime().availableProcessors();
+        int repeats = 1;
+
+        List<String> positional = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--bits":
+                    bits = Integer.parseInt(args[++i]);
+                    break;
+                case "--threads":
+                    threads = Integer.parseInt(args[++i]);
+                    break;
+                case "--repeats":
+                    repeats = Integer.parseInt(args[++i]);
+                    break;
+                default:
+                    positional.add(args[i]);
+            }
+        }
+        if (positional.size() > 0) loopsDir = Paths.get(positional.get(0));
+        if (positional.size() > 1) outDir = Paths.get(positional.get(1));
+
+        Files.createDirectories(outDir);
+        render(loopsDir, outDir, bits, threads, repeats);
+    }
+
+    /**
+     * Renders all JSON loops in loopsDir into outDir and prints throughput.
+     *
+     * @return the number of files rendered successfully
+     */
+    public static int render(Path loopsDir, Path outDir, int bits, int threads, int repeats)
+            throws IOException, InterruptedException {
+        ConcurrentLinkedQueue<Path> queue = new ConcurrentLinkedQueue<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(loopsDir, "*.json")) {
+            for (Path file : files) {
+                queue.add(file);
+            }
+        }
+        int fileCount = queue.size();
+        System.out.println("BatchRender: rendering " + fileCount + " loops with "
+                + threads + " workers, " + bits + "-bit");
+
+        LoopJsonStorage storage = new LoopJsonStorage(loopsDir);
+        AtomicInteger rendered = new AtomicInteger();
+        long startNs = System.nanoTime();
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        List<Future<Double>> workers = new ArrayList<>();
+        final int bitsPerSample = bits;
+        for (int w = 0; w < threads; w++) {
+            workers.add(pool.submit(() -> {
+                // 4 beats per measure, same as the app
+                OfflineRenderer renderer = new OfflineRenderer(4, bitsPerSample);
+                double audioSeconds = 0.0;
+                Path file;
+                while ((file = queue.poll()) != null) {
+                    String name = file.getFileName().toString();
+                    Path wav = outDir.resolve(name.substring(0, name.length() - ".json".length()) + ".wav");
+                    try {
+                        Loop loop = storage.loadLoop(name);
+                        audioSeconds += renderer.render(loop, repeats, wav);
+                        rendered.incrementAndGet();
+                    } catch (Exception e) {
+                        System.err.println("BatchRender: failed to render " + file + ": " + e.getMessage());
+                    }
+                }
+                return audioSeconds;
+            }));
+        }
+        pool.shutdown();
+
+        double audioSeconds = 0.0;
+        for (Future<Double> worker : workers) {
+            try {
+                audioSeconds += worker.get();
+            } catch (Exception e) {
+                System.err.println("BatchRender: worker failed: " + e.getMessage());
+            }
+        }
+
+        double wallSeconds = (System.nanoTime() - startNs) / 1e9;
+        System.out.printf("BatchRender: %d/%d loops, %.1f s of audio in %.2f s (%.1fx realtime)%n",
+                rendered.get(), fileCount, audioSeconds, wallSeconds, audioSeconds / wallSeconds);
+        return rendered.get();
+    }
+}
@@ -0,0 +1,262 @@
+package controller.engine;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.invoke.VarHandle;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Low-overhead trace facility for the audio hot path.
+ * <p>
+ * Producers (e.g. the playback thread) write fixed-size primitive records into a
+ * preallocated ring buffer: no locks, no strings, no allocation. A background daemon
+ * thread drains the ring and does the formatting and console I/O. If the drainer falls
+ * behind, the oldest records are overwritten and counted as dropped.
+ * <p>
+ * The level is fixed at startup with -Dloopsketch.trace=OFF|ERROR|INFO|DEBUG
+ * (default OFF). Call sites guard on the static final flags, e.g.
+ * {@code if (EventTracer.DEBUG) EventTracer.get().record(...)}, so the JIT removes
+ * them completely when the level is disabled.
+ */
+public final class EventTracer {
+
+    public static final int LEVEL_OFF = 0;
+    public static final int LEVEL_ERROR = 1;
+    public static final int LEVEL_INFO = 2;
+    public static final int LEVEL_DEBUG = 3;
+
+    public static final int LEVEL = parseLevel(System.getProperty("loopsketch.trace", "OFF"));
+
+    /** Per-note events. */
+    public static final boolean DEBUG = LEVEL >= LEVEL_DEBUG;
+    /** Per-loop events (boundaries, start/stop). */
+    public static final boolean INFO = LEVEL >= LEVEL_INFO;
+    /** Problems on the hot path (late events, failed sends). */
+    public static final boolean ERROR = LEVEL >= LEVEL_ERROR;
+
+    // ---- Event types ----
+    public static final int SEQ_NOTE_ON = 1;
+    public static final int SEQ_NOTE_OFF = 2;
+    public static final int LOOP_BOUNDARY = 3;
+    public static final int INSTRUMENT_NOTE_ON = 4;
+    public static final int INSTRUMENT_NOTE_OFF = 5;
+    public static final int SEND_FAILED = 6;
+    public static final int VOICE_STOLEN = 7;
+
+    private static final int DEFAULT_CAPACITY = 1 << 14;
+    private static final long DRAIN_INTERVAL_MS = 50;
+
+    private static final EventTracer INSTANCE = new EventTracer(DEFAULT_CAPACITY, LEVEL > LEVEL_OFF);
+
+    private final int mask;
+    private final long[] timesNs;
+    private final int[] types;
+    private final int[] args1;
+    private final int[] args2;
+    private final long[] args3;
+    /** published[slot] holds the sequence number last fully written to that slot. */
+    private final AtomicLongArray published;
+
+    private final AtomicLong head = new AtomicLong();
+    private long drained;
+    private final AtomicLong dropped = new AtomicLong();
+
+    private volatile PrintStream out = System.out;
+
+    EventTracer(int capacity, boolean startDrainer) {
+        if (Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("capacity must be a power of two, got: " + capacity);
+        }
+        this.mask = capacity - 1;
+        this.timesNs = new long[capacity];
+        this.types = new int[capacity];
+        this.args1 = new int[capacity];
+        this.args2 = new int[capacity];
+        this.args3 = new long[capacity];
+        this.published = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            published.set(i, -1);
+        }
+
+        if (startDrainer) {
+            Thread drainer = new Thread(this::runDrainer, "EventTracer-Drain");
+            drainer.setDaemon(true);
+            drainer.setPriority(Thread.MIN_PRIORITY);
+            drainer.start();
+        }
+    }
+
+    public static EventTracer get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Records one event. Safe to call from any thread; never blocks or allocates.
+     *
+     * @param type one of the event type constants
+     * @param arg1 e.g. MIDI note number
+     * @param arg2 e.g. velocity
+     * @param arg3 e.g. tick or timestamp
+     */
+    public void record(int type, int arg1, int arg2, long arg3) {
+        long seq = head.getAndIncrement();
+        int slot = (int) (seq & mask);
+        // Invalidate the slot first so a concurrent reader cannot mistake a half-written record for the old one
+        published.set(slot, -1);
+        VarHandle.storeStoreFence();
+        timesNs[slot] = System.nanoTime();
+        types[slot] = type;
+        args1[slot] = arg1;
+        args2[slot] = arg2;
+        args3[slot] = arg3;
+        published.lazySet(slot, seq);
+    }
+
+    /** Number of records overwritten before the drainer could print them. */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /** Redirects drained output (defaults to System.out). */
+    public void setOutput(PrintStream out) {
+        this.out = out;
+    }
+
+    /**
+     * Writes the most recent events still in the ring to a text file,
+     * oldest first. Intended for post-mortems when something goes wrong.
+     *
+     * @param lastN maximum number of events to write
+     */
+    public void dump(Path file, int lastN) throws IOException {
+        long end = head.get();
+        long start = Math.max(0, Math.max(end - lastN, end - (mask + 1)));
+        StringBuilder line = new StringBuilder(96);
+        try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            for (long seq = start; seq < end; seq++) {
+                if (format(seq, line)) {
+                    writer.write(line.toString());
+                    writer.newLine();
+                }
+            }
+        }
+    }
+
+    /**
+     * Dumps the last events to trace-&lt;millis&gt;.log in the working directory,
+     * reporting (not throwing) failures. Called from error paths.
+     */
+    public void dumpOnError(String reason) {
+        Path file = Path.of("trace-" + System.currentTimeMillis() + ".log");
+        try {
+            dump(file, mask + 1);
+            System.err.println("EventTracer: " + reason + ", trace dumped to " + file.toAbsolutePath());
+        } catch (IOException e) {
+            System.err.println("EventTracer: " + reason + ", failed to dump trace: " + e.getMessage());
+        }
+    }
+
+    // ---- Draining ----
+
+    private void runDrainer() {
+        StringBuilder line = new StringBuilder(96);
+        while (true) {
+            try {
+                Thread.sleep(DRAIN_INTERVAL_MS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            drain(line);
+        }
+    }
+
+    private void drain(StringBuilder line) {
+        long end = head.get();
+        if (end - drained > mask + 1) {
+            long lost = end - drained - (mask + 1);
+            dropped.addAndGet(lost);
+            drained += lost;
+        }
+        PrintStream target = out;
+        while (drained < end) {
+            if (!format(drained, line)) {
+                break; // still being written; pick it up next time
+            }
+            target.println(line);
+            drained++;
+        }
+    }
+
+    /**
+     * Formats the record with the given sequence number.
+     *
+     * @return false if that record is not (or no longer) in its slot
+     */
+    private boolean format(long seq, StringBuilder line) {
+        int slot = (int) (seq & mask);
+        if (published.get(slot) != seq) {
+            return false;
+        }
+        long timeNs = timesNs[slot];
+        int type = types[slot];
+        int arg1 = args1[slot];
+        int arg2 = args2[slot];
+        long arg3 = args3[slot];
+        VarHandle.loadLoadFence();
+        if (published.get(slot) != seq) {
+            return false; // overwritten while we were reading it
+        }
+
+        line.setLength(0);
+        line.append(timeNs).append(' ');
+        switch (type) {
+            case SEQ_NOTE_ON:
+                line.append("LoopSequencer: noteOn pitch=").append(arg1)
+                        .append(" vel=").append(arg2).append(" at tick=").append(arg3);
+                break;
+            case SEQ_NOTE_OFF:
+                line.append("LoopSequencer: noteOff pitch=").append(arg1).append(" at tick=").append(arg3);
+                break;
+            case LOOP_BOUNDARY:
+                line.append("LoopSequencer: loop boundary at tick=").append(arg3);
+                break;
+            case INSTRUMENT_NOTE_ON:
+                line.append("PianoInstrument: noteOn pitch=").append(arg1)
+                        .append(" midiNote=").append(arg1 + PianoInstrument.BASE_MIDI_NOTE)
+                        .append(" vel=").append(arg2);
+                break;
+            case INSTRUMENT_NOTE_OFF:
+                line.append("PianoInstrument: noteOff pitch=").append(arg1)
+                        .append(" midiNote=").append(arg1 + PianoInstrument.BASE_MIDI_NOTE);
+                break;
+            case VOICE_STOLEN:
+                line.append("AudioEngine: stole voice pitch=").append(arg1).append(" channel=").append(arg2);
+                break;
+            case SEND_FAILED:
+                line.append("PianoInstrument: failed to send pitch=").append(arg1);
+                break;
+            default:
+                line.append("event type=").append(type).append(' ').append(arg1)
+                        .append(' ').append(arg2).append(' ').append(arg3);
+        }
+        return true;
+    }
+
+    private static int parseLevel(String level) {
+        switch (level.trim().toUpperCase()) {
+            case "DEBUG":
+                return LEVEL_DEBUG;
+            case "INFO":
+                return LEVEL_INFO;
+            case "ERROR":
+                return LEVEL_ERROR;
+            default:
+                return LEVEL_OFF;
+        }
+    }
+}
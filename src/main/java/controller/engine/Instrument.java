@@ -6,5 +6,29 @@ import model.Velocity;
 public interface Instrument {
     void noteOn(Pitch pitch, Velocity velocity);
     void noteOff(Pitch pitch);
+
+    /**
+     * Schedules a note-on at the given time on the instrument's own clock
+     * (see {@link #getMicrosecondPosition()}). A timestamp of -1 means "now".
+     */
+    void noteOn(Pitch pitch, Velocity velocity, long timestampMicros);
+
+    /**
+     * Schedules a note-off at the given time on the instrument's own clock.
+     * A timestamp of -1 means "now".
+     */
+    void noteOff(Pitch pitch, long timestampMicros);
+
+    /**
+     * @return the instrument's current clock position in microseconds,
+     *         or -1 if it does not support timestamped events.
+     */
+    long getMicrosecondPosition();
+
+    /**
+     * Selects the General MIDI program (sound) this instrument plays, 0-127.
+     */
+    void setProgram(int program);
+
     void close();
 }
@@ -0,0 +1,185 @@
+package controller.engine;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed-memory histogram of latencies in nanoseconds.
+ * <p>
+ * Buckets are log-linear: values below 32 ns each get a bucket, and every power of
+ * two above that is split into 16 equal buckets, so any recorded value is known to
+ * within about 6%. The range tops out around 18 minutes; larger values land in the
+ * last bucket, but the exact maximum is always kept.
+ * <p>
+ * Recording is lock-free and allocation-free, meant for one writer (the playback
+ * thread); any thread may read summaries at the same time. A summary taken while
+ * events are being recorded may be off by the events recorded during the read.
+ */
+public final class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;            // 16 per power of two
+    private static final int LINEAR_LIMIT = SUB_BUCKETS * 2;                // 32
+    private static final int MAX_MAGNITUDE = 40;                            // 2^40 ns ≈ 18 minutes
+    private static final int BUCKETS = LINEAR_LIMIT + (MAX_MAGNITUDE - SUB_BUCKET_BITS - 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong totalCount = new AtomicLong();
+    private final AtomicLong maxValue = new AtomicLong();
+
+    /** Percentiles of a histogram at one point in time. Values are in nanoseconds. */
+    public static final class Summary {
+        private final long count;
+        private final long p50;
+        private final long p99;
+        private final long p999;
+        private final long max;
+
+        Summary(long count, long p50, long p99, long p999, long max) {
+            this.count = count;
+            this.p50 = p50;
+            this.p99 = p99;
+            this.p999 = p999;
+            this.max = max;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getP50() {
+            return p50;
+        }
+
+        public long getP99() {
+            return p99;
+        }
+
+        public long getP999() {
+            return p999;
+        }
+
+        public long getMax() {
+            return max;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("p50 %.2f ms, p99 %.2f ms, p99.9 %.2f ms, max %.2f ms (%d events)",
+                    p50 / 1e6, p99 / 1e6, p999 / 1e6, max / 1e6, count);
+        }
+    }
+
+    /**
+     * Records one latency. Negative values (early) count as zero.
+     */
+    public void record(long valueNs) {
+        long value = Math.max(0, valueNs);
+        counts.incrementAndGet(bucketOf(value));
+        totalCount.incrementAndGet();
+
+        long max = maxValue.get();
+        while (value > max && !maxValue.compareAndSet(max, value)) {
+            max = maxValue.get();
+        }
+    }
+
+    public long getCount() {
+        return totalCount.get();
+    }
+
+    public long getMax() {
+        return maxValue.get();
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return the highest value of the bucket holding that percentile (never more than
+     *         the maximum recorded), or 0 if nothing was recorded
+     */
+    public long getValueAtPercentile(double percentile) {
+        if (!(percentile >= 0.0 && percentile <= 100.0)) {
+            throw new IllegalArgumentException("percentile must be in [0, 100], got: " + percentile);
+        }
+        long[] snapshot = snapshotCounts();
+        return valueAtPercentile(snapshot, sum(snapshot), percentile, maxValue.get());
+    }
+
+    /** Reads the counts once and computes p50, p99, p99.9 and max from them. */
+    public Summary summarize() {
+        long[] snapshot = snapshotCounts();
+        long total = sum(snapshot);
+        long max = maxValue.get();
+        return new Summary(total,
+                valueAtPercentile(snapshot, total, 50.0, max),
+                valueAtPercentile(snapshot, total, 99.0, max),
+                valueAtPercentile(snapshot, total, 99.9, max),
+                max);
+    }
+
+    /**
+     * Clears all counts. Events recorded during the reset may be partly kept.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts.set(i, 0);
+        }
+        totalCount.set(0);
+        maxValue.set(0);
+    }
+
+    // ---- Internals ----
+
+    private long[] snapshotCounts() {
+        long[] snapshot = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+        }
+        return snapshot;
+    }
+
+    private static long sum(long[] values) {
+        long total = 0;
+        for (long value : values) {
+            total += value;
+        }
+        return total;
+    }
+
+    private static long valueAtPercentile(long[] snapshot, long total, double percentile, long max) {
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * total));
+        long seen = 0;
+        for (int i = 0; i < snapshot.length; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return Math.min(highestValueOf(i), max);
+            }
+        }
+        return max;
+    }
+
+    static int bucketOf(long value) {
+        if (value < LINEAR_LIMIT) {
+            return (int) value;
+        }
+        int magnitude = 63 - Long.numberOfLeadingZeros(value);   // >= 5
+        if (magnitude >= MAX_MAGNITUDE) {
+            return BUCKETS - 1;
+        }
+        int shift = magnitude - SUB_BUCKET_BITS;                   // >= 1
+        int sub = (int) (value >>> shift) - SUB_BUCKETS;           // 0..15
+        return LINEAR_LIMIT + (shift - 1) * SUB_BUCKETS + sub;
+    }
+
+    static long highestValueOf(int bucket) {
+        if (bucket < LINEAR_LIMIT) {
+            return bucket;
+        }
+        int shift = (bucket - LINEAR_LIMIT) / SUB_BUCKETS + 1;
+        int sub = (bucket - LINEAR_LIMIT) % SUB_BUCKETS;
+        return ((long) (SUB_BUCKETS + sub + 1) << shift) - 1;
+    }
+}
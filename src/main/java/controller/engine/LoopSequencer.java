@@ -1,29 +1,74 @@
 package controller.engine;
 
 import model.Loop;
-import model.LoopNote;
 import model.Pitch;
 import model.Velocity;
 
-import java.util.ArrayList;
-import java.util.HashSet;
-import java.util.List;
-import java.util.Set;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class LoopSequencer {
 
     private final AudioEngine audioEngine;
     private final int beatsPerMeasure;
 
+    /** How often the lookahead scheduler wakes up. */
+    public static final long DEFAULT_LOOKAHEAD_INTERVAL_MS = 10;
+    /** How far ahead of "now" the lookahead scheduler hands events to the synth. */
+    public static final long DEFAULT_LOOKAHEAD_WINDOW_MS = 40;
+
     private volatile boolean playing = false;
     private Thread playbackThread;
 
+    private volatile SchedulingMode schedulingMode = SchedulingMode.DIRECT;
+    private volatile long lookaheadIntervalMs = DEFAULT_LOOKAHEAD_INTERVAL_MS;
+    private volatile long lookaheadWindowMs = DEFAULT_LOOKAHEAD_WINDOW_MS;
+
+    /** Longest the DIRECT scheduler sleeps before checking for published edits. */
+    private static final long EDIT_POLL_MS = 5;
+
+    /** A note-on overdue by more than this when an edit is picked up is dropped, not played late. */
+    private static final long LATE_NOTE_ON_NS = 20_000_000;
+
+    /** A loop boundary handled later than this counts as an overrun. */
+    public static final long BOUNDARY_OVERRUN_THRESHOLD_NS = 1_000_000;
+
+    /** How late each note-on/note-off reached the synth compared to its scheduled time. */
+    private final LatencyHistogram eventLateness = new LatencyHistogram();
+    private final AtomicLong loopBoundaries = new AtomicLong();
+    private final AtomicLong boundaryOverruns = new AtomicLong();
+
+    /**
+     * Latest compiled snapshot of the loop. Written by the UI thread (play/publish),
+     * read without locking by the playback thread, which swaps to it at the next safe point.
+     */
+    private final AtomicReference<LoopTimeline> liveTimeline = new AtomicReference<>();
+
+    /** Clock of the current playback session, null when stopped. */
+    private volatile TransportClock transportClock;
+    /** Live tempo of the current playback session, read by its clock on every step. */
+    private volatile TempoControl tempoControl;
+    private volatile long loopLengthTicks;
+
+    /** AudioEngine track this sequencer plays on; selects program and channels. */
+    private volatile int track = AudioEngine.DEFAULT_TRACK;
+
     public LoopSequencer(AudioEngine audioEngine, int beatsPerMeasure) {
         this.audioEngine = audioEngine;
         this.beatsPerMeasure = beatsPerMeasure;
     }
 
     public synchronized void play(Loop loop) {
+        play(loop, 0);
+    }
+
+    /**
+     * Starts playback part way into the loop. Notes already sounding at that beat are
+     * started right away, found through the loop's note index rather than a scan, so
+     * a seek does not drop the notes it lands in the middle of.
+     */
+    public synchronized void play(Loop loop, double startBeat) {
         if (playing) {
             System.out.println("LoopSequencer: already playing, ignoring play() request.");
             return;
@@ -33,10 +78,36 @@ public class LoopSequencer {
             return;
         }
 
+        // Compile on the caller's thread, and only if the loop changed since last time
+        LoopTimeline compiled = liveTimeline.get();
+        if (compiled == null || !compiled.isCompiledFrom(loop, beatsPerMeasure)) {
+            compiled = LoopTimeline.compile(loop, beatsPerMeasure);
+            liveTimeline.set(compiled);
+        }
+
+        long startTick = TransportClock.beatsToTicks(startBeat);
+        if (!(startBeat >= 0) || startTick >= compiled.getLoopLengthTicks()) {
+            throw new IllegalArgumentException("startBeat must lie inside the loop, got: " + startBeat);
+        }
+        final int[] chased = notesSoundingAt(loop, startBeat, startTick);
+
+        // Anchored exactly once per play(); every event time is derived from it
+        resetTimingStats();
+        tempoControl = new TempoControl(compiled.getBpm());
+        transportClock = new TransportClock(tempoControl, startTick, System.nanoTime());
+        loopLengthTicks = compiled.getLoopLengthTicks();
         playing = true;
 
-        playbackThread = new Thread(() -> runPlaybackLoop(loop), "LoopSequencer-Playback");
+        final LoopTimeline initial = compiled;
+        final TransportClock clock = transportClock;
+        playbackThread = new Thread(() -> runPlaybackLoop(initial, clock, startTick, chased),
+                "LoopSequencer-Playback");
         playbackThread.setDaemon(true);
+        playbackThread.setUncaughtExceptionHandler((thread, error) -> {
+            playing = false;
+            System.err.println("LoopSequencer: playback thread failed: " + error);
+            EventTracer.get().dumpOnError("playback thread failed");
+        });
         playbackThread.start();
     }
 
@@ -52,122 +123,523 @@ public class LoopSequencer {
         System.out.println("LoopSequencer: playback paused.");
     }
 
+    /**
+     * Publishes the loop's current state to the sequencer. Call it after every edit;
+     * it is cheap to call when stopped. During playback, note edits and tempo changes
+     * take effect right away and length changes at the next loop boundary. The loop is
+     * only read on the calling thread, never by the playback thread.
+     */
+    public synchronized void publish(Loop loop) {
+        if (loop == null) {
+            throw new IllegalArgumentException("loop cannot be null");
+        }
+        LoopTimeline current = liveTimeline.get();
+        if (current == null || !current.isCompiledFrom(loop, beatsPerMeasure)) {
+            liveTimeline.set(LoopTimeline.compile(loop, beatsPerMeasure));
+        }
+
+        // A tempo edit that did not come with its own ramp applies instantly
+        TempoControl tempo = tempoControl;
+        double bpm = loop.getTempo().getBpm();
+        if (playing && tempo != null && tempo.getTargetBpm() != bpm) {
+            tempo.setTempo(bpm);
+        }
+    }
+
+    /**
+     * Changes the tempo of the running playback from its current position, linearly
+     * over the given number of beats (0 for an instant change). Does nothing when
+     * stopped: play() starts at the loop's own tempo.
+     */
+    public void rampTempo(double bpm, double beats) {
+        TempoControl tempo = tempoControl;
+        if (playing && tempo != null) {
+            tempo.rampTo(bpm, beats);
+        }
+    }
+
+    /**
+     * @return the tempo playback is at right now (it moves during a ramp),
+     *         or -1 if stopped.
+     */
+    public double getCurrentBpm() {
+        TempoControl tempo = tempoControl;
+        return playing && tempo != null ? tempo.getCurrentBpm() : -1;
+    }
+
+    /**
+     * @return lateness of every event played since play() (or the last reset), in
+     *         nanoseconds. In DIRECT mode it is how long after its due time the event
+     *         was sent; in LOOKAHEAD mode, how far behind the synth clock it was handed
+     *         over (0 when it arrived ahead of time, as it should).
+     */
+    public LatencyHistogram getEventLateness() {
+        return eventLateness;
+    }
+
+    /** @return loop boundaries passed since play() (or the last reset). */
+    public long getLoopBoundaryCount() {
+        return loopBoundaries.get();
+    }
+
+    /**
+     * @return loop boundaries handled more than BOUNDARY_OVERRUN_THRESHOLD_NS late
+     *         since play() (or the last reset)
+     */
+    public long getBoundaryOverrunCount() {
+        return boundaryOverruns.get();
+    }
+
+    public void resetTimingStats() {
+        eventLateness.reset();
+        loopBoundaries.set(0);
+        boundaryOverruns.set(0);
+    }
+
     /** Public read-only access so controller can enforce UC5. */
     public boolean isPlaying() {
         return playing;
     }
 
-    // ---- Internal event class ----
+    /**
+     * @return the clock of the running playback session, or null if stopped.
+     *         Other components can use it to sync to the transport. In LOOKAHEAD
+     *         mode the audio trails this clock by the lookahead window.
+     */
+    public TransportClock getTransportClock() {
+        return playing ? transportClock : null;
+    }
 
-    private static class NoteEvent {
-        final double beat;
-        final boolean isNoteOn;
-        final LoopNote note;
+    /**
+     * @return the transport's current tick since play was pressed, or -1 if stopped.
+     */
+    public long getCurrentTick() {
+        TransportClock clock = getTransportClock();
+        return clock != null ? Math.max(0, clock.getCurrentTick()) : -1;
+    }
 
-        NoteEvent(double beat, boolean isNoteOn, LoopNote note) {
-            this.beat = beat;
-            this.isNoteOn = isNoteOn;
-            this.note = note;
-        }
+    /**
+     * @return the current position within the loop in ticks, or -1 if stopped.
+     */
+    public long getLoopPositionTicks() {
+        long tick = getCurrentTick();
+        long length = loopLengthTicks;
+        return tick >= 0 && length > 0 ? tick % length : -1;
     }
 
-    private void runPlaybackLoop(Loop loop) {
-        // Use Tempo value object
-        final double bpm = loop.getTempo().getBpm();
-        final double beatDurationMs = 60000.0 / bpm;
+    public int getTrack() {
+        return track;
+    }
 
-        // Use Measures value object
-        final int totalBeatsInLoop = loop.getMeasures().getValue() * beatsPerMeasure;
+    /**
+     * Plays this sequencer's loop on the given AudioEngine track, so several loops can
+     * layer different sounds (see AudioEngine.assignProgram). Takes effect on the next play().
+     */
+    public void setTrack(int track) {
+        this.track = track;
+    }
 
-        // Build event list (note-on and note-off)
-        List<NoteEvent> events = new ArrayList<>();
-        for (LoopNote note : loop.getNotes()) {
-            double startBeat = note.getStartBeat().getValue();
-            double endBeat = startBeat + note.getDurationBeats().getValue();
+    public SchedulingMode getSchedulingMode() {
+        return schedulingMode;
+    }
 
-            events.add(new NoteEvent(startBeat, true, note));   // NOTE_ON
-            events.add(new NoteEvent(endBeat, false, note));    // NOTE_OFF
+    /**
+     * Selects how events are scheduled. Takes effect the next time play() is called.
+     */
+    public void setSchedulingMode(SchedulingMode schedulingMode) {
+        if (schedulingMode == null) {
+            throw new IllegalArgumentException("schedulingMode cannot be null");
         }
+        this.schedulingMode = schedulingMode;
+    }
 
-        // Sort by beat time; if times equal, NOTE_ON before NOTE_OFF
-        events.sort((e1, e2) -> {
-            int cmp = Double.compare(e1.beat, e2.beat);
-            if (cmp != 0) return cmp;
-            if (e1.isNoteOn == e2.isNoteOn) return 0;
-            return e1.isNoteOn ? -1 : 1;
+    /**
+     * Configures the lookahead scheduler.
+     *
+     * @param intervalMs how often the scheduler wakes up
+     * @param windowMs   how far ahead events are handed to the synth; must be larger
+     *                   than the interval so no event is ever scheduled late
+     */
+    public void setLookahead(long intervalMs, long windowMs) {
+        if (intervalMs <= 0 || windowMs <= intervalMs) {
+            throw new IllegalArgumentException("lookahead window must exceed a positive interval, got interval="
+                    + intervalMs + " window=" + windowMs);
+        }
+        this.lookaheadIntervalMs = intervalMs;
+        this.lookaheadWindowMs = windowMs;
+    }
+
+    /**
+     * @return pitch << 7 | velocity of every note whose note-on comes before the start
+     *         tick and whose note-off comes after it, so its note-on would be skipped
+     */
+    private static int[] notesSoundingAt(Loop loop, double startBeat, long startTick) {
+        int[][] found = {new int[8]};
+        int[] count = {0};
+        loop.visitNotes(startBeat, startBeat, (id, pitch, noteStart, duration, velocity) -> {
+            if (TransportClock.beatsToTicks(noteStart) < startTick
+                    && TransportClock.beatsToTicks(noteStart + duration) > startTick) {
+                if (count[0] == found[0].length) {
+                    found[0] = Arrays.copyOf(found[0], count[0] * 2);
+                }
+                found[0][count[0]++] = pitch << 7 | velocity;
+            }
         });
+        return Arrays.copyOf(found[0], count[0]);
+    }
+
+    private void runPlaybackLoop(LoopTimeline timeline, TransportClock clock, long startTick, int[] chased) {
+        final double bpm = timeline.getBpm();
+
+        SchedulingMode mode = schedulingMode;
+        if (mode == SchedulingMode.LOOKAHEAD && audioEngine.getMicrosecondPosition() < 0) {
+            System.out.println("LoopSequencer: instrument has no clock, falling back to DIRECT scheduling.");
+            mode = SchedulingMode.DIRECT;
+        }
+
+        System.out.println("LoopSequencer: starting " + mode + " playback at " + bpm + " BPM");
+
+        if (mode == SchedulingMode.LOOKAHEAD) {
+            runLookahead(timeline, clock, startTick, chased);
+        } else {
+            runDirect(timeline, clock, startTick, chased);
+        }
+
+        System.out.println("LoopSequencer: playback loop thread exiting.");
+    }
+
+    private void runDirect(LoopTimeline timeline, TransportClock clock, long startTick, int[] chased) {
+        final int track = this.track;
+        // Sounding voices per MIDI number, reused across iterations
+        final int[] activePitches = new int[128];
+        for (int note : chased) {
+            audioEngine.noteOn(track, Pitch.of(note >>> 7), Velocity.of(note & 0x7F), -1);
+            activePitches[note >>> 7]++;
+        }
+
+        final int[] scratch = new int[2 * 128];
 
-        System.out.println("LoopSequencer: starting playback at " + bpm + " BPM");
+        // The newest published timeline this thread has looked at
+        LoopTimeline seen = timeline;
+        long loopStartTick = 0;
+        long positionTick = startTick;  // loop-relative tick of the last event fired
+        int firedAtTick = 0;            // events at positionTick fired so far
+        long lateBeforeTick = 0;        // note-ons before this loop-relative tick are dropped
+        long firedTick = startTick;     // absolute tick of the last event fired
+        int index = timeline.indexAtOrAfter(startTick);
 
         while (playing) {
-            long loopStartNs = System.nanoTime();
-            Set<Pitch> activePitches = new HashSet<>();
+            // Tempo requests apply from the current position; nothing is recompiled
+            clock.pollTempo(Math.max(firedTick, clock.getCurrentTick()));
+
+            LoopTimeline latest = liveTimeline.get();
+            if (latest != seen) {
+                seen = latest;
+                if (latest.hasSameLengthAs(timeline)) {
+                    // Only notes changed: switch now, after the last event fired. Overdue
+                    // note-offs are still sent; long overdue note-ons are dropped.
+                    timeline = latest;
+                    index = resumeIndex(timeline, positionTick, firedAtTick);
+                    lateBeforeTick = clock.tickAt(System.nanoTime() - LATE_NOTE_ON_NS) - loopStartTick;
+                    releaseRemoved(track, timeline, index, activePitches, scratch, -1);
+                }
+            }
 
-            for (NoteEvent event : events) {
-                if (!playing) break;
+            if (index == timeline.size()) {
+                long boundaryTick = loopStartTick + timeline.getLoopLengthTicks();
+                long boundaryNs = clock.timeOfTick(boundaryTick);
+                if (!sleepUntil(boundaryNs, seen, clock)) {
+                    continue; // woken by an edit; it may add notes before the boundary
+                }
+                recordBoundary(System.nanoTime() - boundaryNs);
+
+                // Each iteration starts at a tick computed from the anchor, never re-sampled
+                releaseActive(track, activePitches, -1);
+                loopStartTick = boundaryTick;
+                firedTick = boundaryTick;
+                clock.advanceTo(boundaryTick);
+                if (EventTracer.INFO) {
+                    EventTracer.get().record(EventTracer.LOOP_BOUNDARY, 0, 0, loopStartTick);
+                }
 
-                long eventDelayMs = Math.round(event.beat * beatDurationMs);
-                long eventTimeNs = loopStartNs + eventDelayMs * 1_000_000L;
+                // Length changes are picked up at the loop boundary
+                if (seen != timeline) {
+                    adopt(seen);
+                    timeline = seen;
+                }
+                positionTick = 0;
+                firedAtTick = 0;
+                lateBeforeTick = 0;
+                index = 0;
+                continue;
+            }
 
-                sleepUntil(eventTimeNs);
-                if (!playing) break;
+            long eventTick = timeline.offsetTicks(index);
+            if (eventTick < lateBeforeTick && timeline.isNoteOn(index)) {
+                firedAtTick = eventTick == positionTick ? firedAtTick + 1 : 1;
+                positionTick = eventTick;
+                index++;
+                continue;
+            }
+            long dueNs = clock.timeOfTick(loopStartTick + eventTick);
+            if (!sleepUntil(dueNs, seen, clock)) {
+                continue;
+            }
+            eventLateness.record(System.nanoTime() - dueNs);
+            firedTick = loopStartTick + eventTick;
+            clock.advanceTo(firedTick);
+
+            int midiNumber = timeline.pitch(index);
+            Pitch pitch = Pitch.of(midiNumber);
+
+            if (timeline.isNoteOn(index)) {
+                Velocity velocity = Velocity.of(timeline.velocity(index));
+                if (EventTracer.DEBUG) {
+                    EventTracer.get().record(EventTracer.SEQ_NOTE_ON,
+                            midiNumber, velocity.getValue(), eventTick);
+                }
 
-                Pitch pitch = event.note.getPitch();
-                Velocity velocity = event.note.getVelocity();
+                audioEngine.noteOn(track, pitch, velocity, -1);
+                activePitches[midiNumber]++;
+            } else {
+                if (EventTracer.DEBUG) {
+                    EventTracer.get().record(EventTracer.SEQ_NOTE_OFF, midiNumber, 0, eventTick);
+                }
 
-                if (event.isNoteOn) {
-                    System.out.println("LoopSequencer: noteOn pitch=" +
-                            pitch.getMidiNumber() + " vel=" + velocity.getValue() +
-                            " at beat=" + event.beat);
+                if (activePitches[midiNumber] > 0) {
+                    audioEngine.noteOff(track, pitch, -1);
+                    activePitches[midiNumber]--;
+                }
+            }
+            firedAtTick = eventTick == positionTick ? firedAtTick + 1 : 1;
+            positionTick = eventTick;
+            index++;
+        }
 
-                    audioEngine.noteOn(pitch, velocity);
-                    activePitches.add(pitch);
-                } else {
-                    System.out.println("LoopSequencer: noteOff pitch=" +
-                            pitch.getMidiNumber() + " at beat=" + event.beat);
+        // turn off any leftovers (in case we stopped early)
+        releaseActive(track, activePitches, -1);
+    }
+
+    /**
+     * Wakes every lookaheadIntervalMs and sends every event due within the next
+     * lookaheadWindowMs to the synth, stamped with its exact time on the synth clock.
+     * The thread spends nearly all of its time in Thread.sleep instead of spinning.
+     */
+    private void runLookahead(LoopTimeline timeline, TransportClock clock, long startTick, int[] chased) {
+        final long intervalMs = lookaheadIntervalMs;
+        final long windowUs = lookaheadWindowMs * 1000L;
+
+        // Map the transport anchor onto the synth clock. Start one window in the
+        // future so the first events are not already late when the synth gets them.
+        final long anchorNs = clock.getAnchorNs();
+        final long startUs = audioEngine.getMicrosecondPosition() + windowUs;
+        final long originUs = startUs - (clock.timeOfTick(startTick) - anchorNs) / 1000L;
+
+        final int track = this.track;
+        final int[] activePitches = new int[128];
+        for (int note : chased) {
+            audioEngine.noteOn(track, Pitch.of(note >>> 7), Velocity.of(note & 0x7F), startUs);
+            activePitches[note >>> 7]++;
+        }
+        final int[] scratch = new int[2 * 128];
+        LoopTimeline seen = timeline;
+        long lastScheduledUs = startUs;
+        long lastScheduledTick = startTick;
+        long loopStartTick = 0;
+        long positionTick = startTick;  // loop-relative tick of the last event handed over
+        int firedAtTick = 0;            // events at positionTick handed over so far
+        int index = timeline.indexAtOrAfter(startTick);
+
+        while (playing) {
+            // Events already handed to the synth keep their times, so a tempo
+            // change starts after the last one
+            clock.pollTempo(Math.max(lastScheduledTick, clock.getCurrentTick()));
+
+            LoopTimeline latest = liveTimeline.get();
+            if (latest != seen) {
+                seen = latest;
+                if (latest.hasSameLengthAs(timeline)) {
+                    // Events already handed to the synth stay; continue after them
+                    timeline = latest;
+                    index = resumeIndex(timeline, positionTick, firedAtTick);
+                    releaseRemoved(track, timeline, index, activePitches, scratch,
+                            Math.max(lastScheduledUs, audioEngine.getMicrosecondPosition()));
+                }
+            }
 
-                    audioEngine.noteOff(pitch);
-                    activePitches.remove(pitch);
+            long nowUs = audioEngine.getMicrosecondPosition();
+            long horizonUs = nowUs + windowUs;
+
+            while (playing) {
+                if (index == timeline.size()) {
+                    // Every sounding note gets its note-off at the loop boundary
+                    long boundaryTick = loopStartTick + timeline.getLoopLengthTicks();
+                    long boundaryUs = originUs + (clock.timeOfTick(boundaryTick) - anchorNs) / 1000L;
+                    if (boundaryUs > horizonUs) break;
+                    recordBoundary((nowUs - boundaryUs) * 1000L);
+                    releaseActive(track, activePitches, boundaryUs);
+                    loopStartTick = boundaryTick;
+                    lastScheduledTick = boundaryTick;
+                    clock.advanceTo(boundaryTick);
+                    if (EventTracer.INFO) {
+                        EventTracer.get().record(EventTracer.LOOP_BOUNDARY, 0, 0, loopStartTick);
+                    }
+                    if (seen != timeline) {
+                        adopt(seen);
+                        timeline = seen;
+                    }
+                    positionTick = 0;
+                    firedAtTick = 0;
+                    index = 0;
+                    continue;
                 }
+
+                long eventTick = timeline.offsetTicks(index);
+                long eventUs = originUs + (clock.timeOfTick(loopStartTick + eventTick) - anchorNs) / 1000L;
+                if (eventUs > horizonUs) break;
+                eventLateness.record((nowUs - eventUs) * 1000L);
+
+                int midiNumber = timeline.pitch(index);
+                if (timeline.isNoteOn(index)) {
+                    if (EventTracer.DEBUG) {
+                        EventTracer.get().record(EventTracer.SEQ_NOTE_ON, midiNumber, timeline.velocity(index),
+                                loopStartTick + eventTick);
+                    }
+                    audioEngine.noteOn(track, Pitch.of(midiNumber), Velocity.of(timeline.velocity(index)), eventUs);
+                    activePitches[midiNumber]++;
+                } else {
+                    if (EventTracer.DEBUG) {
+                        EventTracer.get().record(EventTracer.SEQ_NOTE_OFF, midiNumber, 0, loopStartTick + eventTick);
+                    }
+                    if (activePitches[midiNumber] > 0) {
+                        audioEngine.noteOff(track, Pitch.of(midiNumber), eventUs);
+                        activePitches[midiNumber]--;
+                    }
+                }
+                lastScheduledUs = eventUs;
+                lastScheduledTick = loopStartTick + eventTick;
+                clock.advanceTo(lastScheduledTick);
+                firedAtTick = eventTick == positionTick ? firedAtTick + 1 : 1;
+                positionTick = eventTick;
+                index++;
             }
 
-            // turn off any leftovers (in case we stopped early)
-            for (Pitch pitch : activePitches) {
-                audioEngine.noteOff(pitch);
+            try {
+                Thread.sleep(intervalMs);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
             }
-            activePitches.clear();
+        }
 
-            if (!playing) break;
+        // Note-ons may already be queued inside the synth, so release everything
+        // no earlier than the last event we handed over.
+        releaseActive(track, activePitches, Math.max(lastScheduledUs, audioEngine.getMicrosecondPosition()));
+    }
 
-            long loopDurationMs = Math.round(totalBeatsInLoop * beatDurationMs);
-            long loopEndTimeNs = loopStartNs + loopDurationMs * 1_000_000L;
-            sleepUntil(loopEndTimeNs);
-            // then loop again from the top
+    /**
+     * @return the index of the first event of the timeline after the position: past the
+     *         given number of events at the tick, so a switch mid-chord plays the rest of it
+     */
+    private static int resumeIndex(LoopTimeline timeline, long tick, int firedAtTick) {
+        int index = timeline.indexAtOrAfter(tick);
+        for (int skipped = 0; skipped < firedAtTick && index < timeline.size()
+                && timeline.offsetTicks(index) == tick; skipped++) {
+            index++;
         }
+        return index;
+    }
 
-        System.out.println("LoopSequencer: playback loop thread exiting.");
+    /**
+     * Releases now the sounding voices whose notes an edit removed. Going on from the
+     * index, a note-off with no note-on of its pitch before it ends a voice already
+     * sounding; voices of a pitch beyond the ones ended that way have no note-off left.
+     *
+     * @param scratch 256 ints: per pitch, note-ons seen, then voices accounted for
+     */
+    private void releaseRemoved(int track, LoopTimeline timeline, int index, int[] activePitches,
+                                int[] scratch, long timestampMicros) {
+        Arrays.fill(scratch, 0);
+        int unaccounted = 0;
+        for (int active : activePitches) {
+            unaccounted += active;
+        }
+        for (int i = index; i < timeline.size() && unaccounted > 0; i++) {
+            int midiNumber = timeline.pitch(i);
+            if (timeline.isNoteOn(i)) {
+                scratch[midiNumber]++;
+            } else if (scratch[midiNumber] > 0) {
+                scratch[midiNumber]--;
+            } else if (scratch[128 + midiNumber]++ < activePitches[midiNumber]) {
+                unaccounted--;
+            }
+        }
+        for (int midiNumber = 0; unaccounted > 0 && midiNumber < activePitches.length; midiNumber++) {
+            for (; activePitches[midiNumber] > scratch[128 + midiNumber]; activePitches[midiNumber]--) {
+                audioEngine.noteOff(track, Pitch.of(midiNumber), timestampMicros);
+                unaccounted--;
+            }
+        }
+    }
+
+    /**
+     * Switches to a timeline of a different length at a loop boundary.
+     */
+    private void adopt(LoopTimeline next) {
+        loopLengthTicks = next.getLoopLengthTicks();
     }
 
-    private void sleepUntil(long targetTimeNs) {
+    private void recordBoundary(long latenessNs) {
+        loopBoundaries.incrementAndGet();
+        if (latenessNs > BOUNDARY_OVERRUN_THRESHOLD_NS) {
+            boundaryOverruns.incrementAndGet();
+        }
+    }
+
+    /**
+     * Sends a note-off for every voice still counted as active and clears the counts.
+     * A timestamp of -1 releases immediately.
+     */
+    private void releaseActive(int track, int[] activePitches, long timestampMicros) {
+        for (int midiNumber = 0; midiNumber < activePitches.length; midiNumber++) {
+            for (; activePitches[midiNumber] > 0; activePitches[midiNumber]--) {
+                audioEngine.noteOff(track, Pitch.of(midiNumber), timestampMicros);
+            }
+        }
+    }
+
+    /**
+     * Sleeps until the target time, waking early if playback stops, a timeline
+     * newer than {@code seen} is published, or the tempo is changed.
+     *
+     * @return true if the target time was reached
+     */
+    private boolean sleepUntil(long targetTimeNs, LoopTimeline seen, TransportClock clock) {
         while (playing) {
+            if (liveTimeline.get() != seen || clock.hasPendingTempo()) {
+                return false;
+            }
+
             long nowNs = System.nanoTime();
             long remainingNs = targetTimeNs - nowNs;
             if (remainingNs <= 0) {
-                break;
+                return true;
             }
 
             long remainingMs = remainingNs / 1_000_000L;
             if (remainingMs > 1) {
                 try {
-                    Thread.sleep(remainingMs - 1);
+                    // Bounded so published edits and tempo changes are noticed promptly
+                    Thread.sleep(Math.min(remainingMs - 1, EDIT_POLL_MS));
                 } catch (InterruptedException e) {
                     Thread.currentThread().interrupt();
-                    break;
+                    return false;
                 }
             } else {
                 Thread.yield();
             }
         }
+        return false;
     }
 
     private void stopAllNotes() {
@@ -0,0 +1,191 @@
+package controller.engine;
+
+import model.Loop;
+
+/**
+ * A Loop compiled into a packed, immutable event timeline for playback.
+ * Events are stored in parallel primitive arrays sorted by tick (note-on before
+ * note-off at equal ticks), so the playback thread can walk them without allocating.
+ * Positions are in TransportClock ticks, so the timeline does not depend on wall-clock time.
+ */
+public final class LoopTimeline {
+
+    public static final int FLAG_NOTE_ON = 1;
+
+    private final long[] offsetsTicks;
+    private final int[] pitches;
+    private final int[] velocities;
+    private final int[] flags;
+    private final long loopLengthTicks;
+
+    private final Loop source;
+    private final long sourceRevision;
+    private final int beatsPerMeasure;
+    private final double bpm;
+
+    private LoopTimeline(long[] offsetsTicks, int[] pitches, int[] velocities, int[] flags,
+                         long loopLengthTicks, Loop source, long sourceRevision,
+                         int beatsPerMeasure, double bpm) {
+        this.offsetsTicks = offsetsTicks;
+        this.pitches = pitches;
+        this.velocities = velocities;
+        this.flags = flags;
+        this.loopLengthTicks = loopLengthTicks;
+        this.source = source;
+        this.sourceRevision = sourceRevision;
+        this.beatsPerMeasure = beatsPerMeasure;
+        this.bpm = bpm;
+    }
+
+    /**
+     * Compiles the loop's current notes, tempo and length into a timeline.
+     */
+    public static LoopTimeline compile(Loop loop, int beatsPerMeasure) {
+        if (loop == null) {
+            throw new IllegalArgumentException("loop cannot be null");
+        }
+
+        final double bpm = loop.getTempo().getBpm();
+        final int totalBeatsInLoop = loop.getMeasures().getValue() * beatsPerMeasure;
+
+        int noteCount = loop.getNoteCount();
+        int size = noteCount * 2;
+
+        // Unsorted events: note-on at 2*i, note-off at 2*i+1
+        long[] ticks = new long[size];
+        int[] order = new int[size];
+        for (int i = 0; i < noteCount; i++) {
+            double startBeat = loop.getNoteStartBeat(i);
+            double endBeat = startBeat + loop.getNoteDurationBeats(i);
+
+            ticks[2 * i] = TransportClock.beatsToTicks(startBeat);
+            ticks[2 * i + 1] = TransportClock.beatsToTicks(endBeat);
+            order[2 * i] = 2 * i;
+            order[2 * i + 1] = 2 * i + 1;
+        }
+
+        sortEvents(order, ticks);
+
+        long[] offsetsTicks = new long[size];
+        int[] pitches = new int[size];
+        int[] velocities = new int[size];
+        int[] flags = new int[size];
+        for (int i = 0; i < size; i++) {
+            int event = order[i];
+            int note = event >> 1;
+            boolean isNoteOn = (event & 1) == 0;
+
+            offsetsTicks[i] = ticks[event];
+            pitches[i] = loop.getNotePitch(note);
+            velocities[i] = isNoteOn ? loop.getNoteVelocity(note) : 0;
+            flags[i] = isNoteOn ? FLAG_NOTE_ON : 0;
+        }
+
+        long loopLengthTicks = (long) totalBeatsInLoop * TransportClock.PPQ;
+        return new LoopTimeline(offsetsTicks, pitches, velocities, flags, loopLengthTicks,
+                loop, loop.getRevision(), beatsPerMeasure, bpm);
+    }
+
+    /**
+     * @return true if this timeline still reflects the given loop as it is now.
+     */
+    public boolean isCompiledFrom(Loop loop, int beatsPerMeasure) {
+        return loop == source
+                && loop.getRevision() == sourceRevision
+                && this.beatsPerMeasure == beatsPerMeasure;
+    }
+
+    public int size() {
+        return offsetsTicks.length;
+    }
+
+    public long offsetTicks(int index) {
+        return offsetsTicks[index];
+    }
+
+    public int pitch(int index) {
+        return pitches[index];
+    }
+
+    public int velocity(int index) {
+        return velocities[index];
+    }
+
+    public boolean isNoteOn(int index) {
+        return (flags[index] & FLAG_NOTE_ON) != 0;
+    }
+
+    public long getLoopLengthTicks() {
+        return loopLengthTicks;
+    }
+
+    public double getBpm() {
+        return bpm;
+    }
+
+    /**
+     * @return true if both timelines have the same length, so playback can switch
+     *         between them mid-loop. Tempo does not matter: ticks are mapped to time
+     *         by the transport clock, not by the timeline.
+     */
+    public boolean hasSameLengthAs(LoopTimeline other) {
+        return other.loopLengthTicks == loopLengthTicks;
+    }
+
+    /**
+     * @return the index of the first event at or after the given tick,
+     *         or size() if there is none (binary search).
+     */
+    public int indexAtOrAfter(long tick) {
+        int lo = 0;
+        int hi = offsetsTicks.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (offsetsTicks[mid] < tick) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    // ---- Sorting ----
+
+    /**
+     * Stable merge sort of event indices by tick, note-ons (even indices) first on ties.
+     */
+    private static void sortEvents(int[] order, long[] ticks) {
+        int[] scratch = new int[order.length];
+        for (int width = 1; width < order.length; width *= 2) {
+            for (int lo = 0; lo < order.length - width; lo += 2 * width) {
+                int mid = lo + width;
+                int hi = Math.min(lo + 2 * width, order.length);
+                merge(order, scratch, ticks, lo, mid, hi);
+            }
+        }
+    }
+
+    private static void merge(int[] order, int[] scratch, long[] ticks, int lo, int mid, int hi) {
+        System.arraycopy(order, lo, scratch, lo, hi - lo);
+        int left = lo;
+        int right = mid;
+        for (int k = lo; k < hi; k++) {
+            if (left >= mid) {
+                order[k] = scratch[right++];
+            } else if (right >= hi) {
+                order[k] = scratch[left++];
+            } else if (compare(scratch[right], scratch[left], ticks) < 0) {
+                order[k] = scratch[right++];
+            } else {
+                order[k] = scratch[left++];
+            }
+        }
+    }
+
+    private static int compare(int a, int b, long[] ticks) {
+        int cmp = Long.compare(ticks[a], ticks[b]);
+        if (cmp != 0) return cmp;
+        return Integer.compare(a & 1, b & 1);
+    }
+}
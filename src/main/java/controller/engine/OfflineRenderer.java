@@ -0,0 +1,203 @@
+package controller.engine;
+
+import com.sun.media.sound.AudioSynthesizer;
+import model.Loop;
+
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MidiSystem;
+import javax.sound.midi.MidiUnavailableException;
+import javax.sound.midi.Receiver;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.Synthesizer;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Renders a Loop to a PCM WAV file faster than realtime.
+ * <p>
+ * Uses the Gervill software synthesizer's stream API (AudioSynthesizer.openStream),
+ * so no audio device is needed and rendering runs as fast as the CPU allows.
+ * Events come from the same LoopTimeline and TransportClock that LoopSequencer uses,
+ * handed to the synth block by block with microsecond timestamps.
+ * <p>
+ * One instance owns one synthesizer and is not thread-safe; use one per worker.
+ */
+public class OfflineRenderer {
+
+    public static final float DEFAULT_SAMPLE_RATE = 44100f;
+    public static final int CHANNELS = 2;
+
+    /** Frames rendered per block; events are sent to the synth one block ahead. */
+    private static final int BLOCK_FRAMES = 512;
+    /** Extra audio after the last loop so released notes can ring out. */
+    private static final long TAIL_US = 1_000_000L;
+
+    private final int beatsPerMeasure;
+    private final int bitsPerSample;
+    private final float sampleRate;
+    private final AudioSynthesizer synth;
+
+    /**
+     * @param beatsPerMeasure beats per measure used to compute the loop length
+     * @param bitsPerSample   16 or 24
+     */
+    public OfflineRenderer(int beatsPerMeasure, int bitsPerSample) throws MidiUnavailableException {
+        if (bitsPerSample != 16 && bitsPerSample != 24) {
+            throw new IllegalArgumentException("bitsPerSample must be 16 or 24, got: " + bitsPerSample);
+        }
+        Synthesizer synthesizer = MidiSystem.getSynthesizer();
+        if (!(synthesizer instanceof AudioSynthesizer)) {
+            throw new MidiUnavailableException("default synthesizer cannot render offline: "
+                    + synthesizer.getClass().getName());
+        }
+        this.beatsPerMeasure = beatsPerMeasure;
+        this.bitsPerSample = bitsPerSample;
+        this.sampleRate = DEFAULT_SAMPLE_RATE;
+        this.synth = (AudioSynthesizer) synthesizer;
+    }
+
+    /**
+     * Renders the loop, repeated the given number of times, into a WAV file.
+     *
+     * @return the duration of the rendered audio in seconds
+     */
+    public double render(Loop loop, int repeats, Path wavFile) throws IOException, MidiUnavailableException {
+        if (loop == null) {
+            throw new IllegalArgumentException("loop cannot be null");
+        }
+        if (repeats <= 0) {
+            throw new IllegalArgumentException("repeats must be positive, got: " + repeats);
+        }
+
+        LoopTimeline timeline = LoopTimeline.compile(loop, beatsPerMeasure);
+        // Anchored at 0: clock nanoseconds are stream time
+        TransportClock clock = new TransportClock(timeline.getBpm(), 0L);
+
+        long loopLengthTicks = timeline.getLoopLengthTicks();
+        long musicUs = clock.timeOfTick(loopLengthTicks * repeats) / 1000L;
+        long totalFrames = (long) Math.ceil((musicUs + TAIL_US) * (double) sampleRate / 1_000_000.0);
+
+        AudioFormat format = new AudioFormat(sampleRate, bitsPerSample, CHANNELS, true, false);
+        int frameSize = format.getFrameSize();
+
+        AudioInputStream audio = synth.openStream(format, null);
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(wavFile), 1 << 16)) {
+            Receiver receiver = synth.getReceiver();
+            out.write(wavHeader(format, totalFrames * frameSize));
+
+            byte[] block = new byte[BLOCK_FRAMES * frameSize];
+            boolean[] activePitches = new boolean[128];
+            long framesDone = 0;
+            long loopStartTick = 0;
+            int repeat = 0;
+            int index = 0;
+
+            while (framesDone < totalFrames) {
+                int frames = (int) Math.min(BLOCK_FRAMES, totalFrames - framesDone);
+                long blockEndUs = (long) ((framesDone + frames) * 1_000_000.0 / sampleRate);
+
+                // Hand over every event that falls inside this block
+                while (repeat < repeats) {
+                    if (index == timeline.size()) {
+                        long boundaryUs = clock.timeOfTick(loopStartTick + loopLengthTicks) / 1000L;
+                        if (boundaryUs >= blockEndUs) break;
+                        releaseActive(receiver, activePitches, boundaryUs);
+                        loopStartTick += loopLengthTicks;
+                        repeat++;
+                        index = 0;
+                        continue;
+                    }
+
+                    long eventUs = clock.timeOfTick(loopStartTick + timeline.offsetTicks(index)) / 1000L;
+                    if (eventUs >= blockEndUs) break;
+
+                    int midiNumber = timeline.pitch(index);
+                    if (timeline.isNoteOn(index)) {
+                        send(receiver, ShortMessage.NOTE_ON, midiNumber, timeline.velocity(index), eventUs);
+                        activePitches[midiNumber] = true;
+                    } else {
+                        send(receiver, ShortMessage.NOTE_OFF, midiNumber, 0, eventUs);
+                        activePitches[midiNumber] = false;
+                    }
+                    index++;
+                }
+
+                readFully(audio, block, frames * frameSize);
+                out.write(block, 0, frames * frameSize);
+                framesDone += frames;
+            }
+        } finally {
+            synth.close();
+        }
+
+        return totalFrames / (double) sampleRate;
+    }
+
+    private static void releaseActive(Receiver receiver, boolean[] activePitches, long timestampUs) {
+        for (int midiNumber = 0; midiNumber < activePitches.length; midiNumber++) {
+            if (activePitches[midiNumber]) {
+                send(receiver, ShortMessage.NOTE_OFF, midiNumber, 0, timestampUs);
+                activePitches[midiNumber] = false;
+            }
+        }
+    }
+
+    private static void send(Receiver receiver, int command, int midiNumber, int velocity, long timestampUs) {
+        int midiNote = PianoInstrument.BASE_MIDI_NOTE + midiNumber;
+        if (midiNote > 127) {
+            return; // shifted past the top of the MIDI range
+        }
+        try {
+            receiver.send(new ShortMessage(command, 0, midiNote, velocity), timestampUs);
+        } catch (InvalidMidiDataException e) {
+            System.err.println("OfflineRenderer: invalid MIDI message: " + e.getMessage());
+        }
+    }
+
+    private static void readFully(AudioInputStream audio, byte[] buffer, int length) throws IOException {
+        int offset = 0;
+        while (offset < length) {
+            int read = audio.read(buffer, offset, length - offset);
+            if (read < 0) {
+                throw new IOException("synth stream ended early");
+            }
+            offset += read;
+        }
+    }
+
+    /**
+     * Builds a canonical 44-byte RIFF/WAVE header for little-endian PCM data.
+     */
+    private static byte[] wavHeader(AudioFormat format, long dataBytes) throws IOException {
+        if (dataBytes > 0xFFFFFFFFL - 36) {
+            throw new IOException("render too long for a WAV file: " + dataBytes + " bytes");
+        }
+        int channels = format.getChannels();
+        int bits = format.getSampleSizeInBits();
+        int sampleRate = (int) format.getSampleRate();
+        int blockAlign = format.getFrameSize();
+
+        ByteBuffer header = ByteBuffer.allocate(44).order(ByteOrder.LITTLE_ENDIAN);
+        header.put(new byte[]{'R', 'I', 'F', 'F'});
+        header.putInt((int) (36 + dataBytes));
+        header.put(new byte[]{'W', 'A', 'V', 'E'});
+        header.put(new byte[]{'f', 'm', 't', ' '});
+        header.putInt(16);
+        header.putShort((short) 1); // PCM
+        header.putShort((short) channels);
+        header.putInt(sampleRate);
+        header.putInt(sampleRate * blockAlign);
+        header.putShort((short) blockAlign);
+        header.putShort((short) bits);
+        header.put(new byte[]{'d', 'a', 't', 'a'});
+        header.putInt((int) dataBytes);
+        return header.array();
+    }
+}
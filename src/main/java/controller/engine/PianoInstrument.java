@@ -9,38 +9,74 @@ public class PianoInstrument implements Instrument {
 
     private Synthesizer synth;
     private MidiChannel channel;
+    private Receiver receiver;
+    private int channelIndex;
+    private boolean ownsSynth;
 
-    private static final int BASE_MIDI_NOTE = 60; // Middle C
+    static final int BASE_MIDI_NOTE = 60; // Middle C
 
     public PianoInstrument() {
         try {
             synth = MidiSystem.getSynthesizer();
             synth.open();
+            ownsSynth = true;
 
             MidiChannel[] channels = synth.getChannels();
             if (channels != null && channels.length > 0) {
                 channel = channels[0];
             }
 
+            // Timestamped messages go through the receiver so the synth does the timing
+            receiver = synth.getReceiver();
+
             System.out.println("PianoInstrument: MIDI synth opened.");
         } catch (MidiUnavailableException e) {
             System.err.println("PianoInstrument: MIDI unavailable: " + e.getMessage());
         }
     }
 
+    /**
+     * Creates an instrument on one channel of an already open synth shared with
+     * other instruments. The synth is not closed by {@link #close()}.
+     */
+    public PianoInstrument(Synthesizer synth, int channelIndex) throws MidiUnavailableException {
+        MidiChannel[] channels = synth.getChannels();
+        if (channelIndex < 0 || channels == null || channelIndex >= channels.length) {
+            throw new IllegalArgumentException("no MIDI channel " + channelIndex);
+        }
+        this.synth = synth;
+        this.channelIndex = channelIndex;
+        this.channel = channels[channelIndex];
+        this.receiver = synth.getReceiver();
+        this.ownsSynth = false;
+    }
+
+    public int getChannelIndex() {
+        return channelIndex;
+    }
+
+    @Override
+    public void setProgram(int program) {
+        if (channel != null) {
+            channel.programChange(program);
+        }
+    }
+
     @Override
     public void noteOn(Pitch pitch, Velocity velocity) {
         if (channel == null) {
-            System.err.println("PianoInstrument: no MIDI channel.");
+            if (EventTracer.ERROR) {
+                EventTracer.get().record(EventTracer.SEND_FAILED, pitch.getMidiNumber(), 0, -1);
+            }
             return;
         }
 
         int midiNote = BASE_MIDI_NOTE + pitch.getMidiNumber();
         int vel = velocity.getValue();
 
-        System.out.printf(
-                "PianoInstrument: noteOn pitch=%d midiNote=%d vel=%d%n",
-                pitch.getMidiNumber(), midiNote, vel);
+        if (EventTracer.DEBUG) {
+            EventTracer.get().record(EventTracer.INSTRUMENT_NOTE_ON, pitch.getMidiNumber(), vel, -1);
+        }
 
         channel.noteOn(midiNote, vel);
     }
@@ -48,21 +84,74 @@ public class PianoInstrument implements Instrument {
     @Override
     public void noteOff(Pitch pitch) {
         if (channel == null) {
-            System.err.println("PianoInstrument: no MIDI channel.");
+            if (EventTracer.ERROR) {
+                EventTracer.get().record(EventTracer.SEND_FAILED, pitch.getMidiNumber(), 0, -1);
+            }
             return;
         }
 
         int midiNote = BASE_MIDI_NOTE + pitch.getMidiNumber();
 
-        System.out.printf(
-                "PianoInstrument: noteOff pitch=%d midiNote=%d%n",
-                pitch.getMidiNumber(), midiNote);
+        if (EventTracer.DEBUG) {
+            EventTracer.get().record(EventTracer.INSTRUMENT_NOTE_OFF, pitch.getMidiNumber(), 0, -1);
+        }
 
         channel.noteOff(midiNote);
     }
 
+    @Override
+    public void noteOn(Pitch pitch, Velocity velocity, long timestampMicros) {
+        if (receiver == null) {
+            noteOn(pitch, velocity);
+            return;
+        }
+        int midiNote = BASE_MIDI_NOTE + pitch.getMidiNumber();
+        if (EventTracer.DEBUG) {
+            EventTracer.get().record(EventTracer.INSTRUMENT_NOTE_ON,
+                    pitch.getMidiNumber(), velocity.getValue(), timestampMicros);
+        }
+        send(ShortMessage.NOTE_ON, midiNote, velocity.getValue(), timestampMicros);
+    }
+
+    @Override
+    public void noteOff(Pitch pitch, long timestampMicros) {
+        if (receiver == null) {
+            noteOff(pitch);
+            return;
+        }
+        int midiNote = BASE_MIDI_NOTE + pitch.getMidiNumber();
+        if (EventTracer.DEBUG) {
+            EventTracer.get().record(EventTracer.INSTRUMENT_NOTE_OFF, pitch.getMidiNumber(), 0, timestampMicros);
+        }
+        send(ShortMessage.NOTE_OFF, midiNote, 0, timestampMicros);
+    }
+
+    @Override
+    public long getMicrosecondPosition() {
+        if (synth == null || !synth.isOpen()) {
+            return -1;
+        }
+        return synth.getMicrosecondPosition();
+    }
+
+    private void send(int command, int data1, int data2, long timestampMicros) {
+        try {
+            receiver.send(new ShortMessage(command, channelIndex, data1, data2), timestampMicros);
+        } catch (InvalidMidiDataException e) {
+            if (EventTracer.ERROR) {
+                EventTracer.get().record(EventTracer.SEND_FAILED, data1 - BASE_MIDI_NOTE, data2, timestampMicros);
+            }
+        }
+    }
+
     @Override
     public void close() {
+        if (!ownsSynth) {
+            if (channel != null) {
+                channel.allNotesOff();
+            }
+            return;
+        }
         System.out.println("PianoInstrument: closing synth.");
         if (synth != null && synth.isOpen()) {
             synth.close();
@@ -0,0 +1,20 @@
+package controller.engine;
+
+/**
+ * How the LoopSequencer gets note events to the instrument on time.
+ */
+public enum SchedulingMode {
+
+    /**
+     * The playback thread sleeps until each event is due and fires it immediately.
+     * Timing depends on how precisely the thread wakes up.
+     */
+    DIRECT,
+
+    /**
+     * The playback thread wakes periodically and hands the next window of events
+     * to the synthesizer with microsecond timestamps; the synth does the precise timing.
+     * Falls back to DIRECT if the instrument has no clock.
+     */
+    LOOKAHEAD
+}
@@ -0,0 +1,71 @@
+package controller.engine;
+
+import model.Tempo;
+
+/**
+ * Live tempo control shared between the UI and the playback thread.
+ * <p>
+ * The UI posts requests (an instant change or a linear ramp over some beats); each
+ * request is an immutable object published through a volatile field, so the playback
+ * thread picks it up on its next scheduling step without locking. The TransportClock
+ * that owns this control applies the request from its current position.
+ */
+public final class TempoControl {
+
+    /** One tempo request. A new instance per call, so it can be detected by identity. */
+    static final class Request {
+        final double targetBpm;
+        final long rampTicks;
+
+        Request(double targetBpm, long rampTicks) {
+            this.targetBpm = targetBpm;
+            this.rampTicks = rampTicks;
+        }
+    }
+
+    private volatile Request request;
+    private volatile double currentBpm;
+
+    public TempoControl(double bpm) {
+        double clamped = new Tempo(bpm).getBpm();
+        this.request = new Request(clamped, 0);
+        this.currentBpm = clamped;
+    }
+
+    /**
+     * Changes the tempo immediately, from the transport's current position.
+     * The BPM is clamped to the Tempo range.
+     */
+    public void setTempo(double bpm) {
+        rampTo(bpm, 0.0);
+    }
+
+    /**
+     * Moves the tempo linearly from wherever it is now to the target over the given
+     * number of beats. A ramp of 0 beats is an instant change.
+     */
+    public void rampTo(double bpm, double beats) {
+        if (!(beats >= 0.0) || Double.isInfinite(beats)) {
+            throw new IllegalArgumentException("ramp length must be a non-negative number of beats, got: " + beats);
+        }
+        request = new Request(new Tempo(bpm).getBpm(), TransportClock.beatsToTicks(beats));
+    }
+
+    /** The tempo the transport is at, or heading to, after the latest request. */
+    public double getTargetBpm() {
+        return request.targetBpm;
+    }
+
+    /** The tempo the transport is playing at right now (changes during a ramp). */
+    public double getCurrentBpm() {
+        return currentBpm;
+    }
+
+    Request getRequest() {
+        return request;
+    }
+
+    void publishCurrentBpm(double bpm) {
+        this.currentBpm = bpm;
+    }
+}
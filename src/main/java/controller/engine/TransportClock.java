@@ -0,0 +1,245 @@
+package controller.engine;
+
+/**
+ * Musical clock for a playback session. It is anchored to System.nanoTime() once,
+ * when playback starts, and counts integer ticks (PPQ per beat) from there.
+ * <p>
+ * Time is kept as a current constant-tempo segment (start tick, start time, tempo).
+ * The time of a tick is computed from the segment start rather than by adding up
+ * intervals, so oversleeping at one loop boundary never shifts the next. Tempo changes
+ * from the {@link TempoControl} start a new segment at the current position, so they
+ * never make time jump; a ramp is applied as a run of short constant-tempo steps that
+ * are integrated incrementally as playback advances through them.
+ * <p>
+ * The scheduling methods (timeOfTick, advanceTo, pollTempo) belong to the one thread
+ * that drives playback. The position getters may be called from any thread.
+ */
+public final class TransportClock {
+
+    /** Ticks per quarter-note beat. */
+    public static final int PPQ = 960;
+
+    /** Ramps change tempo in steps of this many ticks (1/32 beat). */
+    static final int RAMP_STEP_TICKS = PPQ / 32;
+
+    /** MIDI song position pointer counts sixteenth notes. */
+    private static final int TICKS_PER_SIXTEENTH = PPQ / 4;
+
+    private final TempoControl tempoControl;
+    private final long anchorNs;
+
+    // ---- Owner thread state ----
+    private TempoControl.Request applied;
+    private long segmentTick;
+    private long segmentNs;
+    private double segmentBpm;
+    private double nsPerTick;
+    private boolean ramping;
+    private long rampStartTick;
+    private long rampEndTick;
+    private double rampFromBpm;
+    private double rampToBpm;
+
+    // ---- Snapshot for other threads, guarded by a sequence number ----
+    private volatile int snapshotVersion;
+    private volatile long snapshotTick;
+    private volatile long snapshotNs;
+    private volatile double snapshotNsPerTick;
+
+    /** A clock with a fixed tempo. */
+    public TransportClock(double bpm, long anchorNs) {
+        this(new TempoControl(bpm), anchorNs);
+    }
+
+    /** A clock whose tempo follows the given control. */
+    public TransportClock(TempoControl tempoControl, long anchorNs) {
+        this(tempoControl, 0, anchorNs);
+    }
+
+    /**
+     * A clock whose tempo follows the given control and that is at {@code startTick}
+     * at {@code startNs}, for starting playback part way in. Tick 0 lies before it,
+     * at the starting tempo.
+     */
+    public TransportClock(TempoControl tempoControl, long startTick, long startNs) {
+        if (tempoControl == null) {
+            throw new IllegalArgumentException("tempoControl cannot be null");
+        }
+        this.tempoControl = tempoControl;
+        this.applied = tempoControl.getRequest();
+        this.anchorNs = startNs - Math.round(startTick * nsPerTick(applied.targetBpm));
+        setSegment(startTick, startNs, applied.targetBpm);
+    }
+
+    /**
+     * Converts a beat value to the nearest tick.
+     */
+    public static long beatsToTicks(double beats) {
+        return Math.round(beats * PPQ);
+    }
+
+    /** The System.nanoTime() value that corresponds to tick 0. */
+    public long getAnchorNs() {
+        return anchorNs;
+    }
+
+    public TempoControl getTempoControl() {
+        return tempoControl;
+    }
+
+    /** The tempo the transport is playing at right now. */
+    public double getBpm() {
+        return tempoControl.getCurrentBpm();
+    }
+
+    // ---- Scheduling (owner thread) ----
+
+    /**
+     * @return the System.nanoTime() at which the given tick falls, following any ramp
+     *         in progress. Ticks before the last advanceTo() use the current tempo.
+     */
+    public long timeOfTick(long tick) {
+        if (tick <= segmentTick || !ramping) {
+            return segmentNs + Math.round((tick - segmentTick) * nsPerTick);
+        }
+
+        // Walk the ramp steps from the segment start up to the tick
+        long t = segmentTick;
+        double ns = segmentNs;
+        double stepNsPerTick = nsPerTick;
+        while (t < rampEndTick) {
+            long stepEnd = Math.min(rampEndTick,
+                    rampStartTick + ((t - rampStartTick) / RAMP_STEP_TICKS + 1) * RAMP_STEP_TICKS);
+            if (tick <= stepEnd) {
+                return Math.round(ns + (tick - t) * stepNsPerTick);
+            }
+            ns += (stepEnd - t) * stepNsPerTick;
+            t = stepEnd;
+            stepNsPerTick = nsPerTick(bpmOfStepAt(t));
+        }
+        return Math.round(ns + (tick - t) * stepNsPerTick);
+    }
+
+    /**
+     * Moves the segment start forward to a tick playback has reached. Only matters
+     * while ramping, where it keeps timeOfTick() incremental.
+     */
+    public void advanceTo(long tick) {
+        if (!ramping || tick <= segmentTick) {
+            return;
+        }
+        if (tick >= rampEndTick) {
+            // Ramp finished: anchor a constant segment exactly at its end
+            long endNs = timeOfTick(rampEndTick);
+            ramping = false;
+            setSegment(rampEndTick, endNs, rampToBpm);
+        } else {
+            setSegment(tick, timeOfTick(tick), bpmOfStepAt(tick));
+        }
+    }
+
+    /**
+     * Applies a new tempo request, if there is one, starting at the given tick
+     * (or at the segment start, whichever is later).
+     *
+     * @return true if the tempo changed
+     */
+    public boolean pollTempo(long fromTick) {
+        TempoControl.Request request = tempoControl.getRequest();
+        if (request == applied) {
+            return false;
+        }
+        applied = request;
+
+        long startTick = Math.max(fromTick, segmentTick);
+        advanceTo(startTick);
+        long startNs = timeOfTick(startTick);
+        double fromBpm = segmentBpm;
+
+        if (request.rampTicks <= 0) {
+            ramping = false;
+            setSegment(startTick, startNs, request.targetBpm);
+        } else {
+            ramping = true;
+            rampStartTick = startTick;
+            rampEndTick = startTick + request.rampTicks;
+            rampFromBpm = fromBpm;
+            rampToBpm = request.targetBpm;
+            setSegment(startTick, startNs, bpmOfStepAt(startTick));
+        }
+        return true;
+    }
+
+    /** True if the control has a request this clock has not applied yet. */
+    public boolean hasPendingTempo() {
+        return tempoControl.getRequest() != applied;
+    }
+
+    // ---- Position (any thread) ----
+
+    /**
+     * @return the tick at the given System.nanoTime(), extrapolated from the latest
+     *         segment; negative before the anchor.
+     */
+    public long tickAt(long nanoTime) {
+        while (true) {
+            int version = snapshotVersion;
+            long tick = snapshotTick;
+            long ns = snapshotNs;
+            double perTick = snapshotNsPerTick;
+            if ((version & 1) == 0 && version == snapshotVersion) {
+                return tick + (long) Math.floor((nanoTime - ns) / perTick);
+            }
+            Thread.onSpinWait();
+        }
+    }
+
+    /** The tick the transport is at right now. */
+    public long getCurrentTick() {
+        return tickAt(System.nanoTime());
+    }
+
+    /** Current song position in beats since play was pressed. */
+    public double getSongPositionBeats() {
+        return (double) getCurrentTick() / PPQ;
+    }
+
+    /**
+     * Current song position as a MIDI song position pointer (sixteenth notes
+     * since the start), for syncing external gear.
+     */
+    public long getSongPositionPointer() {
+        return Math.max(0, getCurrentTick()) / TICKS_PER_SIXTEENTH;
+    }
+
+    // ---- Internals ----
+
+    private void setSegment(long tick, long ns, double bpm) {
+        segmentTick = tick;
+        segmentNs = ns;
+        segmentBpm = bpm;
+        nsPerTick = nsPerTick(bpm);
+        tempoControl.publishCurrentBpm(bpm);
+
+        snapshotVersion++;   // odd: being written
+        snapshotTick = tick;
+        snapshotNs = ns;
+        snapshotNsPerTick = nsPerTick;
+        snapshotVersion++;   // even: consistent
+    }
+
+    /** Tempo of the ramp step containing the tick, taken at the step's midpoint. */
+    private double bpmOfStepAt(long tick) {
+        if (tick >= rampEndTick) {
+            return rampToBpm;
+        }
+        long stepStart = rampStartTick + (tick - rampStartTick) / RAMP_STEP_TICKS * RAMP_STEP_TICKS;
+        long stepEnd = Math.min(rampEndTick, stepStart + RAMP_STEP_TICKS);
+        double progress = ((stepStart + stepEnd) / 2.0 - rampStartTick) / (rampEndTick - rampStartTick);
+        return rampFromBpm + (rampToBpm - rampFromBpm) * progress;
+    }
+
+    private static double nsPerTick(double bpm) {
+        return 60_000_000_000.0 / (bpm * PPQ);
+    }
+}
@@ -0,0 +1,262 @@
+package controller.engine;
+
+import java.util.Arrays;
+
+/**
+ * Decides which MIDI channel each note plays on and keeps the number of sounding
+ * voices under a polyphony cap.
+ * <p>
+ * Every track owns a primary channel set to its program. A second overlapping note of
+ * the same pitch on the same track goes to another channel (a free one is borrowed
+ * and switched to the track's program), so its note-off cannot cut the first one
+ * short. When the cap is reached, the oldest sounding voice is stolen.
+ * <p>
+ * All state lives in fixed-size arrays and nothing is allocated per note. This class is
+ * not thread-safe: it is driven only by the thread that plays notes.
+ */
+final class VoiceAllocator {
+
+    static final int CHANNELS = 16;
+    /** General MIDI reserves channel 10 (index 9) for drums. */
+    static final int PERCUSSION_CHANNEL = 9;
+    static final int MAX_TRACKS = CHANNELS - 1;
+
+    private static final int FREE = -1;
+
+    /** Result of a note-on: where to play it, and which voice (if any) to cut first. */
+    static final class Allocation {
+        int channel;
+        /** True if the channel was borrowed and needs the track's program set first. */
+        boolean programChanged;
+        int stolenChannel = FREE;
+        int stolenNote;
+    }
+
+    private final int[] channelOwner = new int[CHANNELS];     // track id, or FREE
+    private final int[] channelProgram = new int[CHANNELS];
+    private final boolean[] channelPrimary = new boolean[CHANNELS];
+    private final int[] channelVoices = new int[CHANNELS];
+    /** Start order of the voice sounding on [channel * 128 + note], 0 if silent. */
+    private final long[] voiceStart = new long[CHANNELS * 128];
+
+    private final int[] trackChannel = new int[MAX_TRACKS];
+    private final int[] trackProgram = new int[MAX_TRACKS];
+
+    private int polyphony;
+    private int activeVoices;
+    private long startCounter;
+    private long stolenCount;
+
+    private final Allocation allocation = new Allocation();
+
+    VoiceAllocator(int polyphony) {
+        setPolyphony(polyphony);
+        Arrays.fill(channelOwner, FREE);
+        Arrays.fill(trackChannel, FREE);
+    }
+
+    void setPolyphony(int polyphony) {
+        if (polyphony <= 0) {
+            throw new IllegalArgumentException("polyphony must be positive, got: " + polyphony);
+        }
+        this.polyphony = polyphony;
+    }
+
+    int getPolyphony() {
+        return polyphony;
+    }
+
+    int getActiveVoices() {
+        return activeVoices;
+    }
+
+    int getActiveVoices(int channel) {
+        return channelVoices[channel];
+    }
+
+    long getStolenCount() {
+        return stolenCount;
+    }
+
+    int getTrackChannel(int track) {
+        checkTrack(track);
+        return trackChannel[track];
+    }
+
+    int getChannelProgram(int channel) {
+        return channelProgram[channel];
+    }
+
+    /**
+     * Gives the track a primary channel (keeping the one it has) with the given program.
+     *
+     * @return the channel whose program must be changed
+     */
+    int assignTrack(int track, int program) {
+        checkTrack(track);
+        int channel = trackChannel[track];
+        if (channel == FREE) {
+            channel = findFreeChannel();
+            if (channel == FREE) {
+                throw new IllegalStateException("no free MIDI channel for track " + track);
+            }
+            channelOwner[channel] = track;
+            channelPrimary[channel] = true;
+            trackChannel[track] = channel;
+        }
+        trackProgram[track] = program;
+        channelProgram[channel] = program;
+        return channel;
+    }
+
+    boolean isTrackAssigned(int track) {
+        return track >= 0 && track < MAX_TRACKS && trackChannel[track] != FREE;
+    }
+
+    int getTrackProgram(int track) {
+        checkTrack(track);
+        return trackProgram[track];
+    }
+
+    /**
+     * Allocates a voice for a note-on. The returned object is reused by the next call.
+     * If {@code stolenChannel} is set, the caller must send a note-off for
+     * {@code stolenNote} on that channel before playing the new note.
+     */
+    Allocation noteOn(int track, int note) {
+        checkTrack(track);
+        Allocation result = allocation;
+        result.stolenChannel = FREE;
+        result.programChanged = false;
+
+        int channel = pickChannel(track, note, result);
+        if (channel == FREE) {
+            // Every usable channel already plays this note: retrigger the oldest one
+            channel = oldestChannelFor(track, note);
+            steal(channel, note, result, channel);
+        } else if (activeVoices >= polyphony) {
+            stealOldest(result, channel);
+        }
+
+        result.channel = channel;
+        voiceStart[channel * 128 + note] = ++startCounter;
+        channelVoices[channel]++;
+        activeVoices++;
+        return result;
+    }
+
+    /**
+     * Finds the channel the track's oldest voice for this note is on and frees it.
+     *
+     * @return the channel, or -1 if the note is not sounding (e.g. it was stolen)
+     */
+    int noteOff(int track, int note) {
+        checkTrack(track);
+        int channel = oldestChannelFor(track, note);
+        if (channel != FREE) {
+            release(channel, note);
+        }
+        return channel;
+    }
+
+    /** Forgets every voice, e.g. after an all-notes-off. */
+    void reset() {
+        Arrays.fill(voiceStart, 0L);
+        Arrays.fill(channelVoices, 0);
+        activeVoices = 0;
+        for (int channel = 0; channel < CHANNELS; channel++) {
+            if (!channelPrimary[channel]) {
+                channelOwner[channel] = FREE;
+            }
+        }
+    }
+
+    // ---- Internals ----
+
+    /** Least busy channel of this track where the note is not sounding, borrowing one if needed. */
+    private int pickChannel(int track, int note, Allocation result) {
+        int best = FREE;
+        for (int channel = 0; channel < CHANNELS; channel++) {
+            if (channelOwner[channel] == track && voiceStart[channel * 128 + note] == 0
+                    && (best == FREE || channelVoices[channel] < channelVoices[best])) {
+                best = channel;
+            }
+        }
+        if (best != FREE) {
+            return best;
+        }
+        int borrowed = findFreeChannel();
+        if (borrowed != FREE) {
+            channelOwner[borrowed] = track;
+            if (channelProgram[borrowed] != trackProgram[track]) {
+                channelProgram[borrowed] = trackProgram[track];
+                result.programChanged = true;
+            }
+        }
+        return borrowed;
+    }
+
+    private int findFreeChannel() {
+        for (int channel = 0; channel < CHANNELS; channel++) {
+            if (channel != PERCUSSION_CHANNEL && channelOwner[channel] == FREE) {
+                return channel;
+            }
+        }
+        return FREE;
+    }
+
+    private int oldestChannelFor(int track, int note) {
+        int oldest = FREE;
+        for (int channel = 0; channel < CHANNELS; channel++) {
+            long start = voiceStart[channel * 128 + note];
+            if (channelOwner[channel] == track && start != 0
+                    && (oldest == FREE || start < voiceStart[oldest * 128 + note])) {
+                oldest = channel;
+            }
+        }
+        return oldest;
+    }
+
+    private void stealOldest(Allocation result, int newChannel) {
+        int oldest = FREE;
+        for (int i = 0; i < voiceStart.length; i++) {
+            if (voiceStart[i] != 0 && (oldest == FREE || voiceStart[i] < voiceStart[oldest])) {
+                oldest = i;
+            }
+        }
+        if (oldest != FREE) {
+            steal(oldest / 128, oldest % 128, result, newChannel);
+        }
+    }
+
+    /**
+     * @param newChannel the channel the new voice will use; it stays owned even if
+     *                   stealing leaves it silent for a moment
+     */
+    private void steal(int channel, int note, Allocation result, int newChannel) {
+        result.stolenChannel = channel;
+        result.stolenNote = note;
+        stolenCount++;
+        release(channel, note, newChannel);
+    }
+
+    private void release(int channel, int note) {
+        release(channel, note, FREE);
+    }
+
+    private void release(int channel, int note, int keepChannel) {
+        voiceStart[channel * 128 + note] = 0;
+        channelVoices[channel]--;
+        activeVoices--;
+        // Borrowed channels go back to the pool once silent
+        if (channelVoices[channel] == 0 && !channelPrimary[channel] && channel != keepChannel) {
+            channelOwner[channel] = FREE;
+        }
+    }
+
+    private static void checkTrack(int track) {
+        if (track < 0 || track >= MAX_TRACKS) {
+            throw new IllegalArgumentException("track must be in [0, " + (MAX_TRACKS - 1) + "], got: " + track);
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package model;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The start beat of every note by id, for NoteStore. Slots live in chunks of 32 that form
+ * a trie, so a lookup is a few array reads and growing never copies the whole table.
+ * <p>
+ * Copies share their chunks. Each table marks the chunks it made since it was last
+ * copied as its own and changes only those in place; setting a slot in a shared chunk
+ * first copies that chunk and the ones above it, so a copy is never affected.
+ */
+final class IdTable {
+
+    private static final int BITS = 5;
+    private static final int WIDTH = 1 << BITS;
+    private static final int MASK = WIDTH - 1;
+
+    /** Rough heap cost of a chunk: its array and the node itself. */
+    static final long CHUNK_BYTES = WIDTH * 8L + 16 + 24;
+
+    private static final class Chunk {
+        final Object edit;
+        /** Slot values, in a chunk at the bottom of the trie. */
+        final double[] starts;
+        /** Chunks below, in any other. */
+        final Chunk[] children;
+
+        Chunk(Object edit, double[] starts, Chunk[] children) {
+            this.edit = edit;
+            this.starts = starts;
+            this.children = children;
+        }
+    }
+
+    /** Chunks carrying this token were made by this table since it was last copied. */
+    private Object edit = new Object();
+    private Chunk root;
+    /** How far ids are shifted to pick a slot of the root; 0 if the root holds values. */
+    private int shift;
+    private long allocatedBytes;
+
+    IdTable() {
+        root = newLeaf();
+    }
+
+    /**
+     * Builds a table, in one pass, whose slot i holds {@code starts[i]}.
+     *
+     * @param allocatedBytes what the table being replaced had allocated, to count on from
+     */
+    static IdTable of(double[] starts, long allocatedBytes) {
+        IdTable table = new IdTable(null, 0, allocatedBytes);
+        List<Chunk> level = new ArrayList<>(starts.length / WIDTH + 1);
+        int at = 0;
+        do {
+            Chunk leaf = table.newLeaf();
+            System.arraycopy(starts, at, leaf.starts, 0, Math.min(WIDTH, starts.length - at));
+            level.add(leaf);
+            at += WIDTH;
+        } while (at < starts.length);
+        while (level.size() > 1) {
+            List<Chunk> parents = new ArrayList<>((level.size() + MASK) / WIDTH);
+            for (int first = 0; first < level.size(); first += WIDTH) {
+                Chunk parent = table.newBranch();
+                for (int i = first; i < Math.min(first + WIDTH, level.size()); i++) {
+                    parent.children[i - first] = level.get(i);
+                }
+                parents.add(parent);
+            }
+            level = parents;
+            table.shift += BITS;
+        }
+        table.root = level.get(0);
+        return table;
+    }
+
+    /** @return a table with the same slots, sharing all chunks with this one */
+    IdTable copy() {
+        IdTable copy = new IdTable(root, shift, allocatedBytes);
+        edit = new Object();
+        return copy;
+    }
+
+    private IdTable(Chunk root, int shift, long allocatedBytes) {
+        this.root = root;
+        this.shift = shift;
+        this.allocatedBytes = allocatedBytes;
+    }
+
+    /** @return the value of the slot, or NaN if it was never set */
+    double get(int id) {
+        if ((id >>> shift) >>> BITS != 0) {
+            return Double.NaN;
+        }
+        Chunk chunk = root;
+        for (int level = shift; level > 0; level -= BITS) {
+            chunk = chunk.children[(id >>> level) & MASK];
+            if (chunk == null) {
+                return Double.NaN;
+            }
+        }
+        return chunk.starts[id & MASK];
+    }
+
+    void set(int id, double startBeat) {
+        while ((id >>> shift) >>> BITS != 0) {
+            Chunk top = newBranch();
+            top.children[0] = root;
+            root = top;
+            shift += BITS;
+        }
+        root = own(root);
+        Chunk chunk = root;
+        for (int level = shift; level > 0; level -= BITS) {
+            int slot = (id >>> level) & MASK;
+            Chunk child = chunk.children[slot];
+            child = child == null ? (level == BITS ? newLeaf() : newBranch()) : own(child);
+            chunk.children[slot] = child;
+            chunk = child;
+        }
+        chunk.starts[id & MASK] = startBeat;
+    }
+
+    /** @return the approximate heap bytes held by the chunks, shared or not */
+    long estimateBytes() {
+        return estimateBytes(root);
+    }
+
+    /** @return the estimated bytes of all chunks this table and the ones it was copied from made */
+    long getAllocatedBytes() {
+        return allocatedBytes;
+    }
+
+    private Chunk own(Chunk chunk) {
+        if (chunk.edit == edit) {
+            return chunk;
+        }
+        allocatedBytes += CHUNK_BYTES;
+        return chunk.starts != null
+                ? new Chunk(edit, chunk.starts.clone(), null)
+                : new Chunk(edit, null, chunk.children.clone());
+    }
+
+    private Chunk newLeaf() {
+        double[] starts = new double[WIDTH];
+        Arrays.fill(starts, Double.NaN);
+        allocatedBytes += CHUNK_BYTES;
+        return new Chunk(edit, starts, null);
+    }
+
+    private Chunk newBranch() {
+        allocatedBytes += CHUNK_BYTES;
+        return new Chunk(edit, null, new Chunk[WIDTH]);
+    }
+
+    private static long estimateBytes(Chunk chunk) {
+        long bytes = CHUNK_BYTES;
+        if (chunk.children != null) {
+            for (Chunk child : chunk.children) {
+                if (child != null) {
+                    bytes += estimateBytes(child);
+                }
+            }
+        }
+        return bytes;
+    }
+}
@@ -1,17 +1,34 @@
 package model;
 
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collections;
 import java.util.List;
+import java.util.Objects;
+import java.util.RandomAccess;
 
 /**
  * Represents a loop: a fixed number of measures, a tempo, and a set of notes.
+ * <p>
+ * Notes live in primitive columns (see NoteStore) rather than as objects, ordered by
+ * start beat. Hot paths read them by index with getNoteCount() and the getNote...
+ * accessors, or ask for a span of beats with visitNotes(); LoopNote objects are only
+ * made when asked for. Each note has an id that stays the same while it is in the loop;
+ * indexes shift as notes are added and removed. Many edits can be made at once with a
+ * NoteBatch.
+ * <p>
+ * The notes are a persistent structure: copy() and snapshot() share them with the loop
+ * in constant time, and each later edit copies only the parts it changes. A
+ * LoopVersion taken with snapshot() can be put back with restore(), see LoopHistory.
  */
 public class Loop {
 
-    private final List<LoopNote> notes = new ArrayList<>();
+    private NoteStore notes = new NoteStore();
     private Measures measures;
     private Tempo tempo;
+    private long revision;
+    private final List<LoopListener> listeners = new ArrayList<>();
 
     public Loop(Measures measures) {
         if (measures == null) {
@@ -21,19 +38,336 @@ public class Loop {
         this.tempo = new Tempo(120.0); // default tempo
     }
 
-    public void addNote(LoopNote note) {
+    /** A loop made from a version; the values are already valid. */
+    Loop(Measures measures, Tempo tempo, NoteStore notes) {
+        this.measures = measures;
+        this.tempo = tempo;
+        this.notes = notes;
+    }
+
+    /**
+     * @return an independent copy with the same measures, tempo and notes (with the same
+     *         ids), made in constant time. Listeners are not copied.
+     */
+    public Loop copy() {
+        return new Loop(measures, tempo, notes.copy());
+    }
+
+    // --- Versions ---
+
+    /**
+     * @return the loop's current state as an immutable version, in constant time. It can
+     *         be read from any thread while this loop goes on being edited.
+     */
+    public LoopVersion snapshot() {
+        return new LoopVersion(measures, tempo, notes.copy(), revision);
+    }
+
+    /**
+     * Puts the loop back to the state of a version taken from it (or from a copy of it).
+     * Listeners hear only what differs: one onNotesChanged with the notes that are not
+     * in both, found without reading the parts the two states share, and the measures
+     * and tempo if they changed. Ids that were handed out since the version are not
+     * handed out again.
+     */
+    public void restore(LoopVersion version) {
+        if (version == null) {
+            throw new IllegalArgumentException("version cannot be null");
+        }
+        NoteStore restored = version.notes().copy();
+        restored.reserveIds(notes.getNextId());
+
+        List<LoopNote> removed = new ArrayList<>();
+        List<LoopNote> added = new ArrayList<>();
+        if (!listeners.isEmpty()) {
+            restored.diff(notes,
+                    (id, pitch, start, duration, velocity) ->
+                            removed.add(new LoopNote(this, id, pitch, start, duration, velocity)),
+                    (id, pitch, start, duration, velocity) ->
+                            added.add(new LoopNote(this, id, pitch, start, duration, velocity)));
+        }
+        boolean measuresChanged = measures.getValue() != version.getMeasures().getValue();
+        boolean tempoChanged = tempo.getBpm() != version.getTempo().getBpm();
+
+        notes = restored;
+        measures = version.getMeasures();
+        tempo = version.getTempo();
+        revision++;
+        if (!removed.isEmpty() || !added.isEmpty()) {
+            fireNotesChanged(Collections.unmodifiableList(removed), Collections.unmodifiableList(added));
+        }
+        if (measuresChanged) {
+            fireMeasuresChanged();
+        }
+        if (tempoChanged) {
+            fireTempoChanged();
+        }
+    }
+
+    /** @return the estimated bytes of note storage made so far, see NoteStore.getAllocatedBytes() */
+    long getAllocatedNoteBytes() {
+        return notes.getAllocatedBytes();
+    }
+
+    // --- Notes ---
+
+    /** @return the id of the added note */
+    public int addNote(LoopNote note) {
         if (note == null) {
             throw new IllegalArgumentException("note cannot be null");
         }
-        notes.add(note);
+        return addNote(note.getPitch().getMidiNumber(), note.getStartBeat().getValue(),
+                note.getDurationBeats().getValue(), note.getVelocity().getValue());
+    }
+
+    /**
+     * Adds a note without creating any objects; the values are checked as the value
+     * classes would.
+     *
+     * @return the id of the added note
+     */
+    public int addNote(int pitch, double startBeat, double durationBeats, int velocity) {
+        checkNote(pitch, startBeat, durationBeats, velocity);
+        int id = notes.add(pitch, startBeat, durationBeats, velocity);
+        revision++;
+        if (!listeners.isEmpty()) {
+            fireNoteAdded(new LoopNote(this, id, pitch, startBeat, durationBeats, velocity));
+        }
+        return id;
+    }
+
+    /**
+     * Removes a note taken from this loop (e.g. from getNotes()).
+     *
+     * @return true if it was still in the loop
+     */
+    public boolean removeNote(LoopNote note) {
+        return note != null && note.isFrom(this) && removeNoteById(note.getId());
+    }
+
+    /**
+     * Finds the note by id in constant time, then takes it out of the note index.
+     *
+     * @return true if a note with the id was in the loop
+     */
+    public boolean removeNoteById(int id) {
+        if (!notes.contains(id)) {
+            return false;
+        }
+        LoopNote removed = listeners.isEmpty() ? null : getNoteById(id);
+        notes.remove(id);
+        revision++;
+        if (removed != null) {
+            fireNoteRemoved(removed);
+        }
+        return true;
+    }
+
+    /**
+     * Makes all the edits in the batch at once, removals first, and tells listeners
+     * with a single onNotesChanged call. If a note to remove is not in the loop, or is
+     * removed twice, the loop is left as it was.
+     *
+     * @return the ids of the added notes, in the order they were put in the batch
+     */
+    public int[] apply(NoteBatch batch) {
+        if (batch == null) {
+            throw new IllegalArgumentException("batch cannot be null");
+        }
+        int removedCount = batch.getRemovedCount();
+        BitSet removedIds = new BitSet();
+        for (int i = 0; i < removedCount; i++) {
+            int id = batch.removedId(i);
+            if (id >= notes.getNextId()) {
+                throw new IllegalArgumentException("note " + id + " is not in the loop");
+            }
+            if (removedIds.get(id)) {
+                throw new IllegalArgumentException("note " + id + " is removed twice");
+            }
+            removedIds.set(id);
+        }
+        // In id order, so the id table is read in order rather than all over
+        for (int id = removedIds.nextSetBit(0); id >= 0; id = removedIds.nextSetBit(id + 1)) {
+            if (!notes.contains(id)) {
+                throw new IllegalArgumentException("note " + id + " is not in the loop");
+            }
+        }
+        if (batch.isEmpty()) {
+            return new int[0];
+        }
+
+        boolean notify = !listeners.isEmpty();
+        List<LoopNote> removed = new ArrayList<>(notify ? removedCount : 0);
+        if (notify) {
+            for (int i = 0; i < removedCount; i++) {
+                removed.add(getNoteById(batch.removedId(i)));
+            }
+        }
+
+        int addedCount = batch.getAddedCount();
+        int[] ids = new int[addedCount];
+        notes.apply(batch, removedIds, ids);
+
+        List<LoopNote> added = new ArrayList<>(notify ? addedCount : 0);
+        if (notify) {
+            for (int i = 0; i < addedCount; i++) {
+                added.add(new LoopNote(this, ids[i], batch.pitch(i), batch.startBeat(i),
+                        batch.durationBeats(i), batch.velocity(i)));
+            }
+        }
+
+        revision++;
+        if (notify) {
+            fireNotesChanged(Collections.unmodifiableList(removed), Collections.unmodifiableList(added));
+        }
+        return ids;
+    }
+
+    /** Checks note values as the value classes (Pitch, BeatPosition, ...) would. */
+    static void checkNote(int pitch, double startBeat, double durationBeats, int velocity) {
+        if (pitch < 0 || pitch > 127) {
+            throw new IllegalArgumentException("MIDI pitch must be in [0, 127], got: " + pitch);
+        }
+        if (startBeat < 0.0) {
+            throw new IllegalArgumentException("Beat position cannot be negative, got: " + startBeat);
+        }
+        if (!(durationBeats > 0.0)) {
+            throw new IllegalArgumentException("Beat duration must be positive, got: " + durationBeats);
+        }
+        if (velocity < 0 || velocity > 127) {
+            throw new IllegalArgumentException("Velocity must be in [0, 127], got: " + velocity);
+        }
+    }
+
+    public void addLoopListener(LoopListener listener) {
+        if (listener == null) {
+            throw new IllegalArgumentException("listener cannot be null");
+        }
+        listeners.add(listener);
+    }
+
+    public void removeLoopListener(LoopListener listener) {
+        listeners.remove(listener);
+    }
+
+    public int getNoteCount() {
+        return notes.size();
     }
 
-    public void removeNote(LoopNote note) {
-        notes.remove(note);
+    /** @return the index of the note with the id, or -1 if it is not in the loop */
+    public int indexOfNote(int id) {
+        return notes.indexOf(id);
     }
 
+    public int getNoteId(int index) {
+        return notes.id(Objects.checkIndex(index, notes.size()));
+    }
+
+    public int getNotePitch(int index) {
+        return notes.pitch(Objects.checkIndex(index, notes.size()));
+    }
+
+    public double getNoteStartBeat(int index) {
+        return notes.startBeat(Objects.checkIndex(index, notes.size()));
+    }
+
+    public double getNoteDurationBeats(int index) {
+        return notes.durationBeats(Objects.checkIndex(index, notes.size()));
+    }
+
+    public int getNoteVelocity(int index) {
+        return notes.velocity(Objects.checkIndex(index, notes.size()));
+    }
+
+    /**
+     * Visits, in start order, every note sounding somewhere in [fromBeat, toBeat): notes
+     * that start before toBeat and end after fromBeat.
+     */
+    public void visitNotes(double fromBeat, double toBeat, NoteVisitor visitor) {
+        checkQuery(fromBeat, toBeat, visitor);
+        notes.visit(fromBeat, toBeat, -1, visitor);
+    }
+
+    /** Like visitNotes(fromBeat, toBeat, visitor), but only notes of the given pitch. */
+    public void visitNotes(int pitch, double fromBeat, double toBeat, NoteVisitor visitor) {
+        if (pitch < 0 || pitch > 127) {
+            throw new IllegalArgumentException("MIDI pitch must be in [0, 127], got: " + pitch);
+        }
+        checkQuery(fromBeat, toBeat, visitor);
+        notes.visit(fromBeat, toBeat, pitch, visitor);
+    }
+
+    /** Visits every note sounding at the beat: started at or before it, ending after it. */
+    public void visitNotesAt(double beat, NoteVisitor visitor) {
+        visitNotes(beat, Math.nextUp(beat), visitor);
+    }
+
+    private static void checkQuery(double fromBeat, double toBeat, NoteVisitor visitor) {
+        if (visitor == null) {
+            throw new IllegalArgumentException("visitor cannot be null");
+        }
+        if (!(fromBeat <= toBeat)) {
+            throw new IllegalArgumentException("Beat range cannot be reversed, got: ["
+                    + fromBeat + ", " + toBeat + ")");
+        }
+    }
+
+    /** @return a LoopNote view of the note at the index */
+    public LoopNote getNote(int index) {
+        Objects.checkIndex(index, notes.size());
+        return new LoopNote(this, notes.id(index), notes.pitch(index), notes.startBeat(index),
+                notes.durationBeats(index), notes.velocity(index));
+    }
+
+    /** @return a LoopNote view of the note with the id, or null if it is not in the loop */
+    public LoopNote getNoteById(int id) {
+        int index = notes.indexOf(id);
+        return index < 0 ? null : getNote(index);
+    }
+
+    /** @return true if a note with the id is in the loop */
+    public boolean containsNote(int id) {
+        return notes.contains(id);
+    }
+
+    /**
+     * @return a read-only list that reflects the loop's notes as they are when read,
+     *         making a LoopNote for each element accessed
+     */
     public List<LoopNote> getNotes() {
-        return Collections.unmodifiableList(notes);
+        return noteList;
+    }
+
+    private final List<LoopNote> noteList = new NoteList();
+
+    private final class NoteList extends AbstractList<LoopNote> implements RandomAccess {
+        @Override
+        public LoopNote get(int index) {
+            return getNote(index);
+        }
+
+        @Override
+        public int size() {
+            return notes.size();
+        }
+    }
+
+    /** Copies every note's values, in index order, into the arrays; see NoteStore.copyTo(). */
+    void copyNotesTo(int[] ids, byte[] pitches, double[] starts, double[] durations, byte[] velocities) {
+        notes.copyTo(ids, pitches, starts, durations, velocities);
+    }
+
+    /** @return the approximate heap bytes held by the notes */
+    public long estimateNoteBytes() {
+        return notes.estimateBytes();
+    }
+
+    /**
+     * Counter that changes whenever the loop is edited, so derived data
+     * (e.g. a compiled playback timeline) knows when it is stale.
+     */
+    public long getRevision() {
+        return revision;
     }
 
     // --- Measures ---
@@ -48,14 +382,20 @@ public class Loop {
             throw new IllegalArgumentException("measures cannot be null");
         }
         this.measures = measures;
+        revision++;
+        fireMeasuresChanged();
     }
 
     public void addMeasures(int delta) {
         this.measures = this.measures.add(delta);
+        revision++;
+        fireMeasuresChanged();
     }
 
     public void subtractMeasures(int delta) {
         this.measures = this.measures.subtract(delta);
+        revision++;
+        fireMeasuresChanged();
     }
 
     // --- Tempo ---
@@ -69,13 +409,51 @@ public class Loop {
             throw new IllegalArgumentException("tempo cannot be null");
         }
         this.tempo = tempo;
+        revision++;
+        fireTempoChanged();
     }
 
     public void increaseTempo(double deltaBpm) {
         this.tempo = this.tempo.add(deltaBpm);
+        revision++;
+        fireTempoChanged();
     }
 
     public void decreaseTempo(double deltaBpm) {
         this.tempo = this.tempo.subtract(deltaBpm);
+        revision++;
+        fireTempoChanged();
+    }
+
+    // --- Notifications ---
+
+    private void fireNoteAdded(LoopNote note) {
+        for (LoopListener listener : listeners) {
+            listener.onNoteAdded(note);
+        }
+    }
+
+    private void fireNoteRemoved(LoopNote note) {
+        for (LoopListener listener : listeners) {
+            listener.onNoteRemoved(note);
+        }
+    }
+
+    private void fireNotesChanged(List<LoopNote> removed, List<LoopNote> added) {
+        for (LoopListener listener : listeners) {
+            listener.onNotesChanged(removed, added);
+        }
+    }
+
+    private void fireMeasuresChanged() {
+        for (LoopListener listener : listeners) {
+            listener.onMeasuresChanged(measures);
+        }
+    }
+
+    private void fireTempoChanged() {
+        for (LoopListener listener : listeners) {
+            listener.onTempoChanged(tempo);
+        }
     }
 }
@@ -0,0 +1,211 @@
+package model;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Undo and redo for a Loop. Listens to the loop and takes a LoopVersion after every edit
+ * (a NoteBatch is one edit); undo() and redo() restore the version before or after the
+ * current one.
+ * <p>
+ * Versions share all the notes an edit did not touch, so a step holds only what its edit
+ * copied: O(log n) for a single note, not the whole loop. Moving through the history
+ * swaps versions and tells the loop's listeners only about the notes that differ.
+ * <p>
+ * The history is bounded by the estimated heap size of its steps, not by their number:
+ * when an edit pushes it over its budget, the oldest steps are dropped first.
+ * <p>
+ * Not thread-safe; use it on the thread that edits the loop.
+ */
+public class LoopHistory implements LoopListener {
+
+    /** Rough heap cost of a step apart from the notes it holds. */
+    static final long BYTES_PER_STEP = 128;
+
+    private static final class Step {
+        final LoopVersion version;
+        /** Estimated bytes the versions on either side of the step differ by. */
+        final long bytes;
+
+        Step(LoopVersion version, long bytes) {
+            this.version = version;
+            this.bytes = bytes;
+        }
+    }
+
+    private final Loop loop;
+    private final long maxBytes;
+
+    // Newest first
+    private final Deque<Step> undoSteps = new ArrayDeque<>();
+    private final Deque<Step> redoSteps = new ArrayDeque<>();
+    private LoopVersion current;
+    /** The loop's allocated note bytes when current was taken. */
+    private long allocatedAtCurrent;
+    private long retainedBytes;
+    private long droppedSteps;
+    private boolean restoring;
+
+    /**
+     * Starts recording the loop's edits; its state now is the oldest one undo() goes back to.
+     *
+     * @param maxBytes upper bound on the estimated heap size of the steps kept
+     */
+    public LoopHistory(Loop loop, long maxBytes) {
+        if (loop == null) {
+            throw new IllegalArgumentException("loop cannot be null");
+        }
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("maxBytes must be positive, got: " + maxBytes);
+        }
+        this.loop = loop;
+        this.maxBytes = maxBytes;
+        markCurrent();
+        loop.addLoopListener(this);
+    }
+
+    /**
+     * Puts the loop back to its state before the last edit.
+     *
+     * @return false if there is nothing to undo
+     */
+    public boolean undo() {
+        Step step = undoSteps.poll();
+        if (step == null) {
+            return false;
+        }
+        redoSteps.push(new Step(current, step.bytes));
+        restore(step.version);
+        return true;
+    }
+
+    /**
+     * Makes the last undone edit again.
+     *
+     * @return false if there is nothing to redo
+     */
+    public boolean redo() {
+        Step step = redoSteps.poll();
+        if (step == null) {
+            return false;
+        }
+        undoSteps.push(new Step(current, step.bytes));
+        restore(step.version);
+        return true;
+    }
+
+    public boolean canUndo() {
+        return !undoSteps.isEmpty();
+    }
+
+    public boolean canRedo() {
+        return !redoSteps.isEmpty();
+    }
+
+    public int getUndoCount() {
+        return undoSteps.size();
+    }
+
+    public int getRedoCount() {
+        return redoSteps.size();
+    }
+
+    /** @return the loop's state after the last edit, undo or redo */
+    public LoopVersion getCurrentVersion() {
+        return current;
+    }
+
+    /** @return the estimated heap bytes held by the steps */
+    public long getRetainedBytes() {
+        return retainedBytes;
+    }
+
+    /** @return how many of the oldest steps were dropped to stay within the budget */
+    public long getDroppedStepCount() {
+        return droppedSteps;
+    }
+
+    /** Forgets every step; the loop's state now becomes the oldest one. */
+    public void clear() {
+        undoSteps.clear();
+        redoSteps.clear();
+        retainedBytes = 0;
+        markCurrent();
+    }
+
+    /** Stops listening to the loop. */
+    public void close() {
+        loop.removeLoopListener(this);
+    }
+
+    @Override
+    public String toString() {
+        return "LoopHistory(" + undoSteps.size() + " undo, " + redoSteps.size() + " redo, "
+                + retainedBytes + "/" + maxBytes + " bytes, dropped " + droppedSteps + ")";
+    }
+
+    // --- LoopListener: every edit becomes a step ---
+
+    @Override
+    public void onNoteAdded(LoopNote note) {
+        record();
+    }
+
+    @Override
+    public void onNoteRemoved(LoopNote note) {
+        record();
+    }
+
+    @Override
+    public void onNotesChanged(List<LoopNote> removed, List<LoopNote> added) {
+        record();
+    }
+
+    @Override
+    public void onMeasuresChanged(Measures measures) {
+        record();
+    }
+
+    @Override
+    public void onTempoChanged(Tempo tempo) {
+        record();
+    }
+
+    private void record() {
+        if (restoring) {
+            return;
+        }
+        long bytes = BYTES_PER_STEP + Math.max(0, loop.getAllocatedNoteBytes() - allocatedAtCurrent);
+        undoSteps.push(new Step(current, bytes));
+        retainedBytes += bytes;
+        for (Step dropped : redoSteps) {
+            retainedBytes -= dropped.bytes;
+        }
+        redoSteps.clear();
+        markCurrent();
+
+        Iterator<Step> oldestFirst = undoSteps.descendingIterator();
+        while (retainedBytes > maxBytes && oldestFirst.hasNext()) {
+            retainedBytes -= oldestFirst.next().bytes;
+            oldestFirst.remove();
+            droppedSteps++;
+        }
+    }
+
+    private void restore(LoopVersion version) {
+        restoring = true;
+        try {
+            loop.restore(version);
+        } finally {
+            restoring = false;
+        }
+        markCurrent();
+    }
+
+    private void markCurrent() {
+        current = loop.snapshot();
+        allocatedAtCurrent = loop.getAllocatedNoteBytes();
+    }
+}
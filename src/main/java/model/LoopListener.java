@@ -0,0 +1,23 @@
+package model;
+
+import java.util.List;
+
+/**
+ * Told about every edit made to a Loop, right after it happens and on the thread that
+ * made it.
+ */
+public interface LoopListener {
+    void onNoteAdded(LoopNote note);
+
+    void onNoteRemoved(LoopNote note);
+
+    /**
+     * A NoteBatch was applied: the removed notes were taken out first, then the added
+     * ones put in. Replaced notes are in both lists, under the same id.
+     */
+    void onNotesChanged(List<LoopNote> removed, List<LoopNote> added);
+
+    void onMeasuresChanged(Measures measures);
+
+    void onTempoChanged(Tempo tempo);
+}
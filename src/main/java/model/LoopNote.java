@@ -1,11 +1,22 @@
 package model;
 
+/**
+ * One note's values. Loops store notes in primitive columns; the LoopNotes they hand out
+ * are small snapshots made on demand, which remember the id of the note they came from
+ * so it can be removed again.
+ */
 public class LoopNote {
 
-    private final Pitch pitch;
-    private final BeatPosition startBeat;
-    private final BeatDuration durationBeats;
-    private final Velocity velocity;
+    /** Id of a note that was not taken from a loop. */
+    public static final int NO_ID = -1;
+
+    private final int pitch;
+    private final double startBeat;
+    private final double durationBeats;
+    private final int velocity;
+
+    private final Loop owner;
+    private final int id;
 
     public LoopNote(Pitch pitch,
                     BeatPosition startBeat,
@@ -14,25 +25,47 @@ public class LoopNote {
         if (pitch == null || startBeat == null || durationBeats == null || velocity == null) {
             throw new IllegalArgumentException("LoopNote fields cannot be null");
         }
+        this.pitch = pitch.getMidiNumber();
+        this.startBeat = startBeat.getValue();
+        this.durationBeats = durationBeats.getValue();
+        this.velocity = velocity.getValue();
+        this.owner = null;
+        this.id = NO_ID;
+    }
+
+    /** A view of a note in a loop; the values are already valid. */
+    LoopNote(Loop owner, int id, int pitch, double startBeat, double durationBeats, int velocity) {
         this.pitch = pitch;
         this.startBeat = startBeat;
         this.durationBeats = durationBeats;
         this.velocity = velocity;
+        this.owner = owner;
+        this.id = id;
     }
 
     public Pitch getPitch() {
-        return pitch;
+        return Pitch.of(pitch);
     }
 
     public BeatPosition getStartBeat() {
-        return startBeat;
+        return new BeatPosition(startBeat);
     }
 
     public BeatDuration getDurationBeats() {
-        return durationBeats;
+        return new BeatDuration(durationBeats);
     }
 
     public Velocity getVelocity() {
-        return velocity;
+        return Velocity.of(velocity);
+    }
+
+    /** @return the id of the note in the loop it was taken from, or {@link #NO_ID} */
+    public int getId() {
+        return id;
+    }
+
+    /** @return true if this note was taken from the given loop */
+    boolean isFrom(Loop loop) {
+        return owner == loop && id != NO_ID;
     }
 }
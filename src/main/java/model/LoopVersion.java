@@ -0,0 +1,71 @@
+package model;
+
+import java.util.Objects;
+
+/**
+ * An immutable state of a Loop: its measures, tempo and notes as they were when
+ * {@link Loop#snapshot()} was called. A version shares its notes with the loop and with
+ * the other versions taken from it, so taking one costs constant time and memory.
+ * <p>
+ * Nothing can change a version, so it can be read from any thread, e.g. handed to the
+ * playback thread, while the loop it came from goes on being edited.
+ */
+public final class LoopVersion {
+
+    private final Measures measures;
+    private final Tempo tempo;
+    private final NoteStore notes;
+    private final long revision;
+
+    LoopVersion(Measures measures, Tempo tempo, NoteStore notes, long revision) {
+        this.measures = measures;
+        this.tempo = tempo;
+        this.notes = notes;
+        this.revision = revision;
+    }
+
+    public Measures getMeasures() {
+        return measures;
+    }
+
+    public Tempo getTempo() {
+        return tempo;
+    }
+
+    /** @return the revision the loop had when the version was taken */
+    public long getRevision() {
+        return revision;
+    }
+
+    public int getNoteCount() {
+        return notes.size();
+    }
+
+    /** Visits, in start order, every note sounding somewhere in [fromBeat, toBeat). */
+    public void visitNotes(double fromBeat, double toBeat, NoteVisitor visitor) {
+        if (visitor == null) {
+            throw new IllegalArgumentException("visitor cannot be null");
+        }
+        if (!(fromBeat <= toBeat)) {
+            throw new IllegalArgumentException("Beat range cannot be reversed, got: ["
+                    + fromBeat + ", " + toBeat + ")");
+        }
+        notes.visit(fromBeat, toBeat, -1, visitor);
+    }
+
+    /** @return the note at the index, as in Loop.getNote() */
+    public LoopNote getNote(int index) {
+        Objects.checkIndex(index, notes.size());
+        return new LoopNote(null, notes.id(index), notes.pitch(index), notes.startBeat(index),
+                notes.durationBeats(index), notes.velocity(index));
+    }
+
+    /** @return a new, editable loop in this state, made in constant time */
+    public Loop toLoop() {
+        return new Loop(measures, tempo, notes.copy());
+    }
+
+    NoteStore notes() {
+        return notes;
+    }
+}
@@ -0,0 +1,148 @@
+package model;
+
+import java.util.Arrays;
+
+/**
+ * Note edits to make to a Loop in one step with {@link Loop#apply(NoteBatch)}: notes to
+ * remove by id, notes to add, and notes to replace, which keep their ids. The loop is
+ * edited all at once, with one notification, and not at all if any id is wrong.
+ * <p>
+ * Values are checked as they are put in the batch. A batch can be applied more than
+ * once, e.g. to paste the same notes into several loops.
+ */
+public final class NoteBatch {
+
+    private int[] removedIds = new int[16];
+    private int removedCount;
+
+    private int[] addedIds = new int[16];
+    private byte[] pitches = new byte[16];
+    private double[] starts = new double[16];
+    private double[] durations = new double[16];
+    private byte[] velocities = new byte[16];
+    private int addedCount;
+
+    public NoteBatch() {
+    }
+
+    /**
+     * A batch that replaces the first {@code count} notes of the columns, taking the
+     * arrays over rather than copying them. The values must already be valid.
+     */
+    static NoteBatch replacing(int count, int[] ids, byte[] pitches, double[] starts, double[] durations,
+                               byte[] velocities) {
+        NoteBatch batch = new NoteBatch();
+        batch.removedIds = Arrays.copyOf(ids, count);
+        batch.removedCount = count;
+        batch.addedIds = ids;
+        batch.pitches = pitches;
+        batch.starts = starts;
+        batch.durations = durations;
+        batch.velocities = velocities;
+        batch.addedCount = count;
+        return batch;
+    }
+
+    public NoteBatch add(int pitch, double startBeat, double durationBeats, int velocity) {
+        return put(LoopNote.NO_ID, pitch, startBeat, durationBeats, velocity);
+    }
+
+    public NoteBatch add(LoopNote note) {
+        if (note == null) {
+            throw new IllegalArgumentException("note cannot be null");
+        }
+        return add(note.getPitch().getMidiNumber(), note.getStartBeat().getValue(),
+                note.getDurationBeats().getValue(), note.getVelocity().getValue());
+    }
+
+    public NoteBatch remove(int id) {
+        if (id < 0) {
+            throw new IllegalArgumentException("note id cannot be negative, got: " + id);
+        }
+        if (removedCount == removedIds.length) {
+            removedIds = Arrays.copyOf(removedIds, removedCount * 2);
+        }
+        removedIds[removedCount++] = id;
+        return this;
+    }
+
+    /** Removes a note taken from the loop the batch will be applied to. */
+    public NoteBatch remove(LoopNote note) {
+        if (note == null) {
+            throw new IllegalArgumentException("note cannot be null");
+        }
+        return remove(note.getId());
+    }
+
+    /** Changes the note with the id to the given values; it keeps its id. */
+    public NoteBatch replace(int id, int pitch, double startBeat, double durationBeats, int velocity) {
+        Loop.checkNote(pitch, startBeat, durationBeats, velocity);
+        remove(id);
+        return put(id, pitch, startBeat, durationBeats, velocity);
+    }
+
+    public boolean isEmpty() {
+        return removedCount == 0 && addedCount == 0;
+    }
+
+    /** @return how many notes the batch adds, counting replacements */
+    public int getAddedCount() {
+        return addedCount;
+    }
+
+    /** @return how many notes the batch removes, counting replacements */
+    public int getRemovedCount() {
+        return removedCount;
+    }
+
+    public void clear() {
+        removedCount = 0;
+        addedCount = 0;
+    }
+
+    // ---- Read by Loop.apply ----
+
+    int removedId(int index) {
+        return removedIds[index];
+    }
+
+    /** @return the id a replacement keeps, or LoopNote.NO_ID for a new note */
+    int addedId(int index) {
+        return addedIds[index];
+    }
+
+    int pitch(int index) {
+        return pitches[index];
+    }
+
+    double startBeat(int index) {
+        return starts[index];
+    }
+
+    double durationBeats(int index) {
+        return durations[index];
+    }
+
+    int velocity(int index) {
+        return velocities[index];
+    }
+
+    private NoteBatch put(int id, int pitch, double startBeat, double durationBeats, int velocity) {
+        Loop.checkNote(pitch, startBeat, durationBeats, velocity);
+        if (addedCount == addedIds.length) {
+            int capacity = addedCount * 2;
+            addedIds = Arrays.copyOf(addedIds, capacity);
+            pitches = Arrays.copyOf(pitches, capacity);
+            starts = Arrays.copyOf(starts, capacity);
+            durations = Arrays.copyOf(durations, capacity);
+            velocities = Arrays.copyOf(velocities, capacity);
+        }
+        addedIds[addedCount] = id;
+        pitches[addedCount] = (byte) pitch;
+        starts[addedCount] = startBeat;
+        durations[addedCount] = durationBeats;
+        velocities[addedCount] = (byte) velocity;
+        addedCount++;
+        return this;
+    }
+}
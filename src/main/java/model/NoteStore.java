@@ -0,0 +1,934 @@
+package model;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The notes of a Loop, kept in primitive columns instead of one object per note: start
+ * and duration in beats, pitch and velocity as bytes, and a stable id that a note keeps
+ * for as long as it is in the loop.
+ * <p>
+ * The columns are cut into leaves of up to 64 notes, which form a B+ tree ordered by
+ * start beat, then id. Every node also knows how many notes it holds, the latest end
+ * beat among them and which pitches occur, so a query for the notes overlapping a span
+ * of beats (or only those of one pitch) descends only into subtrees that can hold
+ * matches. Adding or removing a note touches one leaf and its path to the root.
+ * <p>
+ * The start beat of every note is also kept by id (see IdTable), so a note is found by
+ * id in constant time and then in the tree by its key.
+ * <p>
+ * Copies are persistent: copy() shares the whole tree, and from then on neither store
+ * changes a node the other can see. Each store marks the nodes it made since it was last
+ * copied as its own and edits only those in place; an edit that reaches a shared node
+ * copies it, and the path above it, first. So a copy takes constant time and each edit
+ * after it costs O(log n) new memory.
+ * <p>
+ * Indexes are ranks in that order. Looking one up remembers its leaf, so scanning by
+ * increasing index reads a leaf's columns in a row instead of descending every time.
+ * <p>
+ * A store may be read from several threads at once, as long as none edits it.
+ */
+final class NoteStore {
+
+    static final int LEAF_CAPACITY = 64;
+    static final int BRANCH_CAPACITY = 32;
+    /** A node smaller than this is merged into a neighbour if the two fit in one. */
+    private static final int LEAF_MINIMUM = LEAF_CAPACITY / 4;
+    private static final int BRANCH_MINIMUM = BRANCH_CAPACITY / 4;
+
+    /** Batches editing more than 1/32 of the notes rebuild the tree instead of editing it. */
+    private static final int REBUILD_DIVISOR = 32;
+
+    /** Rough heap cost of a leaf: its columns, their array headers and the node itself. */
+    private static final long LEAF_BYTES = LEAF_CAPACITY * (2L * Double.BYTES + 2 + Integer.BYTES) + 5 * 16 + 56;
+    /** Rough heap cost of a branch: its child array and the node itself. */
+    private static final long BRANCH_BYTES = BRANCH_CAPACITY * 4L + 16 + 56;
+
+    /** Nodes carrying this token were made by this store since it was last copied. */
+    private Object edit = new Object();
+    /** Estimated bytes of all nodes this store and the ones it was copied from made. */
+    private long allocatedBytes;
+    private Node root = new Leaf(this);
+    private int nextId;
+    /** Start beat of each note by id; NaN once the note is removed. */
+    private IdTable startsById = new IdTable();
+    /** Where the last index lookup landed; replaced as a whole, never updated in place. */
+    private Position cursor;
+
+    /** @return a copy with the same ids, sharing every node with this store */
+    NoteStore copy() {
+        NoteStore copy = new NoteStore();
+        copy.allocatedBytes = allocatedBytes;
+        copy.root = root;
+        copy.nextId = nextId;
+        copy.startsById = startsById.copy();
+        edit = new Object();
+        return copy;
+    }
+
+    /** Never hands out an id below the given one, e.g. one a later version of the notes used. */
+    void reserveIds(int nextId) {
+        this.nextId = Math.max(this.nextId, nextId);
+    }
+
+    int getNextId() {
+        return nextId;
+    }
+
+    /** Adds a note; the values must already be valid. @return its id */
+    int add(int pitch, double startBeat, double durationBeats, int velocity) {
+        int id = newId();
+        add(id, pitch, startBeat, durationBeats, velocity);
+        return id;
+    }
+
+    private int newId() {
+        return nextId++;
+    }
+
+    /**
+     * Adds a note under an id this store handed out before and that is not in use,
+     * e.g. to put a changed note back under its own id.
+     */
+    void add(int id, int pitch, double startBeat, double durationBeats, int velocity) {
+        startsById.set(id, startBeat);
+        root = own(root);
+        Node split = insert(root, pitch, startBeat, durationBeats, velocity, id);
+        if (split != null) {
+            Branch branch = new Branch(this);
+            branch.children[0] = root;
+            branch.children[1] = split;
+            branch.count = 2;
+            branch.summarize();
+            root = branch;
+        }
+        cursor = null;
+    }
+
+    /** @return true if a note with the id is in the store */
+    boolean contains(int id) {
+        return id >= 0 && id < nextId && !Double.isNaN(startsById.get(id));
+    }
+
+    /**
+     * Removes the note with the given id.
+     *
+     * @return false if there is no such note
+     */
+    boolean remove(int id) {
+        if (!contains(id)) {
+            return false;
+        }
+        root = own(root);
+        remove(root, startsById.get(id), id);
+        startsById.set(id, Double.NaN);
+        while (root instanceof Branch && ((Branch) root).count <= 1) {
+            Branch branch = (Branch) root;
+            root = branch.count == 0 ? new Leaf(this) : branch.children[0];
+        }
+        cursor = null;
+        return true;
+    }
+
+    /**
+     * Makes the edits of a batch that has been checked: every id it removes is in the
+     * store, once. A small batch is applied note by note; one that touches a sizable
+     * share of the notes rebuilds the tree, and the id table, in a single pass instead.
+     *
+     * @param removedIds the ids the batch removes
+     * @param ids        receives the ids of the added notes
+     */
+    void apply(NoteBatch batch, BitSet removedIds, int[] ids) {
+        int removedCount = batch.getRemovedCount();
+        int addedCount = batch.getAddedCount();
+        if ((long) (removedCount + addedCount) * REBUILD_DIVISOR > size()) {
+            rebuild(batch, removedIds, ids);
+            return;
+        }
+        for (int i = 0; i < removedCount; i++) {
+            remove(batch.removedId(i));
+        }
+        for (int i = 0; i < addedCount; i++) {
+            int id = batch.addedId(i);
+            if (id == LoopNote.NO_ID) {
+                id = newId();
+            }
+            add(id, batch.pitch(i), batch.startBeat(i), batch.durationBeats(i), batch.velocity(i));
+            ids[i] = id;
+        }
+    }
+
+    /** @return the index of the note with the id, or -1 if it is not in the store */
+    int indexOf(int id) {
+        if (!contains(id)) {
+            return -1;
+        }
+        double startBeat = startsById.get(id);
+        Node node = root;
+        int offset = 0;
+        while (node instanceof Branch) {
+            Branch branch = (Branch) node;
+            int child = branch.childFor(startBeat, id);
+            for (int i = 0; i < child; i++) {
+                offset += branch.children[i].size;
+            }
+            node = branch.children[child];
+        }
+        return offset + ((Leaf) node).insertionPoint(startBeat, id) - 1;
+    }
+
+    int size() {
+        return root.size;
+    }
+
+    int id(int index) {
+        Position position = locate(index);
+        return position.leaf.ids[index - position.offset];
+    }
+
+    double startBeat(int index) {
+        Position position = locate(index);
+        return position.leaf.starts[index - position.offset];
+    }
+
+    double durationBeats(int index) {
+        Position position = locate(index);
+        return position.leaf.durations[index - position.offset];
+    }
+
+    int pitch(int index) {
+        Position position = locate(index);
+        return position.leaf.pitches[index - position.offset];
+    }
+
+    int velocity(int index) {
+        Position position = locate(index);
+        return position.leaf.velocities[index - position.offset];
+    }
+
+    /**
+     * Visits, in order, every note that starts before {@code toBeat} and ends after
+     * {@code fromBeat}.
+     *
+     * @param pitch only notes of this pitch, or -1 for all
+     */
+    void visit(double fromBeat, double toBeat, int pitch, NoteVisitor visitor) {
+        visit(root, fromBeat, toBeat, pitch, visitor);
+    }
+
+    /** Copies every note, in order, into the arrays, which must have room for size() notes. */
+    void copyTo(int[] ids, byte[] pitches, double[] starts, double[] durations, byte[] velocities) {
+        copyTo(root, 0, ids, pitches, starts, durations, velocities);
+    }
+
+    /** @return the approximate heap bytes held by the tree and the id table, shared or not */
+    long estimateBytes() {
+        return estimateBytes(root) + startsById.estimateBytes();
+    }
+
+    /**
+     * @return the estimated bytes of all nodes this store, and the ones it was copied from,
+     *         made; the difference between two readings is what the edits in between cost
+     */
+    long getAllocatedBytes() {
+        return allocatedBytes + startsById.getAllocatedBytes();
+    }
+
+    /**
+     * Reports how this store differs from another version of the same notes: notes only
+     * in the other one to {@code removed}, notes only in this one to {@code added}; a
+     * changed note is both. Subtrees the two versions still share are skipped
+     * unread, so the cost follows the size of the change rather than of the loop.
+     */
+    void diff(NoteStore from, NoteVisitor removed, NoteVisitor added) {
+        // Walk both trees down a level at a time, dropping the subtrees they share.
+        // All leaves are at the same depth, so first bring the taller tree level.
+        List<Node> beforeNodes = new ArrayList<>(List.of(from.root));
+        List<Node> afterNodes = new ArrayList<>(List.of(root));
+        int beforeHeight = height(from.root);
+        int afterHeight = height(root);
+        for (; beforeHeight > afterHeight; beforeHeight--) {
+            beforeNodes = children(beforeNodes);
+        }
+        for (; afterHeight > beforeHeight; afterHeight--) {
+            afterNodes = children(afterNodes);
+        }
+        dropShared(beforeNodes, afterNodes);
+        for (; afterHeight > 0; afterHeight--) {
+            beforeNodes = children(beforeNodes);
+            afterNodes = children(afterNodes);
+            dropShared(beforeNodes, afterNodes);
+        }
+        List<Leaf> before = new ArrayList<>(beforeNodes.size());
+        List<Leaf> after = new ArrayList<>(afterNodes.size());
+        for (Node node : beforeNodes) {
+            before.add((Leaf) node);
+        }
+        for (Node node : afterNodes) {
+            after.add((Leaf) node);
+        }
+
+        // Notes of the leaves only the other version has, as leaf index * capacity + offset
+        Map<Integer, Integer> gone = new HashMap<>();
+        for (int l = 0; l < before.size(); l++) {
+            Leaf leaf = before.get(l);
+            for (int i = 0; i < leaf.size; i++) {
+                gone.put(leaf.ids[i], l * LEAF_CAPACITY + i);
+            }
+        }
+        for (Leaf leaf : after) {
+            for (int i = 0; i < leaf.size; i++) {
+                Integer at = gone.get(leaf.ids[i]);
+                if (at != null && before.get(at / LEAF_CAPACITY).sameNote(at % LEAF_CAPACITY, leaf, i)) {
+                    gone.remove(leaf.ids[i]); // only moved to a copied leaf
+                } else {
+                    leaf.visit(i, added);
+                }
+            }
+        }
+        for (Leaf leaf : before) {
+            for (int i = 0; i < leaf.size; i++) {
+                if (gone.containsKey(leaf.ids[i])) {
+                    leaf.visit(i, removed);
+                }
+            }
+        }
+    }
+
+    // ---- Tree ----
+
+    private abstract static class Node {
+        /** Token of the store that may change this node in place. */
+        final Object edit;
+        int size;
+        double firstStart;
+        int firstId;
+        double maxEnd = Double.NEGATIVE_INFINITY;
+        /** Bit p set if pitch p (0-63) occurs. */
+        long pitchesLow;
+        /** Bit p - 64 set if pitch p (64-127) occurs. */
+        long pitchesHigh;
+
+        boolean mayContain(int pitch) {
+            if (pitch < 0) {
+                return true;
+            }
+            long bits = pitch < 64 ? pitchesLow >>> pitch : pitchesHigh >>> (pitch - 64);
+            return (bits & 1) != 0;
+        }
+
+        /** @return true if the node's first note comes after the given one */
+        boolean startsAfter(double startBeat, int id) {
+            return compare(firstStart, firstId, startBeat, id) > 0;
+        }
+
+        Node(NoteStore owner, long bytes) {
+            edit = owner.edit;
+            owner.allocatedBytes += bytes;
+        }
+
+        /** Copies the summary of another node. */
+        void summarizeAs(Node other) {
+            size = other.size;
+            firstStart = other.firstStart;
+            firstId = other.firstId;
+            maxEnd = other.maxEnd;
+            pitchesLow = other.pitchesLow;
+            pitchesHigh = other.pitchesHigh;
+        }
+    }
+
+    private static final class Leaf extends Node {
+        final double[] starts = new double[LEAF_CAPACITY];
+        final double[] durations = new double[LEAF_CAPACITY];
+        final byte[] pitches = new byte[LEAF_CAPACITY];
+        final byte[] velocities = new byte[LEAF_CAPACITY];
+        final int[] ids = new int[LEAF_CAPACITY];
+
+        Leaf(NoteStore owner) {
+            super(owner, LEAF_BYTES);
+        }
+
+        /** A copy of the other leaf that the owner may change. */
+        Leaf(NoteStore owner, Leaf other) {
+            this(owner);
+            System.arraycopy(other.starts, 0, starts, 0, other.size);
+            System.arraycopy(other.durations, 0, durations, 0, other.size);
+            System.arraycopy(other.pitches, 0, pitches, 0, other.size);
+            System.arraycopy(other.velocities, 0, velocities, 0, other.size);
+            System.arraycopy(other.ids, 0, ids, 0, other.size);
+            summarizeAs(other);
+        }
+
+        /** @return the index of the first note after the given one */
+        int insertionPoint(double startBeat, int id) {
+            int lo = 0;
+            int hi = size;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (compare(starts[mid], ids[mid], startBeat, id) <= 0) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            return lo;
+        }
+
+        void insert(int at, int pitch, double startBeat, double durationBeats, int velocity, int id) {
+            int tail = size - at;
+            System.arraycopy(starts, at, starts, at + 1, tail);
+            System.arraycopy(durations, at, durations, at + 1, tail);
+            System.arraycopy(pitches, at, pitches, at + 1, tail);
+            System.arraycopy(velocities, at, velocities, at + 1, tail);
+            System.arraycopy(ids, at, ids, at + 1, tail);
+            starts[at] = startBeat;
+            durations[at] = durationBeats;
+            pitches[at] = (byte) pitch;
+            velocities[at] = (byte) velocity;
+            ids[at] = id;
+            size++;
+        }
+
+        void removeAt(int at) {
+            int tail = size - at - 1;
+            System.arraycopy(starts, at + 1, starts, at, tail);
+            System.arraycopy(durations, at + 1, durations, at, tail);
+            System.arraycopy(pitches, at + 1, pitches, at, tail);
+            System.arraycopy(velocities, at + 1, velocities, at, tail);
+            System.arraycopy(ids, at + 1, ids, at, tail);
+            size--;
+        }
+
+        /** Moves notes [from, size) to the end of the other leaf. */
+        void moveTo(Leaf other, int from) {
+            int count = size - from;
+            System.arraycopy(starts, from, other.starts, other.size, count);
+            System.arraycopy(durations, from, other.durations, other.size, count);
+            System.arraycopy(pitches, from, other.pitches, other.size, count);
+            System.arraycopy(velocities, from, other.velocities, other.size, count);
+            System.arraycopy(ids, from, other.ids, other.size, count);
+            other.size += count;
+            size = from;
+        }
+
+        void summarize() {
+            double end = Double.NEGATIVE_INFINITY;
+            long low = 0;
+            long high = 0;
+            for (int i = 0; i < size; i++) {
+                end = Math.max(end, starts[i] + durations[i]);
+                int pitch = pitches[i];
+                if (pitch < 64) {
+                    low |= 1L << pitch;
+                } else {
+                    high |= 1L << (pitch - 64);
+                }
+            }
+            maxEnd = end;
+            pitchesLow = low;
+            pitchesHigh = high;
+            if (size > 0) {
+                firstStart = starts[0];
+                firstId = ids[0];
+            }
+        }
+
+        /** @return true if note i here and note j of the other leaf have the same id and values */
+        boolean sameNote(int i, Leaf other, int j) {
+            return ids[i] == other.ids[j]
+                    && Double.compare(starts[i], other.starts[j]) == 0
+                    && Double.compare(durations[i], other.durations[j]) == 0
+                    && pitches[i] == other.pitches[j]
+                    && velocities[i] == other.velocities[j];
+        }
+
+        void visit(int i, NoteVisitor visitor) {
+            visitor.visitNote(ids[i], pitches[i], starts[i], durations[i], velocities[i]);
+        }
+    }
+
+    private static final class Branch extends Node {
+        final Node[] children = new Node[BRANCH_CAPACITY];
+        int count;
+
+        Branch(NoteStore owner) {
+            super(owner, BRANCH_BYTES);
+        }
+
+        /** A copy of the other branch, sharing its children, that the owner may change. */
+        Branch(NoteStore owner, Branch other) {
+            this(owner);
+            System.arraycopy(other.children, 0, children, 0, other.count);
+            count = other.count;
+            summarizeAs(other);
+        }
+
+        /** @return the child whose range holds the given note */
+        int childFor(double startBeat, int id) {
+            int child = 0;
+            while (child + 1 < count && !children[child + 1].startsAfter(startBeat, id)) {
+                child++;
+            }
+            return child;
+        }
+
+        void insertChild(int at, Node child) {
+            System.arraycopy(children, at, children, at + 1, count - at);
+            children[at] = child;
+            count++;
+        }
+
+        void removeChild(int at) {
+            System.arraycopy(children, at + 1, children, at, count - at - 1);
+            children[--count] = null;
+        }
+
+        /** Moves children [from, count) to the end of the other branch. */
+        void moveTo(Branch other, int from) {
+            int moved = count - from;
+            System.arraycopy(children, from, other.children, other.count, moved);
+            other.count += moved;
+            Arrays.fill(children, from, count, null);
+            count = from;
+        }
+
+        void summarize() {
+            int notes = 0;
+            double end = Double.NEGATIVE_INFINITY;
+            long low = 0;
+            long high = 0;
+            for (int i = 0; i < count; i++) {
+                Node child = children[i];
+                notes += child.size;
+                end = Math.max(end, child.maxEnd);
+                low |= child.pitchesLow;
+                high |= child.pitchesHigh;
+            }
+            size = notes;
+            maxEnd = end;
+            pitchesLow = low;
+            pitchesHigh = high;
+            if (count > 0) {
+                firstStart = children[0].firstStart;
+                firstId = children[0].firstId;
+            }
+        }
+
+    }
+
+    private static int compare(double start, int id, double otherStart, int otherId) {
+        int byStart = Double.compare(start, otherStart);
+        return byStart != 0 ? byStart : Integer.compare(id, otherId);
+    }
+
+    /** @return the node itself if this store may change it, otherwise its own copy of it */
+    private Node own(Node node) {
+        if (node.edit == edit) {
+            return node;
+        }
+        return node instanceof Leaf ? new Leaf(this, (Leaf) node) : new Branch(this, (Branch) node);
+    }
+
+    /** @return the branch's child at the index, made the store's own first */
+    private Node ownChild(Branch branch, int child) {
+        Node node = own(branch.children[child]);
+        branch.children[child] = node;
+        return node;
+    }
+
+    /**
+     * Inserts into a node this store owns.
+     *
+     * @return the node's new right sibling if it had to split, otherwise null
+     */
+    private Node insert(Node node, int pitch, double startBeat, double durationBeats, int velocity, int id) {
+        if (node instanceof Leaf) {
+            Leaf leaf = (Leaf) node;
+            int at = leaf.insertionPoint(startBeat, id);
+            if (leaf.size < LEAF_CAPACITY) {
+                leaf.insert(at, pitch, startBeat, durationBeats, velocity, id);
+                leaf.summarize();
+                return null;
+            }
+            // Appending leaves the full leaf as it is, so notes added in order pack leaves full
+            int keep = at == leaf.size ? at : leaf.size / 2;
+            Leaf right = new Leaf(this);
+            leaf.moveTo(right, keep);
+            if (at < keep || (at == keep && keep < LEAF_CAPACITY)) {
+                leaf.insert(at, pitch, startBeat, durationBeats, velocity, id);
+            } else {
+                right.insert(at - keep, pitch, startBeat, durationBeats, velocity, id);
+            }
+            leaf.summarize();
+            right.summarize();
+            return right;
+        }
+
+        Branch branch = (Branch) node;
+        int child = branch.childFor(startBeat, id);
+        Node split = insert(ownChild(branch, child), pitch, startBeat, durationBeats, velocity, id);
+        Branch right = null;
+        if (split != null) {
+            int at = child + 1;
+            if (branch.count < BRANCH_CAPACITY) {
+                branch.insertChild(at, split);
+            } else {
+                int keep = at == branch.count ? at : branch.count / 2;
+                right = new Branch(this);
+                branch.moveTo(right, keep);
+                if (at < keep || (at == keep && keep < BRANCH_CAPACITY)) {
+                    branch.insertChild(at, split);
+                } else {
+                    right.insertChild(at - keep, split);
+                }
+                right.summarize();
+            }
+        }
+        branch.summarize();
+        return right;
+    }
+
+    /** Removes from a node this store owns. */
+    private boolean remove(Node node, double startBeat, int id) {
+        if (node instanceof Leaf) {
+            Leaf leaf = (Leaf) node;
+            int at = leaf.insertionPoint(startBeat, id) - 1;
+            if (at < 0 || leaf.ids[at] != id || Double.compare(leaf.starts[at], startBeat) != 0) {
+                return false;
+            }
+            leaf.removeAt(at);
+            leaf.summarize();
+            return true;
+        }
+
+        Branch branch = (Branch) node;
+        int child = branch.childFor(startBeat, id);
+        if (!remove(ownChild(branch, child), startBeat, id)) {
+            return false;
+        }
+        rebalance(branch, child);
+        branch.summarize();
+        return true;
+    }
+
+    /** Drops the child if it is empty, or merges it with a neighbour if it got small. */
+    private void rebalance(Branch branch, int child) {
+        Node node = branch.children[child];
+        if (node.size == 0) {
+            branch.removeChild(child);
+            return;
+        }
+        if (branch.count < 2) {
+            return;
+        }
+        int left = child > 0 ? child - 1 : child;
+        Node into = branch.children[left];
+        Node from = branch.children[left + 1];
+        if (node instanceof Leaf) {
+            Leaf leaf = (Leaf) node;
+            if (leaf.size < LEAF_MINIMUM && into.size + from.size <= LEAF_CAPACITY) {
+                Leaf target = (Leaf) ownChild(branch, left);
+                ((Leaf) ownChild(branch, left + 1)).moveTo(target, 0);
+                target.summarize();
+                branch.removeChild(left + 1);
+            }
+        } else {
+            Branch small = (Branch) node;
+            if (small.count < BRANCH_MINIMUM && ((Branch) into).count + ((Branch) from).count <= BRANCH_CAPACITY) {
+                Branch target = (Branch) ownChild(branch, left);
+                ((Branch) ownChild(branch, left + 1)).moveTo(target, 0);
+                target.summarize();
+                branch.removeChild(left + 1);
+            }
+        }
+    }
+
+    private static void visit(Node node, double fromBeat, double toBeat, int pitch, NoteVisitor visitor) {
+        if (node instanceof Leaf) {
+            Leaf leaf = (Leaf) node;
+            for (int i = 0; i < leaf.size && leaf.starts[i] < toBeat; i++) {
+                if (leaf.starts[i] + leaf.durations[i] > fromBeat && (pitch < 0 || leaf.pitches[i] == pitch)) {
+                    visitor.visitNote(leaf.ids[i], leaf.pitches[i], leaf.starts[i], leaf.durations[i],
+                            leaf.velocities[i]);
+                }
+            }
+            return;
+        }
+        Branch branch = (Branch) node;
+        for (int i = 0; i < branch.count; i++) {
+            Node child = branch.children[i];
+            if (child.firstStart >= toBeat) {
+                break;
+            }
+            if (child.maxEnd > fromBeat && child.mayContain(pitch)) {
+                visit(child, fromBeat, toBeat, pitch, visitor);
+            }
+        }
+    }
+
+    /** @return the index after the node's last note */
+    private static int copyTo(Node node, int at, int[] ids, byte[] pitches, double[] starts, double[] durations,
+                              byte[] velocities) {
+        if (node instanceof Leaf) {
+            Leaf leaf = (Leaf) node;
+            System.arraycopy(leaf.ids, 0, ids, at, leaf.size);
+            System.arraycopy(leaf.pitches, 0, pitches, at, leaf.size);
+            System.arraycopy(leaf.starts, 0, starts, at, leaf.size);
+            System.arraycopy(leaf.durations, 0, durations, at, leaf.size);
+            System.arraycopy(leaf.velocities, 0, velocities, at, leaf.size);
+            return at + leaf.size;
+        }
+        Branch branch = (Branch) node;
+        for (int i = 0; i < branch.count; i++) {
+            at = copyTo(branch.children[i], at, ids, pitches, starts, durations, velocities);
+        }
+        return at;
+    }
+
+    private static int height(Node node) {
+        int height = 0;
+        for (; node instanceof Branch; node = ((Branch) node).children[0]) {
+            height++;
+        }
+        return height;
+    }
+
+    /** @return the children of the branches, in order */
+    private static List<Node> children(List<Node> branches) {
+        List<Node> children = new ArrayList<>();
+        for (Node node : branches) {
+            Branch branch = (Branch) node;
+            children.addAll(Arrays.asList(branch.children).subList(0, branch.count));
+        }
+        return children;
+    }
+
+    /** Removes the nodes that are in both lists from both. */
+    private static void dropShared(List<Node> some, List<Node> others) {
+        Set<Node> inSome = Collections.newSetFromMap(new IdentityHashMap<>());
+        inSome.addAll(some);
+        Set<Node> shared = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (Node node : others) {
+            if (inSome.contains(node)) {
+                shared.add(node);
+            }
+        }
+        if (!shared.isEmpty()) {
+            some.removeIf(shared::contains);
+            others.removeIf(shared::contains);
+        }
+    }
+
+    private static long estimateBytes(Node node) {
+        if (node instanceof Leaf) {
+            return LEAF_BYTES;
+        }
+        Branch branch = (Branch) node;
+        long bytes = BRANCH_BYTES;
+        for (int i = 0; i < branch.count; i++) {
+            bytes += estimateBytes(branch.children[i]);
+        }
+        return bytes;
+    }
+
+    // ---- Bulk rebuild ----
+
+    private void rebuild(NoteBatch batch, BitSet removed, int[] ids) {
+        int addedCount = batch.getAddedCount();
+        int[] order = new int[addedCount];
+        for (int i = 0; i < addedCount; i++) {
+            int id = batch.addedId(i);
+            ids[i] = id == LoopNote.NO_ID ? newId() : id;
+            order[i] = i;
+        }
+        sortByKey(order, batch, ids);
+
+        // Ids are scattered over the tree, so the table is filled flat, then built in order
+        double[] starts = new double[nextId];
+        Arrays.fill(starts, Double.NaN);
+        Builder builder = new Builder(this, batch, ids, order, removed, starts);
+        builder.merge(root);
+        builder.addPendingBefore(Double.POSITIVE_INFINITY, Integer.MAX_VALUE);
+        root = builder.build();
+        startsById = IdTable.of(starts, startsById.getAllocatedBytes());
+        cursor = null;
+    }
+
+    /** Merges the surviving notes of the old tree with the sorted added ones into full leaves. */
+    private static final class Builder {
+        private final NoteStore store;
+        private final NoteBatch batch;
+        private final int[] ids;
+        private final int[] order;
+        private final BitSet removed;
+        /** Receives the start beat of every note, by id. */
+        private final double[] startsById;
+        private final List<Node> leaves;
+        private Leaf leaf;
+        private int next;
+
+        Builder(NoteStore store, NoteBatch batch, int[] ids, int[] order, BitSet removed, double[] startsById) {
+            this.store = store;
+            this.leaves = new ArrayList<>((store.size() + order.length) / LEAF_CAPACITY + 1);
+            this.leaf = new Leaf(store);
+            this.batch = batch;
+            this.ids = ids;
+            this.order = order;
+            this.removed = removed;
+            this.startsById = startsById;
+        }
+
+        void merge(Node node) {
+            if (node instanceof Leaf) {
+                Leaf old = (Leaf) node;
+                for (int i = 0; i < old.size; i++) {
+                    int id = old.ids[i];
+                    if (!removed.get(id)) {
+                        addPendingBefore(old.starts[i], id);
+                        append(id, old.pitches[i], old.starts[i], old.durations[i], old.velocities[i]);
+                    }
+                }
+                return;
+            }
+            Branch branch = (Branch) node;
+            for (int i = 0; i < branch.count; i++) {
+                merge(branch.children[i]);
+            }
+        }
+
+        /** Appends the added notes that come before the given one. */
+        void addPendingBefore(double startBeat, int id) {
+            while (next < order.length) {
+                int k = order[next];
+                if (compare(batch.startBeat(k), ids[k], startBeat, id) >= 0) {
+                    return;
+                }
+                append(ids[k], batch.pitch(k), batch.startBeat(k), batch.durationBeats(k), batch.velocity(k));
+                next++;
+            }
+        }
+
+        private void append(int id, int pitch, double startBeat, double durationBeats, int velocity) {
+            if (leaf.size == LEAF_CAPACITY) {
+                leaf.summarize();
+                leaves.add(leaf);
+                leaf = new Leaf(store);
+            }
+            int at = leaf.size++;
+            leaf.starts[at] = startBeat;
+            leaf.durations[at] = durationBeats;
+            leaf.pitches[at] = (byte) pitch;
+            leaf.velocities[at] = (byte) velocity;
+            leaf.ids[at] = id;
+            startsById[id] = startBeat;
+        }
+
+        Node build() {
+            if (leaf.size > 0 || leaves.isEmpty()) {
+                leaf.summarize();
+                leaves.add(leaf);
+            }
+            List<Node> level = leaves;
+            while (level.size() > 1) {
+                // Spread the children evenly, so no branch is left with just one
+                int branches = (level.size() + BRANCH_CAPACITY - 1) / BRANCH_CAPACITY;
+                List<Node> parents = new ArrayList<>(branches);
+                int from = 0;
+                for (int b = 0; b < branches; b++) {
+                    int to = (int) ((long) level.size() * (b + 1) / branches);
+                    Branch branch = new Branch(store);
+                    for (int i = from; i < to; i++) {
+                        branch.children[branch.count++] = level.get(i);
+                    }
+                    branch.summarize();
+                    parents.add(branch);
+                    from = to;
+                }
+                level = parents;
+            }
+            return level.get(0);
+        }
+    }
+
+    /**
+     * Merge sort of batch indexes by start beat, then id. The keys move along with the
+     * indexes, so merging reads memory in order. Runs that are already in order are not
+     * merged, so a batch that is (nearly) sorted, as one made by walking the loop's notes
+     * in order is, sorts in (nearly) linear time.
+     */
+    private static void sortByKey(int[] order, NoteBatch batch, int[] ids) {
+        int n = order.length;
+        double[] starts = new double[n];
+        int[] keyIds = new int[n];
+        for (int i = 0; i < n; i++) {
+            starts[i] = batch.startBeat(order[i]);
+            keyIds[i] = ids[order[i]];
+        }
+        int[] scratchOrder = new int[n];
+        double[] scratchStarts = new double[n];
+        int[] scratchIds = new int[n];
+        for (int width = 1; width < n; width *= 2) {
+            for (int lo = 0; lo < n - width; lo += 2 * width) {
+                int mid = lo + width;
+                int hi = Math.min(lo + 2 * width, n);
+                if (compare(starts[mid - 1], keyIds[mid - 1], starts[mid], keyIds[mid]) <= 0) {
+                    continue;
+                }
+                System.arraycopy(order, lo, scratchOrder, lo, hi - lo);
+                System.arraycopy(starts, lo, scratchStarts, lo, hi - lo);
+                System.arraycopy(keyIds, lo, scratchIds, lo, hi - lo);
+                int left = lo;
+                int right = mid;
+                for (int k = lo; k < hi; k++) {
+                    int from = left < mid && (right >= hi || compare(scratchStarts[left], scratchIds[left],
+                            scratchStarts[right], scratchIds[right]) <= 0) ? left++ : right++;
+                    order[k] = scratchOrder[from];
+                    starts[k] = scratchStarts[from];
+                    keyIds[k] = scratchIds[from];
+                }
+            }
+        }
+    }
+
+    // ---- Index lookup ----
+
+    private static final class Position {
+        final Leaf leaf;
+        /** Index of the leaf's first note. */
+        final int offset;
+
+        Position(Leaf leaf, int offset) {
+            this.leaf = leaf;
+            this.offset = offset;
+        }
+    }
+
+    private Position locate(int index) {
+        Position position = cursor;
+        if (position != null && index >= position.offset && index < position.offset + position.leaf.size) {
+            return position;
+        }
+        Node node = root;
+        int offset = 0;
+        while (node instanceof Branch) {
+            Branch branch = (Branch) node;
+            int child = 0;
+            while (index - offset >= branch.children[child].size) {
+                offset += branch.children[child].size;
+                child++;
+            }
+            node = branch.children[child];
+        }
+        position = new Position((Leaf) node, offset);
+        cursor = position;
+        return position;
+    }
+}
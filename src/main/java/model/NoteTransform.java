@@ -0,0 +1,327 @@
+package model;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A pipeline of edits to make to many notes at once: transpose, quantize, swing,
+ * velocity scale and curve, and time-stretch, applied in the order they were added.
+ * <pre>
+ *     new NoteTransform().quantize(0.25, 1.0).swing(0.25, 1.0 / 3).scaleVelocity(0.8).apply(loop);
+ * </pre>
+ * apply() copies the selected notes out of the loop into primitive columns, runs the
+ * pipeline over them in chunks on a fork-join pool, and hands the notes that changed
+ * back to the loop as one NoteBatch: one revision, one notification, one undo step.
+ * Notes keep their ids.
+ * <p>
+ * If any note would end up invalid (e.g. transposed above pitch 127, or stretched to
+ * before beat 0), apply() throws and the loop is left as it was. Velocities are clamped
+ * to [0, 127] instead, as Velocity.scaled() does.
+ */
+public final class NoteTransform {
+
+    /** Below this many notes a task transforms them itself instead of splitting. */
+    private static final int NOTES_PER_TASK = 8192;
+
+    /** One stage of the pipeline, run over a range of the columns. */
+    private interface Stage {
+        void apply(Columns notes, int begin, int end);
+    }
+
+    /** The selected notes' values, one array per field. */
+    private static final class Columns {
+        final int[] ids;
+        final byte[] pitches;
+        final double[] starts;
+        final double[] durations;
+        final byte[] velocities;
+        int count;
+
+        Columns(int capacity) {
+            ids = new int[capacity];
+            pitches = new byte[capacity];
+            starts = new double[capacity];
+            durations = new double[capacity];
+            velocities = new byte[capacity];
+        }
+
+        Columns(Columns other) {
+            ids = other.ids.clone();
+            pitches = other.pitches.clone();
+            starts = other.starts.clone();
+            durations = other.durations.clone();
+            velocities = other.velocities.clone();
+            count = other.count;
+        }
+
+        boolean sameNote(int i, Columns other) {
+            return pitches[i] == other.pitches[i]
+                    && Double.compare(starts[i], other.starts[i]) == 0
+                    && Double.compare(durations[i], other.durations[i]) == 0
+                    && velocities[i] == other.velocities[i];
+        }
+
+        void move(int from, int to) {
+            ids[to] = ids[from];
+            pitches[to] = pitches[from];
+            starts[to] = starts[from];
+            durations[to] = durations[from];
+            velocities[to] = velocities[from];
+        }
+    }
+
+    private final List<Stage> stages = new ArrayList<>();
+
+    /** Moves every note up (or down, if negative) by the given number of semitones. */
+    public NoteTransform transpose(int semitones) {
+        stages.add((notes, begin, end) -> {
+            for (int i = begin; i < end; i++) {
+                int pitch = notes.pitches[i] + semitones;
+                if (pitch < 0 || pitch > 127) {
+                    throw new IllegalArgumentException("MIDI pitch must be in [0, 127], got: " + pitch);
+                }
+                notes.pitches[i] = (byte) pitch;
+            }
+        });
+        return this;
+    }
+
+    /**
+     * Moves note starts toward the nearest multiple of the grid.
+     *
+     * @param gridBeats grid spacing, e.g. 0.25 for sixteenths in 4/4
+     * @param strength  how far to move, from 0 (not at all) to 1 (onto the grid)
+     */
+    public NoteTransform quantize(double gridBeats, double strength) {
+        checkGrid(gridBeats);
+        if (!(strength >= 0.0 && strength <= 1.0)) {
+            throw new IllegalArgumentException("strength must be in [0, 1], got: " + strength);
+        }
+        stages.add((notes, begin, end) -> {
+            for (int i = begin; i < end; i++) {
+                double start = notes.starts[i];
+                double target = Math.rint(start / gridBeats) * gridBeats;
+                notes.starts[i] = start + (target - start) * strength;
+            }
+        });
+        return this;
+    }
+
+    /**
+     * Delays the off-beats of each pair of grid steps. Time within a pair is warped so
+     * its first step lasts (1 + amount) grid steps and its second (1 - amount): notes on
+     * the pair's downbeat stay put, notes on the off-beat move later by amount * grid,
+     * and the order of notes never changes.
+     *
+     * @param gridBeats length of one step, e.g. 0.5 to swing eighths
+     * @param amount    0 for straight time; 1/3 turns even eighths into triplet swing
+     */
+    public NoteTransform swing(double gridBeats, double amount) {
+        checkGrid(gridBeats);
+        if (!(amount >= 0.0 && amount < 1.0)) {
+            throw new IllegalArgumentException("amount must be in [0, 1), got: " + amount);
+        }
+        double pair = 2 * gridBeats;
+        double split = gridBeats * (1 + amount);
+        stages.add((notes, begin, end) -> {
+            for (int i = begin; i < end; i++) {
+                double start = notes.starts[i];
+                double pairStart = Math.floor(start / pair) * pair;
+                double phase = start - pairStart;
+                double swung = phase < gridBeats
+                        ? phase * (1 + amount)
+                        : split + (phase - gridBeats) * (1 - amount);
+                notes.starts[i] = pairStart + swung;
+            }
+        });
+        return this;
+    }
+
+    /** Multiplies velocities by the factor, clamped to [0, 127], as Velocity.scaled() does. */
+    public NoteTransform scaleVelocity(double factor) {
+        if (!(factor >= 0.0) || Double.isInfinite(factor)) {
+            throw new IllegalArgumentException("factor must be zero or more, got: " + factor);
+        }
+        stages.add((notes, begin, end) -> {
+            for (int i = begin; i < end; i++) {
+                long scaled = Math.round(notes.velocities[i] * factor);
+                notes.velocities[i] = (byte) Math.max(0, Math.min(127, scaled));
+            }
+        });
+        return this;
+    }
+
+    /**
+     * Bends velocities along a power curve, keeping 0 and 127 in place: an exponent
+     * above 1 softens quiet notes more than loud ones, below 1 lifts them.
+     */
+    public NoteTransform curveVelocity(double exponent) {
+        if (!(exponent > 0.0) || Double.isInfinite(exponent)) {
+            throw new IllegalArgumentException("exponent must be positive, got: " + exponent);
+        }
+        // Only 128 inputs, so compute each once
+        byte[] curve = new byte[128];
+        for (int velocity = 0; velocity < curve.length; velocity++) {
+            curve[velocity] = (byte) Math.round(127 * Math.pow(velocity / 127.0, exponent));
+        }
+        stages.add((notes, begin, end) -> {
+            for (int i = begin; i < end; i++) {
+                notes.velocities[i] = curve[notes.velocities[i]];
+            }
+        });
+        return this;
+    }
+
+    /**
+     * Scales time around a beat: starts move away from (or toward) it, and durations
+     * grow (or shrink) by the same factor. The loop's length is not changed.
+     *
+     * @param factor     above 1 to slow down, below 1 to speed up
+     * @param originBeat the beat that stays put, e.g. the first selected note's start
+     */
+    public NoteTransform stretch(double factor, double originBeat) {
+        if (!(factor > 0.0) || Double.isInfinite(factor)) {
+            throw new IllegalArgumentException("factor must be positive, got: " + factor);
+        }
+        if (!(originBeat >= 0.0) || Double.isInfinite(originBeat)) {
+            throw new IllegalArgumentException("originBeat must be a beat in the loop, got: " + originBeat);
+        }
+        stages.add((notes, begin, end) -> {
+            for (int i = begin; i < end; i++) {
+                double start = originBeat + (notes.starts[i] - originBeat) * factor;
+                if (start < 0.0) {
+                    throw new IllegalArgumentException("Beat position cannot be negative, got: " + start);
+                }
+                notes.starts[i] = start;
+                notes.durations[i] *= factor;
+            }
+        });
+        return this;
+    }
+
+    /** Transforms every note of the loop, on the common fork-join pool. */
+    public void apply(Loop loop) {
+        apply(loop, null, ForkJoinPool.commonPool());
+    }
+
+    /** Transforms the notes with the given ids, on the common fork-join pool. */
+    public void apply(Loop loop, int[] noteIds) {
+        apply(loop, noteIds, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Transforms the notes with the given ids, or all notes if {@code noteIds} is null,
+     * on the given pool. Ids that are not in the loop are an error.
+     */
+    public void apply(Loop loop, int[] noteIds, ForkJoinPool pool) {
+        if (loop == null) {
+            throw new IllegalArgumentException("loop cannot be null");
+        }
+        if (pool == null) {
+            throw new IllegalArgumentException("pool cannot be null");
+        }
+        Columns notes = select(loop, noteIds);
+        if (notes.count == 0 || stages.isEmpty()) {
+            return;
+        }
+
+        Columns before = new Columns(notes);
+        if (notes.count <= NOTES_PER_TASK) {
+            run(notes, 0, notes.count);
+        } else {
+            // Rethrown here as it was thrown, not wrapped by the pool
+            AtomicReference<IllegalArgumentException> failure = new AtomicReference<>();
+            pool.invoke(new TransformTask(notes, 0, notes.count, failure));
+            if (failure.get() != null) {
+                throw failure.get();
+            }
+        }
+
+        // Only notes that changed go in the batch
+        int changed = 0;
+        for (int i = 0; i < notes.count; i++) {
+            if (!notes.sameNote(i, before)) {
+                notes.move(i, changed++);
+            }
+        }
+        if (changed > 0) {
+            loop.apply(NoteBatch.replacing(changed, notes.ids, notes.pitches, notes.starts, notes.durations,
+                    notes.velocities));
+        }
+    }
+
+    private static Columns select(Loop loop, int[] noteIds) {
+        Columns notes = new Columns(loop.getNoteCount());
+        loop.copyNotesTo(notes.ids, notes.pitches, notes.starts, notes.durations, notes.velocities);
+        if (noteIds == null) {
+            notes.count = loop.getNoteCount();
+            return notes;
+        }
+        BitSet selected = new BitSet();
+        for (int id : noteIds) {
+            if (!loop.containsNote(id)) {
+                throw new IllegalArgumentException("note " + id + " is not in the loop");
+            }
+            selected.set(id);
+        }
+        int count = 0;
+        for (int i = 0; i < loop.getNoteCount(); i++) {
+            if (selected.get(notes.ids[i])) {
+                notes.move(i, count++);
+            }
+        }
+        notes.count = count;
+        return notes;
+    }
+
+    private void run(Columns notes, int begin, int end) {
+        for (Stage stage : stages) {
+            stage.apply(notes, begin, end);
+        }
+    }
+
+    private static void checkGrid(double gridBeats) {
+        if (!(gridBeats > 0.0) || Double.isInfinite(gridBeats)) {
+            throw new IllegalArgumentException("gridBeats must be positive, got: " + gridBeats);
+        }
+    }
+
+    /** Runs the pipeline over a range of the columns, splitting it in half until it is small. */
+    private final class TransformTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Columns notes;
+        private final int begin;
+        private final int end;
+        private final AtomicReference<IllegalArgumentException> failure;
+
+        TransformTask(Columns notes, int begin, int end, AtomicReference<IllegalArgumentException> failure) {
+            this.notes = notes;
+            this.begin = begin;
+            this.end = end;
+            this.failure = failure;
+        }
+
+        @Override
+        protected void compute() {
+            if (end - begin > NOTES_PER_TASK) {
+                int middle = (begin + end) >>> 1;
+                invokeAll(new TransformTask(notes, begin, middle, failure),
+                        new TransformTask(notes, middle, end, failure));
+                return;
+            }
+            if (failure.get() != null) {
+                return; // the result is thrown away anyway
+            }
+            try {
+                run(notes, begin, end);
+            } catch (IllegalArgumentException e) {
+                failure.compareAndSet(null, e);
+            }
+        }
+    }
+}
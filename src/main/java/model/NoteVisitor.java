@@ -0,0 +1,9 @@
+package model;
+
+/**
+ * Receives the notes found by a Loop range query, one call per note, without a
+ * LoopNote being made for each. It must not edit the loop it is visiting.
+ */
+public interface NoteVisitor {
+    void visitNote(int id, int pitch, double startBeat, double durationBeats, int velocity);
+}
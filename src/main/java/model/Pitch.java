@@ -6,8 +6,26 @@ package model;
  */
 public final class Pitch {
 
+    private static final Pitch[] CACHE = new Pitch[128];
+
+    static {
+        for (int i = 0; i < CACHE.length; i++) {
+            CACHE[i] = new Pitch(i);
+        }
+    }
+
     private final int midiNumber;
 
+    /**
+     * Returns the shared Pitch for the given MIDI number without allocating.
+     */
+    public static Pitch of(int midiNumber) {
+        if (midiNumber < 0 || midiNumber > 127) {
+            throw new IllegalArgumentException("MIDI pitch must be in [0, 127], got: " + midiNumber);
+        }
+        return CACHE[midiNumber];
+    }
+
     public Pitch(int midiNumber) {
         if (midiNumber < 0 || midiNumber > 127) {
             throw new IllegalArgumentException("MIDI pitch must be in [0, 127], got: " + midiNumber);
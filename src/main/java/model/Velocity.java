@@ -6,8 +6,26 @@ package model;
  */
 public final class Velocity {
 
+    private static final Velocity[] CACHE = new Velocity[128];
+
+    static {
+        for (int i = 0; i < CACHE.length; i++) {
+            CACHE[i] = new Velocity(i);
+        }
+    }
+
     private final int value;
 
+    /**
+     * Returns the shared Velocity for the given value without allocating.
+     */
+    public static Velocity of(int value) {
+        if (value < 0 || value > 127) {
+            throw new IllegalArgumentException("Velocity must be in [0, 127], got: " + value);
+        }
+        return CACHE[value];
+    }
+
     public Velocity(int value) {
         if (value < 0 || value > 127) {
             throw new IllegalArgumentException("Velocity must be in [0, 127], got: " + value);
@@ -0,0 +1,133 @@
+package model.persistence;
+
+import model.Loop;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Saves loops on a background thread, so serializing and writing a large loop never
+ * blocks the caller.
+ * <p>
+ * The loop is snapshotted on the calling thread, so it can keep being edited while
+ * the save runs. Requests that arrive while an earlier one is still queued are
+ * coalesced into it, whatever file they name: only the newest snapshot is written,
+ * once, under the queued request's name, and every caller is told the result. Writes
+ * go through the wrapped storage one at a time.
+ */
+public class AsyncLoopSaver {
+
+    /** Told how a save ended. Called on the saver thread. */
+    public interface SaveCallback {
+        void onSaved(String fileName);
+
+        void onSaveFailed(String fileName, Exception error);
+    }
+
+    /** A queued save that has not started writing yet. */
+    private static final class PendingSave {
+        final String fileName;
+        Loop snapshot;
+        final List<SaveCallback> callbacks = new ArrayList<>();
+
+        PendingSave(String fileName, Loop snapshot) {
+            this.fileName = fileName;
+            this.snapshot = snapshot;
+        }
+    }
+
+    private final LoopStorage storage;
+    private final ExecutorService executor;
+    private PendingSave pending;   // guarded by this
+    private long coalescedCount;   // guarded by this
+
+    public AsyncLoopSaver(LoopStorage storage) {
+        if (storage == null) {
+            throw new IllegalArgumentException("storage cannot be null");
+        }
+        this.storage = storage;
+        this.executor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "AsyncLoopSaver");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Snapshots the loop and queues it to be saved under the given name, or merges it
+     * into the save already queued, which keeps its own name.
+     *
+     * @param callback told when the write finishes or fails, with the name written; may be null
+     */
+    public void save(Loop loop, String fileName, SaveCallback callback) {
+        if (loop == null) {
+            throw new IllegalArgumentException("loop cannot be null");
+        }
+        if (fileName == null || fileName.trim().isEmpty()) {
+            throw new IllegalArgumentException("fileName cannot be null/empty");
+        }
+        Loop snapshot = loop.copy();
+
+        synchronized (this) {
+            if (pending != null) {
+                // Not written yet: the newer snapshot replaces it
+                pending.snapshot = snapshot;
+                if (callback != null) {
+                    pending.callbacks.add(callback);
+                }
+                coalescedCount++;
+                return;
+            }
+            pending = new PendingSave(fileName, snapshot);
+            if (callback != null) {
+                pending.callbacks.add(callback);
+            }
+        }
+        executor.execute(this::write);
+    }
+
+    /** @return how many save requests were merged into an already queued one */
+    public synchronized long getCoalescedCount() {
+        return coalescedCount;
+    }
+
+    /**
+     * Finishes the saves already requested, then stops the saver thread.
+     *
+     * @return true if they all finished within the timeout
+     */
+    public boolean close(long timeout, TimeUnit unit) throws InterruptedException {
+        executor.shutdown();
+        return executor.awaitTermination(timeout, unit);
+    }
+
+    private void write() {
+        PendingSave save;
+        synchronized (this) {
+            // Requests arriving from now on queue a new write
+            save = pending;
+            pending = null;
+        }
+        String fileName = save.fileName;
+
+        Exception failure = null;
+        try {
+            storage.saveLoop(save.snapshot, fileName);
+        } catch (IOException | RuntimeException e) {
+            System.err.println("AsyncLoopSaver: failed to save " + fileName + ": " + e.getMessage());
+            failure = e;
+        }
+
+        for (SaveCallback callback : save.callbacks) {
+            if (failure == null) {
+                callback.onSaved(fileName);
+            } else {
+                callback.onSaveFailed(fileName, failure);
+            }
+        }
+    }
+}
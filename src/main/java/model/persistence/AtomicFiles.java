@@ -0,0 +1,73 @@
+package model.persistence;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Crash-safe file replacement: the data goes to a temp file in the same directory,
+ * is forced to disk, and is then moved over the target in one atomic rename. A crash
+ * at any point leaves either the old file or the new one, never a truncated file.
+ */
+final class AtomicFiles {
+
+    private AtomicFiles() {
+    }
+
+    /** Produces the file contents by writing them to a channel. */
+    interface Contents {
+        void writeTo(WritableByteChannel channel) throws IOException;
+    }
+
+    static void write(Path target, ByteBuffer contents) throws IOException {
+        write(target, channel -> {
+            while (contents.hasRemaining()) {
+                channel.write(contents);
+            }
+        });
+    }
+
+    /** Streams the contents into the temp file, so they never need to be held in memory whole. */
+    static void write(Path target, Contents contents) throws IOException {
+        Path directory = target.toAbsolutePath().getParent();
+        // Hidden and not ending in a loop extension, so the library ignores it
+        Path temp = directory.resolve("." + target.getFileName() + ".tmp");
+
+        try {
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                contents.writeTo(channel);
+                channel.force(true);
+            }
+            move(temp, target);
+        } catch (IOException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+        syncDirectory(directory);
+    }
+
+    /** Renames the file over the target, atomically where the file system allows it. */
+    static void move(Path source, Path target) throws IOException {
+        try {
+            Files.move(source, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /** Makes the rename itself durable where the platform allows it. */
+    private static void syncDirectory(Path directory) {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // Not supported on every platform (e.g. Windows); the file data is already on disk
+        }
+    }
+}
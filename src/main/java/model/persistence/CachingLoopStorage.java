@@ -0,0 +1,224 @@
+package model.persistence;
+
+import model.Loop;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * LoopStorage decorator that keeps recently loaded loops decoded in memory, so loading
+ * the same loop again does not read and parse it again.
+ * <p>
+ * The cache is a least-recently-used list bounded by the estimated heap size of the
+ * loops it holds, not by their number. Each entry remembers the version of the file it
+ * was decoded from (its mtime or content hash, see {@link Version}); a hit whose file has
+ * a different version now is dropped and loaded again. With {@link #byLibrary(LoopLibrary)},
+ * versions come from the library's in-memory index, kept current by its WatchService,
+ * so hits do not touch the disk at all.
+ * <p>
+ * Loops are mutable, so callers always get their own copy. Saving through the cache
+ * drops the saved name. loadAll() goes straight to the wrapped storage and leaves the
+ * cache as it is, so one pass over the library does not flush it.
+ * <p>
+ * Safe to use from several threads at once.
+ */
+public class CachingLoopStorage implements LoopStorage {
+
+    /** Tells which version of a loop's file is current. */
+    public interface Version {
+        /**
+         * @return a value that changes whenever the file does, or null if it is unknown,
+         *         in which case the loop is loaded without caching
+         */
+        Object of(String fileName) throws IOException;
+    }
+
+    /** Rough heap cost of a loop and its cache entry, apart from the notes. */
+    static final long BYTES_PER_LOOP = 256;
+
+    private static final class Entry {
+        final Loop loop;
+        final Object version;
+        final long bytes;
+
+        Entry(Loop loop, Object version, long bytes) {
+            this.loop = loop;
+            this.version = version;
+            this.bytes = bytes;
+        }
+    }
+
+    private final LoopStorage delegate;
+    private final Version version;
+    private final long maxBytes;
+
+    // All guarded by this
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long cachedBytes;
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long invalidations;
+
+    /**
+     * @param delegate the storage to load from on a miss
+     * @param version  how to tell whether a cached loop is still current
+     * @param maxBytes upper bound on the estimated heap size of the cached loops
+     */
+    public CachingLoopStorage(LoopStorage delegate, Version version, long maxBytes) {
+        if (delegate == null) {
+            throw new IllegalArgumentException("delegate cannot be null");
+        }
+        if (version == null) {
+            throw new IllegalArgumentException("version cannot be null");
+        }
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("maxBytes must be positive, got: " + maxBytes);
+        }
+        this.delegate = delegate;
+        this.version = version;
+        this.maxBytes = maxBytes;
+    }
+
+    /** Versions by file modification time, read from the directory on every load. */
+    public static Version byModifiedTime(Path directory) {
+        return fileName -> {
+            try {
+                return Files.getLastModifiedTime(directory.resolve(fileName));
+            } catch (NoSuchFileException e) {
+                return null;
+            }
+        };
+    }
+
+    /** Versions by content hash, from the library's index; nothing is read from disk. */
+    public static Version byLibrary(LoopLibrary library) {
+        return fileName -> {
+            LoopIndexEntry entry = library.get(fileName);
+            return entry == null ? null : entry.getContentHash();
+        };
+    }
+
+    @Override
+    public void saveLoop(Loop loop, String fileName) throws IOException {
+        invalidate(fileName);
+        delegate.saveLoop(loop, fileName);
+    }
+
+    /**
+     * Returns a copy of the cached loop if its file has not changed, otherwise loads it
+     * from the wrapped storage and caches it.
+     */
+    @Override
+    public Loop loadLoop(String fileName) throws IOException {
+        // Taken before loading: if the file changes meanwhile, the next load sees a new version
+        Object current = version.of(fileName);
+
+        synchronized (this) {
+            Entry entry = entries.get(fileName);
+            if (entry != null) {
+                if (entry.version.equals(current)) {
+                    hits++;
+                    return entry.loop.copy();
+                }
+                remove(fileName);
+                invalidations++;
+            }
+            misses++;
+        }
+
+        Loop loop = delegate.loadLoop(fileName);
+        if (current != null) {
+            Loop cached = loop.copy();
+            put(fileName, new Entry(cached, current, estimateBytes(cached)));
+        }
+        return loop;
+    }
+
+    @Override
+    public Map<String, Loop> loadAll() throws IOException {
+        return delegate.loadAll();
+    }
+
+    /** Drops the cached copy of a loop, if any. */
+    public synchronized void invalidate(String fileName) {
+        if (remove(fileName)) {
+            invalidations++;
+        }
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        cachedBytes = 0;
+    }
+
+    public synchronized long getHitCount() {
+        return hits;
+    }
+
+    public synchronized long getMissCount() {
+        return misses;
+    }
+
+    /** @return how many loops were dropped to stay within the size bound */
+    public synchronized long getEvictionCount() {
+        return evictions;
+    }
+
+    /** @return how many cached loops were dropped because their file changed or was saved */
+    public synchronized long getInvalidationCount() {
+        return invalidations;
+    }
+
+    public synchronized long getCachedBytes() {
+        return cachedBytes;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "CachingLoopStorage(" + entries.size() + " loops, " + cachedBytes + "/" + maxBytes
+                + " bytes, hits " + hits + ", misses " + misses + ", evictions " + evictions
+                + ", invalidations " + invalidations + ")";
+    }
+
+    /** Estimated heap bytes held by a decoded loop. */
+    static long estimateBytes(Loop loop) {
+        return BYTES_PER_LOOP + loop.estimateNoteBytes();
+    }
+
+    private synchronized void put(String fileName, Entry entry) {
+        if (entry.bytes > maxBytes) {
+            return; // would evict everything else and still not fit
+        }
+        remove(fileName);
+        entries.put(fileName, entry);
+        cachedBytes += entry.bytes;
+
+        Iterator<Entry> eldestFirst = entries.values().iterator();
+        while (cachedBytes > maxBytes) {
+            Entry eldest = eldestFirst.next();
+            eldestFirst.remove();
+            cachedBytes -= eldest.bytes;
+            evictions++;
+        }
+    }
+
+    /** @return true if there was an entry */
+    private boolean remove(String fileName) {
+        Entry removed = entries.remove(fileName);
+        if (removed == null) {
+            return false;
+        }
+        cachedBytes -= removed.bytes;
+        return true;
+    }
+}
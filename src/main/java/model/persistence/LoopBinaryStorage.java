@@ -0,0 +1,236 @@
+package model.persistence;
+
+import model.Loop;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Saves and loads loops in a compact, versioned binary format (see {@link MappedLoop}
+ * for the layout). Notes are stored in columns sorted by start, with positions as
+ * delta-encoded varint ticks and pitch/velocity as single bytes, which takes a few
+ * bytes per note instead of the ~120 of the JSON format.
+ * <p>
+ * Files are read through FileChannel.map; {@link #open(String)} gives access to a
+ * loop without copying its notes onto the heap.
+ */
+public class LoopBinaryStorage implements LoopStorage {
+
+    public static final String EXTENSION = ".loop";
+
+    /** Same resolution as the playback transport; any beat value on this grid is stored exactly. */
+    static final int TICKS_PER_BEAT = 960;
+
+    private final Path baseDirectory;
+
+    /**
+     * @param baseDirectory directory where loop files will be written.
+     *                      Will be created if it doesn't exist.
+     */
+    public LoopBinaryStorage(Path baseDirectory) {
+        this.baseDirectory = baseDirectory;
+        ensureDirectoryExists();
+    }
+
+    private void ensureDirectoryExists() {
+        try {
+            if (!Files.exists(baseDirectory)) {
+                Files.createDirectories(baseDirectory);
+            }
+        } catch (IOException e) {
+            System.err.println("LoopBinaryStorage: failed to create directory "
+                    + baseDirectory + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Saves the given loop as a binary file under the base directory. An existing
+     * file is replaced atomically, so a crash never leaves it truncated.
+     *
+     * @param loop     the loop to save
+     * @param fileName file name (e.g. "loop-1.loop")
+     */
+    @Override
+    public void saveLoop(Loop loop, String fileName) throws IOException {
+        if (loop == null) {
+            throw new IllegalArgumentException("loop cannot be null");
+        }
+        if (fileName == null || fileName.trim().isEmpty()) {
+            throw new IllegalArgumentException("fileName cannot be null/empty");
+        }
+
+        Path filePath = baseDirectory.resolve(fileName);
+        AtomicFiles.write(filePath, encode(loop));
+
+        System.out.println("LoopBinaryStorage: saved loop to " + filePath.toAbsolutePath());
+    }
+
+    /**
+     * Loads a loop previously written by saveLoop from the base directory.
+     *
+     * @throws IOException if the file cannot be read or is not a binary loop
+     */
+    @Override
+    public Loop loadLoop(String fileName) throws IOException {
+        return open(fileName).toLoop();
+    }
+
+    /**
+     * Loads every *.loop file in the base directory. Files that fail to load are skipped.
+     */
+    @Override
+    public Map<String, Loop> loadAll() throws IOException {
+        List<Path> files;
+        try (Stream<Path> listing = Files.list(baseDirectory)) {
+            files = listing
+                    .filter(path -> path.getFileName().toString().endsWith(EXTENSION))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+
+        Map<String, Loop> loops = new LinkedHashMap<>();
+        for (Path file : files) {
+            String name = file.getFileName().toString();
+            try {
+                loops.put(name, loadLoop(name));
+            } catch (IOException e) {
+                System.err.println("LoopBinaryStorage: skipping " + name + ": " + e.getMessage());
+            }
+        }
+        return loops;
+    }
+
+    /**
+     * Memory-maps a loop file read-only. The mapping stays valid after this returns
+     * and is released when the MappedLoop is garbage collected.
+     *
+     * @throws IOException if the file cannot be mapped or is not a binary loop
+     */
+    public MappedLoop open(String fileName) throws IOException {
+        if (fileName == null || fileName.trim().isEmpty()) {
+            throw new IllegalArgumentException("fileName cannot be null/empty");
+        }
+        Path filePath = baseDirectory.resolve(fileName);
+        try (FileChannel channel = FileChannel.open(filePath, StandardOpenOption.READ)) {
+            return MappedLoop.wrap(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        } catch (IOException e) {
+            throw new IOException("Failed to load loop file " + filePath + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Encodes a loop in the binary format. Positions go on the tick grid when every
+     * start and duration lies exactly on it; otherwise they are kept as raw doubles,
+     * so saving never changes a loop.
+     */
+    static ByteBuffer encode(Loop loop) {
+        int count = loop.getNoteCount();
+
+        // Stable sort by start, so notes starting together keep their order
+        Integer[] order = new Integer[count];
+        for (int i = 0; i < count; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, Comparator.comparingDouble(loop::getNoteStartBeat));
+
+        boolean onGrid = true;
+        int startBytes = 0;
+        int durationBytes = 0;
+        long previousTick = 0;
+        for (int k = 0; k < count && onGrid; k++) {
+            long startTick = toTick(loop.getNoteStartBeat(order[k]));
+            long durationTicks = toTick(loop.getNoteDurationBeats(order[k]));
+            if (startTick < 0 || durationTicks < 0) {
+                onGrid = false;
+            } else {
+                startBytes += varintSize(startTick - previousTick);
+                durationBytes += varintSize(durationTicks);
+                previousTick = startTick;
+            }
+        }
+        if (!onGrid) {
+            startBytes = count * Double.BYTES;
+            durationBytes = count * Double.BYTES;
+        }
+
+        ByteBuffer out = ByteBuffer.allocate(MappedLoop.HEADER_BYTES + startBytes + durationBytes + 2 * count)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        out.put(MappedLoop.MAGIC);
+        out.put((byte) MappedLoop.VERSION);
+        out.put((byte) 0);
+        out.putShort((short) 0);
+        out.putInt(loop.getMeasures().getValue());
+        out.putDouble(loop.getTempo().getBpm());
+        out.putInt(count);
+        out.putInt(onGrid ? TICKS_PER_BEAT : 0);
+        out.putInt(startBytes);
+        out.putInt(durationBytes);
+
+        previousTick = 0;
+        for (int k = 0; k < count; k++) {
+            double startBeat = loop.getNoteStartBeat(order[k]);
+            if (onGrid) {
+                long startTick = toTick(startBeat);
+                putVarint(out, startTick - previousTick);
+                previousTick = startTick;
+            } else {
+                out.putDouble(startBeat);
+            }
+        }
+        for (int k = 0; k < count; k++) {
+            double durationBeats = loop.getNoteDurationBeats(order[k]);
+            if (onGrid) {
+                putVarint(out, toTick(durationBeats));
+            } else {
+                out.putDouble(durationBeats);
+            }
+        }
+        for (int k = 0; k < count; k++) {
+            out.put((byte) loop.getNotePitch(order[k]));
+        }
+        for (int k = 0; k < count; k++) {
+            out.put((byte) loop.getNoteVelocity(order[k]));
+        }
+
+        out.flip();
+        return out;
+    }
+
+    /** @return the beat value in ticks, or -1 if it is not exactly on the tick grid */
+    private static long toTick(double beats) {
+        double ticks = beats * TICKS_PER_BEAT;
+        if (ticks > Long.MAX_VALUE / 2 || ticks != Math.rint(ticks)) {
+            return -1;
+        }
+        long tick = (long) ticks;
+        return (double) tick / TICKS_PER_BEAT == beats ? tick : -1;
+    }
+
+    private static int varintSize(long value) {
+        int size = 1;
+        while ((value >>>= 7) != 0) {
+            size++;
+        }
+        return size;
+    }
+
+    private static void putVarint(ByteBuffer out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+    }
+}
@@ -0,0 +1,192 @@
+package model.persistence;
+
+import model.Loop;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Headless command that converts a directory of loops between the JSON, binary and
+ * MIDI formats, then compares the two on size and load time. Files are converted in
+ * parallel on a fork-join pool, one task per file.
+ * <p>
+ * Usage: LoopConverter [inDir] [outDir] [--from json|binary|midi] [--to json|binary|midi]
+ * [--threads n]
+ */
+public class LoopConverter {
+
+    /** A file format and how to open a storage for it. */
+    public enum Format {
+        JSON(".json", LoopJsonStorage::new),
+        BINARY(LoopBinaryStorage.EXTENSION, LoopBinaryStorage::new),
+        MIDI(LoopMidiStorage.EXTENSION, LoopMidiStorage::new);
+
+        private final String extension;
+        private final Function<Path, LoopStorage> storage;
+
+        Format(String extension, Function<Path, LoopStorage> storage) {
+            this.extension = extension;
+            this.storage = storage;
+        }
+
+        public String getExtension() {
+            return extension;
+        }
+
+        public LoopStorage open(Path directory) {
+            return storage.apply(directory);
+        }
+
+        static Format parse(String name) {
+            try {
+                return valueOf(name.toUpperCase());
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("format must be json, binary or midi, got: " + name);
+            }
+        }
+    }
+
+    /** Below this many files a task converts them itself instead of splitting. */
+    private static final int FILES_PER_TASK = 4;
+
+    public static void main(String[] args) throws IOException {
+        Path inDir = Paths.get("loops");
+        Path outDir = Paths.get("loops-binary");
+        Format from = Format.JSON;
+        Format to = Format.BINARY;
+        int threads = Runtime.getRuntime().availableProcessors();
+
+        List<String> positional = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--from")) {
+                from = Format.parse(args[++i]);
+            } else if (args[i].equals("--to")) {
+                to = Format.parse(args[++i]);
+            } else if (args[i].equals("--threads")) {
+                threads = Integer.parseInt(args[++i]);
+            } else {
+                positional.add(args[i]);
+            }
+        }
+        if (positional.size() > 0) inDir = Paths.get(positional.get(0));
+        if (positional.size() > 1) outDir = Paths.get(positional.get(1));
+
+        LoopStorage source = from.open(inDir);
+        LoopStorage target = to.open(outDir);
+
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        long start = System.nanoTime();
+        int converted;
+        try {
+            converted = convert(source, inDir, from.getExtension(), target, to.getExtension(), pool);
+        } finally {
+            pool.shutdown();
+        }
+        System.out.printf("LoopConverter: converted %d loops from %s to %s in %.1f ms on %d threads%n",
+                converted, inDir, outDir, (System.nanoTime() - start) / 1e6, threads);
+
+        compare(from.name().toLowerCase(), source, inDir, from.getExtension());
+        compare(to.name().toLowerCase(), target, outDir, to.getExtension());
+    }
+
+    /**
+     * Loads every file with the source extension in the directory and saves it to the
+     * target storage under the same name with the target extension, converting files in
+     * parallel on the pool. A file that fails is reported and skipped.
+     *
+     * @return the number of loops converted
+     */
+    public static int convert(LoopStorage from, Path fromDirectory, String fromExtension,
+                              LoopStorage to, String toExtension, ForkJoinPool pool) throws IOException {
+        List<String> names;
+        try (Stream<Path> listing = Files.list(fromDirectory)) {
+            names = listing
+                    .map(path -> path.getFileName().toString())
+                    .filter(name -> name.endsWith(fromExtension) && !name.startsWith("."))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+        return pool.invoke(new ConvertTask(from, to, toExtension, names, 0, names.size()));
+    }
+
+    /** Converts a range of the file list, splitting it in half until it is small. */
+    private static final class ConvertTask extends RecursiveTask<Integer> {
+        private static final long serialVersionUID = 1L;
+
+        private final LoopStorage from;
+        private final LoopStorage to;
+        private final String toExtension;
+        private final List<String> names;
+        private final int begin;
+        private final int end;
+
+        ConvertTask(LoopStorage from, LoopStorage to, String toExtension, List<String> names, int begin, int end) {
+            this.from = from;
+            this.to = to;
+            this.toExtension = toExtension;
+            this.names = names;
+            this.begin = begin;
+            this.end = end;
+        }
+
+        @Override
+        protected Integer compute() {
+            if (end - begin > FILES_PER_TASK) {
+                int middle = (begin + end) >>> 1;
+                ConvertTask left = new ConvertTask(from, to, toExtension, names, begin, middle);
+                left.fork();
+                int right = new ConvertTask(from, to, toExtension, names, middle, end).compute();
+                return left.join() + right;
+            }
+            int converted = 0;
+            for (int i = begin; i < end; i++) {
+                String name = names.get(i);
+                try {
+                    to.saveLoop(from.loadLoop(name), replaceExtension(name, toExtension));
+                    converted++;
+                } catch (IOException | RuntimeException e) {
+                    System.err.println("LoopConverter: skipping " + name + ": " + e.getMessage());
+                }
+            }
+            return converted;
+        }
+    }
+
+    private static void compare(String label, LoopStorage storage, Path dir, String extension) throws IOException {
+        long bytes = 0;
+        try (Stream<Path> listing = Files.list(dir)) {
+            for (Path path : (Iterable<Path>) listing::iterator) {
+                if (path.getFileName().toString().endsWith(extension)) {
+                    bytes += Files.size(path);
+                }
+            }
+        }
+
+        storage.loadAll();   // warm up the JIT and the page cache
+        long start = System.nanoTime();
+        Map<String, Loop> loops = storage.loadAll();
+        double ms = (System.nanoTime() - start) / 1e6;
+
+        long notes = 0;
+        for (Loop loop : loops.values()) {
+            notes += loop.getNoteCount();
+        }
+        System.out.printf("LoopConverter: %-6s %,12d bytes (%.1f bytes/note), loaded %d loops in %.1f ms%n",
+                label, bytes, notes > 0 ? (double) bytes / notes : 0.0, loops.size(), ms);
+    }
+
+    private static String replaceExtension(String fileName, String extension) {
+        int dot = fileName.lastIndexOf('.');
+        return (dot > 0 ? fileName.substring(0, dot) : fileName) + extension;
+    }
+}
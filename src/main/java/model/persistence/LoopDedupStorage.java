@@ -0,0 +1,283 @@
+package model.persistence;
+
+import model.Loop;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Content-addressed loop storage: each distinct loop is stored once, under the SHA-256
+ * of its canonical encoding, and names are small refs pointing at those hashes.
+ * <pre>
+ * objects/ab/cdef...0123.loop   loop body in the binary format, named by its hash
+ * refs/&lt;name&gt;                  the hash the name points to
+ * </pre>
+ * The canonical encoding is the binary format with the notes in a fixed order (by start,
+ * pitch, duration, velocity), so two loops with the same content hash the same however
+ * they were edited. Saving a loop a name already points to writes nothing; saving it
+ * under a new name writes only the ref. Loads check the body against its hash.
+ * <p>
+ * Safe to use from several threads at once.
+ */
+public class LoopDedupStorage implements LoopStorage {
+
+    private static final String OBJECTS = "objects";
+    private static final String REFS = "refs";
+    private static final int HASH_HEX_LENGTH = 64;
+    private static final int LOCK_STRIPES = 64;
+
+    private final Path objectsDirectory;
+    private final Path refsDirectory;
+    /** Writes to the same object or ref share a temp file, so they are serialized per stripe. */
+    private final Object[] locks = new Object[LOCK_STRIPES];
+
+    /**
+     * @param baseDirectory directory holding the objects and refs.
+     *                      Will be created if it doesn't exist.
+     */
+    public LoopDedupStorage(Path baseDirectory) {
+        this.objectsDirectory = baseDirectory.resolve(OBJECTS);
+        this.refsDirectory = baseDirectory.resolve(REFS);
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new Object();
+        }
+        ensureDirectoriesExist();
+    }
+
+    private void ensureDirectoriesExist() {
+        try {
+            Files.createDirectories(objectsDirectory);
+            Files.createDirectories(refsDirectory);
+        } catch (IOException e) {
+            System.err.println("LoopDedupStorage: failed to create directory "
+                    + objectsDirectory.getParent() + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Points the name at the loop's content, storing the content first if it is new.
+     * Nothing is written if the name already points to the same content.
+     *
+     * @param loop     the loop to save
+     * @param fileName ref name (e.g. "loop-1.json"); may not contain path separators
+     */
+    @Override
+    public void saveLoop(Loop loop, String fileName) throws IOException {
+        if (loop == null) {
+            throw new IllegalArgumentException("loop cannot be null");
+        }
+        Path ref = refPath(fileName);
+
+        ByteBuffer body = canonicalEncoding(loop);
+        String hash = sha256(body.duplicate());
+        Path object = objectPath(hash);
+
+        if (hash.equals(readRef(ref)) && Files.exists(object)) {
+            System.out.println("LoopDedupStorage: " + fileName + " unchanged, nothing written");
+            return;
+        }
+
+        boolean stored = false;
+        synchronized (lockFor(hash)) {
+            if (!Files.exists(object)) {
+                Files.createDirectories(object.getParent());
+                AtomicFiles.write(object, body);
+                stored = true;
+            }
+        }
+        synchronized (lockFor(fileName)) {
+            AtomicFiles.write(ref, ByteBuffer.wrap((hash + "\n").getBytes(StandardCharsets.US_ASCII)));
+        }
+
+        System.out.println("LoopDedupStorage: saved " + fileName + " -> " + hash.substring(0, 12)
+                + (stored ? "" : " (content already stored)"));
+    }
+
+    /**
+     * Loads the loop a name points to. Notes come back in canonical order.
+     *
+     * @throws IOException if there is no such name, or its content is missing or corrupt
+     */
+    @Override
+    public Loop loadLoop(String fileName) throws IOException {
+        String hash = readRef(refPath(fileName));
+        if (hash == null) {
+            throw new NoSuchFileException(refsDirectory.resolve(fileName).toString(), null, "no such loop");
+        }
+        return loadObject(hash);
+    }
+
+    /**
+     * Loads every named loop, in name order. Content shared by several names is read once.
+     * Names that fail to load are skipped.
+     */
+    @Override
+    public Map<String, Loop> loadAll() throws IOException {
+        Map<String, Loop> loops = new LinkedHashMap<>();
+        Map<String, Loop> byHash = new HashMap<>();
+        for (String name : listRefs()) {
+            try {
+                String hash = readRef(refsDirectory.resolve(name));
+                if (hash == null) {
+                    continue; // removed while listing
+                }
+                Loop loop = byHash.get(hash);
+                if (loop == null) {
+                    loop = loadObject(hash);
+                    byHash.put(hash, loop);
+                    loops.put(name, loop);
+                } else {
+                    // Callers may edit what they get back, so names never share an instance
+                    loops.put(name, loop.copy());
+                }
+            } catch (IOException e) {
+                System.err.println("LoopDedupStorage: skipping " + name + ": " + e.getMessage());
+            }
+        }
+        return loops;
+    }
+
+    /**
+     * Deletes stored content that no name points to any more.
+     *
+     * @return the number of objects deleted
+     */
+    public int pruneUnreferenced() throws IOException {
+        Set<String> referenced = new HashSet<>();
+        for (String name : listRefs()) {
+            String hash = readRef(refsDirectory.resolve(name));
+            if (hash != null) {
+                referenced.add(hash);
+            }
+        }
+
+        List<Path> objects;
+        try (Stream<Path> walk = Files.walk(objectsDirectory, 2)) {
+            objects = walk
+                    .filter(path -> path.getFileName().toString().endsWith(LoopBinaryStorage.EXTENSION))
+                    .collect(Collectors.toList());
+        }
+        int deleted = 0;
+        for (Path object : objects) {
+            String hash = object.getParent().getFileName().toString() + stripExtension(object.getFileName().toString());
+            if (!referenced.contains(hash)) {
+                synchronized (lockFor(hash)) {
+                    if (Files.deleteIfExists(object)) {
+                        deleted++;
+                    }
+                }
+            }
+        }
+        return deleted;
+    }
+
+    // ---- Objects ----
+
+    /** The binary encoding of the loop with its notes in canonical order. */
+    static ByteBuffer canonicalEncoding(Loop loop) {
+        int count = loop.getNoteCount();
+        Integer[] order = new Integer[count];
+        for (int i = 0; i < count; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, Comparator.<Integer>comparingDouble(loop::getNoteStartBeat)
+                .thenComparingInt(loop::getNotePitch)
+                .thenComparingDouble(loop::getNoteDurationBeats)
+                .thenComparingInt(loop::getNoteVelocity));
+
+        Loop canonical = new Loop(loop.getMeasures());
+        canonical.setTempo(loop.getTempo());
+        for (int i : order) {
+            canonical.addNote(loop.getNotePitch(i), loop.getNoteStartBeat(i),
+                    loop.getNoteDurationBeats(i), loop.getNoteVelocity(i));
+        }
+        return LoopBinaryStorage.encode(canonical);
+    }
+
+    private Loop loadObject(String hash) throws IOException {
+        Path object = objectPath(hash);
+        ByteBuffer body = ByteBuffer.wrap(Files.readAllBytes(object));
+        if (!hash.equals(sha256(body.duplicate()))) {
+            throw new IOException("stored content " + object + " does not match its hash");
+        }
+        return MappedLoop.wrap(body).toLoop();
+    }
+
+    private Path objectPath(String hash) {
+        return objectsDirectory.resolve(hash.substring(0, 2)).resolve(hash.substring(2) + LoopBinaryStorage.EXTENSION);
+    }
+
+    // ---- Refs ----
+
+    private Path refPath(String name) {
+        if (name == null || name.trim().isEmpty()) {
+            throw new IllegalArgumentException("fileName cannot be null/empty");
+        }
+        if (name.startsWith(".") || name.indexOf('/') >= 0 || name.indexOf('\\') >= 0) {
+            throw new IllegalArgumentException("fileName cannot start with '.' or contain path separators, got: " + name);
+        }
+        return refsDirectory.resolve(name);
+    }
+
+    /** @return the hash the ref points to, or null if there is no such ref */
+    private static String readRef(Path ref) throws IOException {
+        String content;
+        try {
+            content = Files.readString(ref, StandardCharsets.US_ASCII).trim();
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        if (content.length() != HASH_HEX_LENGTH) {
+            throw new IOException("ref " + ref + " is not a hash");
+        }
+        return content;
+    }
+
+    private List<String> listRefs() throws IOException {
+        try (Stream<Path> listing = Files.list(refsDirectory)) {
+            return listing
+                    .map(path -> path.getFileName().toString())
+                    .filter(name -> !name.startsWith("."))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+
+    // ---- Helpers ----
+
+    private Object lockFor(String key) {
+        return locks[Math.floorMod(key.hashCode(), LOCK_STRIPES)];
+    }
+
+    private static String sha256(ByteBuffer bytes) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(bytes);
+            return HexFormat.of().formatHex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    private static String stripExtension(String fileName) {
+        int dot = fileName.lastIndexOf('.');
+        return dot > 0 ? fileName.substring(0, dot) : fileName;
+    }
+}
@@ -0,0 +1,75 @@
+package model.persistence;
+
+/**
+ * Metadata the loop library keeps about one loop file, so loops can be found
+ * without opening them.
+ */
+public final class LoopIndexEntry {
+
+    private final String fileName;
+    private final int measures;
+    private final double tempoBpm;
+    private final int noteCount;
+    private final int lowestPitch;    // -1 if the loop has no notes
+    private final int highestPitch;   // -1 if the loop has no notes
+    private final long modifiedMillis;
+    private final String contentHash;
+
+    public LoopIndexEntry(String fileName, int measures, double tempoBpm, int noteCount,
+                          int lowestPitch, int highestPitch, long modifiedMillis, String contentHash) {
+        if (fileName == null || fileName.isEmpty()) {
+            throw new IllegalArgumentException("fileName cannot be null/empty");
+        }
+        if (contentHash == null) {
+            throw new IllegalArgumentException("contentHash cannot be null");
+        }
+        this.fileName = fileName;
+        this.measures = measures;
+        this.tempoBpm = tempoBpm;
+        this.noteCount = noteCount;
+        this.lowestPitch = lowestPitch;
+        this.highestPitch = highestPitch;
+        this.modifiedMillis = modifiedMillis;
+        this.contentHash = contentHash;
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    public int getMeasures() {
+        return measures;
+    }
+
+    public double getTempoBpm() {
+        return tempoBpm;
+    }
+
+    public int getNoteCount() {
+        return noteCount;
+    }
+
+    public int getLowestPitch() {
+        return lowestPitch;
+    }
+
+    public int getHighestPitch() {
+        return highestPitch;
+    }
+
+    /** Last-modified time of the file when it was indexed. */
+    public long getModifiedMillis() {
+        return modifiedMillis;
+    }
+
+    /** SHA-256 of the file contents, in hex. */
+    public String getContentHash() {
+        return contentHash;
+    }
+
+    @Override
+    public String toString() {
+        return "LoopIndexEntry(" + fileName + ", " + measures + " measures, " + tempoBpm + " BPM, "
+                + noteCount + " notes)";
+    }
+}
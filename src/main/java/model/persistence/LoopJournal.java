@@ -0,0 +1,506 @@
+package model.persistence;
+
+import model.Loop;
+import model.LoopListener;
+import model.LoopNote;
+import model.Measures;
+import model.Tempo;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Autosave for a loop being edited: every edit is appended to a per-session journal as
+ * a small binary record, so the cost of saving is proportional to the edit, not to the
+ * loop.
+ * <p>
+ * A session is a snapshot of the loop (in the {@link MappedLoop} format) plus a journal
+ * of the edits made since. Once the journal outgrows the snapshot it is compacted: a new
+ * snapshot is written and the journal starts over, which keeps the amortized cost per
+ * edit constant. The snapshot is taken from a copy of the loop and written on a
+ * background thread; edits made meanwhile still go to the old journal and are kept to
+ * start the new one, which replaces it only once the snapshot is on disk.
+ * <p>
+ * After a crash, {@link #recoverLatest(Path)} loads the snapshot and replays the journal;
+ * a record cut short by the crash is detected by its checksum and dropped. {@link #close()}
+ * ends the journal with a record saying so, and a session that ended that way is not
+ * recovered, so the next start after a clean exit begins with a new loop.
+ * <p>
+ * Files, in the session's directory:
+ * <pre>
+ * session-&lt;millis&gt;.journal         header: "LJNL", version u8, 3 pad bytes, snapshot generation i64
+ *                                   records: type u8, payload, CRC32 u32 of type + payload
+ * session-&lt;millis&gt;.&lt;generation&gt;.loop snapshot the journal applies to
+ * session-&lt;millis&gt;.journal.next    header of the journal for the snapshot being written
+ * </pre>
+ * All numbers are little-endian. Records are written without fsync: they survive the
+ * application crashing, and a snapshot is forced to disk at each compaction.
+ * <p>
+ * The journal listens to the loop and must be used on the thread that edits it; only the
+ * background snapshot writes run elsewhere.
+ */
+public class LoopJournal implements LoopListener, Closeable {
+
+    public static final String EXTENSION = ".journal";
+
+    private static final byte[] MAGIC = {'L', 'J', 'N', 'L'};
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 16;
+
+    private static final byte ADD_NOTE = 1;
+    private static final byte REMOVE_NOTE = 2;
+    private static final byte SET_MEASURES = 3;
+    private static final byte SET_TEMPO = 4;
+    /** Last record of a session closed cleanly; no payload. */
+    private static final byte CLOSED = 5;
+
+    /** Pitch u8, velocity u8, start f64, duration f64; the values are kept exactly. */
+    private static final int NOTE_BYTES = 18;
+    private static final int CRC_BYTES = 4;
+    private static final int NOTE_RECORD_BYTES = 1 + NOTE_BYTES + CRC_BYTES;
+
+    /** Small journals are never compacted, however small the loop. */
+    private static final long MIN_COMPACT_BYTES = 256 * 1024;
+
+    private final Path directory;
+    private final String session;
+    private final Loop loop;
+    private final ByteBuffer record = ByteBuffer.allocate(NOTE_RECORD_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+    private final CRC32 crc = new CRC32();
+    private final ExecutorService compactor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "LoopJournal");
+        thread.setDaemon(true);
+        return thread;
+    });
+    /** Records written since the snapshot being compacted was taken; they start the next journal. */
+    private final ByteArrayOutputStream pendingRecords = new ByteArrayOutputStream();
+
+    private FileChannel channel;
+    private long generation;
+    private long journalBytes;
+    private long snapshotBytes;
+    private boolean failed;
+    /** The snapshot being written in the background, resolving to its size; null if none. */
+    private Future<Long> compaction;
+
+    private LoopJournal(Path directory, String session, Loop loop) {
+        this.directory = directory;
+        this.session = session;
+        this.loop = loop;
+    }
+
+    /**
+     * Starts a new session for the loop: writes its first snapshot, removes the files of
+     * earlier sessions, and journals every edit from now on.
+     */
+    public static LoopJournal start(Path directory, Loop loop) throws IOException {
+        if (directory == null) {
+            throw new IllegalArgumentException("directory cannot be null");
+        }
+        if (loop == null) {
+            throw new IllegalArgumentException("loop cannot be null");
+        }
+        Files.createDirectories(directory);
+
+        LoopJournal journal = new LoopJournal(directory, "session-" + System.currentTimeMillis(), loop);
+        journal.compact();
+        journal.deleteOtherSessions();
+        loop.addLoopListener(journal);
+        return journal;
+    }
+
+    /**
+     * Rebuilds the loop of the most recent session in the directory, unless it was closed
+     * cleanly.
+     *
+     * @return the recovered loop, or null if there is no session to recover
+     */
+    public static Loop recoverLatest(Path directory) throws IOException {
+        if (!Files.isDirectory(directory)) {
+            return null;
+        }
+        List<Path> journals;
+        try (Stream<Path> listing = Files.list(directory)) {
+            journals = listing
+                    .filter(path -> path.getFileName().toString().endsWith(EXTENSION))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+        // Newest first; an unreadable session falls back to the one before it
+        for (int i = journals.size() - 1; i >= 0; i--) {
+            try {
+                return recover(journals.get(i), true);
+            } catch (IOException e) {
+                System.err.println("LoopJournal: cannot recover " + journals.get(i).getFileName()
+                        + ": " + e.getMessage());
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Rebuilds a loop from a journal and the snapshot it refers to. Replay stops at the
+     * first record that is incomplete or fails its checksum.
+     *
+     * @throws IOException if the journal header or the snapshot cannot be read
+     */
+    public static Loop recover(Path journalFile) throws IOException {
+        return recover(journalFile, false);
+    }
+
+    /** @return the loop, or null if the session was closed cleanly and {@code skipClosed} */
+    private static Loop recover(Path journalFile, boolean skipClosed) throws IOException {
+        ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(journalFile)).order(ByteOrder.LITTLE_ENDIAN);
+        if (in.remaining() < HEADER_BYTES) {
+            throw new IOException("journal header is truncated");
+        }
+        for (byte b : MAGIC) {
+            if (in.get() != b) {
+                throw new IOException("not a loop journal");
+            }
+        }
+        int version = in.get() & 0xFF;
+        if (version != VERSION) {
+            throw new IOException("unsupported journal version " + version);
+        }
+        long generation = in.getLong(8);
+        in.position(HEADER_BYTES);
+
+        String fileName = journalFile.getFileName().toString();
+        String session = fileName.substring(0, fileName.length() - EXTENSION.length());
+        Path snapshotFile = journalFile.resolveSibling(snapshotName(session, generation));
+        Loop loop = MappedLoop.wrap(ByteBuffer.wrap(Files.readAllBytes(snapshotFile))).toLoop();
+
+        CRC32 crc = new CRC32();
+        int replayed = 0;
+        boolean closed = false;
+        while (in.hasRemaining()) {
+            int start = in.position();
+            byte type = in.get();
+            int payload = payloadBytes(type);
+            if (payload < 0 || in.remaining() < payload + CRC_BYTES) {
+                in.position(start);
+                break;
+            }
+            crc.reset();
+            crc.update(in.array(), start, 1 + payload);
+            if (in.getInt(start + 1 + payload) != (int) crc.getValue()) {
+                in.position(start);
+                break;
+            }
+            if (type == CLOSED) {
+                closed = true;
+                in.position(start + 1 + CRC_BYTES);
+                continue;
+            }
+            try {
+                apply(loop, type, in);
+            } catch (IllegalArgumentException e) {
+                in.position(start);
+                break;
+            }
+            in.position(start + 1 + payload + CRC_BYTES);
+            replayed++;
+        }
+
+        if (closed && skipClosed) {
+            System.out.println("LoopJournal: " + session + " was closed cleanly, not recovering it");
+            return null;
+        }
+        System.out.println("LoopJournal: recovered " + session + " (" + replayed + " edits replayed"
+                + (in.hasRemaining() ? ", " + in.remaining() + " trailing bytes dropped" : "") + ")");
+        return loop;
+    }
+
+    /**
+     * Writes a snapshot of the loop and starts the journal over, waiting for a compaction
+     * already running in the background to finish first. Compaction also happens by itself,
+     * in the background, once the journal outgrows the last snapshot.
+     */
+    public void compact() throws IOException {
+        finishCompaction(true);
+        long next = generation + 1;
+        rotate(next, writeSnapshot(loop, next));
+    }
+
+    /**
+     * Writes the snapshot and the header of the journal that will follow it. Runs on the
+     * compactor thread, except for compact().
+     *
+     * @return the size of the snapshot
+     */
+    private long writeSnapshot(Loop snapshot, long next) throws IOException {
+        // Snapshot first: until the journal points at it, a crash recovers the old pair
+        ByteBuffer encoded = LoopBinaryStorage.encode(snapshot);
+        long bytes = encoded.remaining();
+        AtomicFiles.write(directory.resolve(snapshotName(session, next)), encoded);
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        header.put(MAGIC).put((byte) VERSION).put((byte) 0).putShort((short) 0).putLong(next);
+        header.flip();
+        AtomicFiles.write(directory.resolve(session + EXTENSION + ".next"), header);
+        return bytes;
+    }
+
+    /** Switches to the new snapshot's journal, carrying over the records written meanwhile. */
+    private void rotate(long next, long nextSnapshotBytes) throws IOException {
+        if (channel != null) {
+            channel.close();
+        }
+        Path journalFile = directory.resolve(session + EXTENSION);
+        AtomicFiles.move(directory.resolve(session + EXTENSION + ".next"), journalFile);
+        channel = FileChannel.open(journalFile, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        ByteBuffer carried = ByteBuffer.wrap(pendingRecords.toByteArray());
+        pendingRecords.reset();
+        while (carried.hasRemaining()) {
+            channel.write(carried);
+        }
+
+        if (generation > 0) {
+            Files.deleteIfExists(directory.resolve(snapshotName(session, generation)));
+        }
+        generation = next;
+        journalBytes = HEADER_BYTES + carried.limit();
+        snapshotBytes = nextSnapshotBytes;
+    }
+
+    /** Copies the loop here and writes the copy on the compactor thread. */
+    private void startCompaction() {
+        Loop snapshot = loop.copy();
+        long next = generation + 1;
+        pendingRecords.reset();
+        compaction = compactor.submit(() -> writeSnapshot(snapshot, next));
+    }
+
+    /**
+     * Rotates to the snapshot written in the background, if there is one and it is done.
+     *
+     * @param wait whether to wait for a snapshot still being written
+     */
+    private void finishCompaction(boolean wait) throws IOException {
+        if (compaction == null || !(wait || compaction.isDone())) {
+            return;
+        }
+        long nextSnapshotBytes;
+        try {
+            nextSnapshotBytes = compaction.get();
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException
+                    ? (IOException) e.getCause()
+                    : new IOException("snapshot failed", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for the snapshot");
+        } finally {
+            compaction = null;
+        }
+        rotate(generation + 1, nextSnapshotBytes);
+    }
+
+    /**
+     * Stops journaling the loop and marks the session as closed cleanly, so
+     * recoverLatest() passes over it; recover() can still rebuild it. A snapshot still
+     * being written is not waited for, and the journal goes on pointing at the one before.
+     */
+    @Override
+    public void close() throws IOException {
+        loop.removeLoopListener(this);
+        compactor.shutdown();
+        if (channel != null && !failed) {
+            record.clear();
+            record.put(CLOSED);
+            endRecord(record, 0);
+            record.flip();
+            while (record.hasRemaining()) {
+                channel.write(record);
+            }
+        }
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+    }
+
+    // ---- LoopListener ----
+
+    @Override
+    public void onNoteAdded(LoopNote note) {
+        record.clear();
+        putNoteRecord(record, ADD_NOTE, note);
+        write(record);
+    }
+
+    @Override
+    public void onNoteRemoved(LoopNote note) {
+        record.clear();
+        putNoteRecord(record, REMOVE_NOTE, note);
+        write(record);
+    }
+
+    /** The whole batch goes out in one write, in the order it was applied. */
+    @Override
+    public void onNotesChanged(List<LoopNote> removed, List<LoopNote> added) {
+        ByteBuffer records = ByteBuffer.allocate((removed.size() + added.size()) * NOTE_RECORD_BYTES)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        for (LoopNote note : removed) {
+            putNoteRecord(records, REMOVE_NOTE, note);
+        }
+        for (LoopNote note : added) {
+            putNoteRecord(records, ADD_NOTE, note);
+        }
+        write(records);
+    }
+
+    @Override
+    public void onMeasuresChanged(Measures measures) {
+        record.clear();
+        record.put(SET_MEASURES);
+        record.putInt(measures.getValue());
+        endRecord(record, 0);
+        write(record);
+    }
+
+    @Override
+    public void onTempoChanged(Tempo tempo) {
+        record.clear();
+        record.put(SET_TEMPO);
+        record.putDouble(tempo.getBpm());
+        endRecord(record, 0);
+        write(record);
+    }
+
+    // ---- Records ----
+
+    private void putNoteRecord(ByteBuffer out, byte type, LoopNote note) {
+        int start = out.position();
+        out.put(type);
+        out.put((byte) note.getPitch().getMidiNumber());
+        out.put((byte) note.getVelocity().getValue());
+        out.putDouble(note.getStartBeat().getValue());
+        out.putDouble(note.getDurationBeats().getValue());
+        endRecord(out, start);
+    }
+
+    /** Appends the checksum of the record that begins at {@code start}. */
+    private void endRecord(ByteBuffer out, int start) {
+        crc.reset();
+        crc.update(out.array(), start, out.position() - start);
+        out.putInt((int) crc.getValue());
+    }
+
+    private void write(ByteBuffer records) {
+        if (failed) {
+            return;
+        }
+        records.flip();
+        try {
+            while (records.hasRemaining()) {
+                channel.write(records);
+            }
+            journalBytes += records.limit();
+            if (compaction != null) {
+                pendingRecords.write(records.array(), 0, records.limit());
+                finishCompaction(false);
+            } else if (journalBytes > Math.max(MIN_COMPACT_BYTES, snapshotBytes)) {
+                startCompaction();
+            }
+        } catch (IOException e) {
+            // Editing goes on; the session stays recoverable up to the last good record
+            failed = true;
+            System.err.println("LoopJournal: autosave stopped: " + e.getMessage());
+        }
+    }
+
+    private static int payloadBytes(byte type) {
+        switch (type) {
+            case ADD_NOTE:
+            case REMOVE_NOTE:
+                return NOTE_BYTES;
+            case SET_MEASURES:
+                return Integer.BYTES;
+            case SET_TEMPO:
+                return Double.BYTES;
+            case CLOSED:
+                return 0;
+            default:
+                return -1;
+        }
+    }
+
+    private static void apply(Loop loop, byte type, ByteBuffer in) {
+        switch (type) {
+            case ADD_NOTE: {
+                int pitch = in.get() & 0xFF;
+                int velocity = in.get() & 0xFF;
+                loop.addNote(pitch, in.getDouble(), in.getDouble(), velocity);
+                break;
+            }
+            case REMOVE_NOTE:
+                loop.removeNoteById(findNote(loop, in));
+                break;
+            case SET_MEASURES:
+                loop.setMeasures(new Measures(in.getInt()));
+                break;
+            case SET_TEMPO:
+                loop.setTempo(new Tempo(in.getDouble()));
+                break;
+            default:
+                throw new IllegalArgumentException("unknown record type " + type);
+        }
+    }
+
+    /**
+     * Snapshots do not keep ids, so removed notes are matched by value, looking only at
+     * the notes of that pitch sounding at its start.
+     */
+    private static int findNote(Loop loop, ByteBuffer in) {
+        int pitch = in.get() & 0xFF;
+        int velocity = in.get() & 0xFF;
+        double start = in.getDouble();
+        double duration = in.getDouble();
+        int[] found = {LoopNote.NO_ID};
+        if (pitch <= 127 && start >= 0) {
+            loop.visitNotes(pitch, start, Math.nextUp(start), (id, notePitch, noteStart, noteDuration, noteVelocity) -> {
+                if (found[0] == LoopNote.NO_ID && noteStart == start && noteDuration == duration
+                        && noteVelocity == velocity) {
+                    found[0] = id;
+                }
+            });
+        }
+        if (found[0] == LoopNote.NO_ID) {
+            throw new IllegalArgumentException("removed note is not in the loop");
+        }
+        return found[0];
+    }
+
+    private static String snapshotName(String session, long generation) {
+        return session + "." + generation + LoopBinaryStorage.EXTENSION;
+    }
+
+    private void deleteOtherSessions() throws IOException {
+        try (Stream<Path> listing = Files.list(directory)) {
+            for (Path file : (Iterable<Path>) listing::iterator) {
+                String name = file.getFileName().toString();
+                if (name.startsWith("session-") && !name.startsWith(session + ".")) {
+                    Files.deleteIfExists(file);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,497 @@
+package model.persistence;
+
+import model.Loop;
+import model.Measures;
+import model.Tempo;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Streaming reader for the loop JSON format written by LoopJsonStorage.
+ * <p>
+ * Bytes are tokenized straight out of a fixed-size buffer into a Loop's note
+ * columns: there is no document tree, and keys and numbers are matched and parsed
+ * in place instead of being turned into strings. Memory use is the buffer plus the
+ * loop being built, whatever the file size. Fields may come in any order and
+ * unknown fields are skipped. Files from a newer schema version than
+ * {@link LoopJsonWriter#SCHEMA_VERSION} are rejected.
+ * <p>
+ * A strict reader also rejects values the model would otherwise adjust or accept
+ * silently: tempos outside the Tempo range and beats that are not finite.
+ * <p>
+ * A reader can be reused for many files but is not thread-safe.
+ */
+public final class LoopJsonReader {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final byte[] SCHEMA_VERSION = ascii("schemaVersion");
+    private static final byte[] MEASURES = ascii("measures");
+    private static final byte[] TEMPO_BPM = ascii("tempoBPM");
+    private static final byte[] NOTES = ascii("notes");
+    private static final byte[] PITCH = ascii("pitch");
+    private static final byte[] START_BEAT = ascii("startBeat");
+    private static final byte[] DURATION_BEATS = ascii("durationBeats");
+    private static final byte[] VELOCITY = ascii("velocity");
+
+    /** 10^0 .. 10^22 are exact doubles, which makes the fast number path exact. */
+    private static final double[] POWERS_OF_TEN = new double[23];
+    private static final int MAX_FAST_DIGITS = 15;
+
+    static {
+        POWERS_OF_TEN[0] = 1.0;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10.0;
+        }
+    }
+
+    private final boolean strict;
+    private int schemaVersion;
+
+    private final ByteBuffer ownBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+    private ByteBuffer buffer;
+    private ReadableByteChannel channel;
+    private long bufferOffset;   // input offset of buffer position 0, for error messages
+
+    private final byte[] key = new byte[32];
+    private int keyLength;       // -1 if the key did not fit, so it matches nothing
+
+    // Last number read
+    private long mantissa;
+    private int digits;
+    private int exponent;
+    private boolean negative;
+    private boolean integral;
+    /** Text of the last number, only turned into a String when the fast path cannot be exact. */
+    private final StringBuilder numberText = new StringBuilder();
+
+    public LoopJsonReader() {
+        this(false);
+    }
+
+    /**
+     * @param strict also reject out-of-range tempos and non-finite beats
+     */
+    public LoopJsonReader(boolean strict) {
+        this.strict = strict;
+    }
+
+    /** @return the schema version of the last loop read; 0 if it had none */
+    public int getSchemaVersion() {
+        return schemaVersion;
+    }
+
+    /**
+     * Reads one loop from the channel, which is read to the end but not closed.
+     *
+     * @throws IOException if reading fails or the input is not a loop
+     */
+    public Loop read(ReadableByteChannel channel) throws IOException {
+        this.channel = channel;
+        this.buffer = ownBuffer;
+        buffer.clear().flip();
+        bufferOffset = 0;
+        try {
+            return readLoop();
+        } finally {
+            this.channel = null;
+        }
+    }
+
+    /**
+     * Reads one loop from the remaining bytes of the buffer.
+     *
+     * @throws IOException if the input is not a loop
+     */
+    public Loop read(ByteBuffer input) throws IOException {
+        this.channel = null;
+        this.buffer = input;
+        bufferOffset = -input.position();
+        return readLoop();
+    }
+
+    // ---- Grammar ----
+
+    private Loop readLoop() throws IOException {
+        // Measures are required but may come after the notes; start with a placeholder
+        Loop loop = new Loop(new Measures(1));
+        boolean hasMeasures = false;
+        schemaVersion = 0;
+
+        expect('{');
+        if (!consumeIf('}')) {
+            do {
+                readKey();
+                expect(':');
+                if (keyIs(SCHEMA_VERSION)) {
+                    schemaVersion = readInt();
+                    if (schemaVersion < 0 || schemaVersion > LoopJsonWriter.SCHEMA_VERSION) {
+                        throw new IOException("unsupported schema version " + schemaVersion
+                                + " (this version reads up to " + LoopJsonWriter.SCHEMA_VERSION + ")");
+                    }
+                } else if (keyIs(MEASURES)) {
+                    loop.setMeasures(new Measures(readInt()));
+                    hasMeasures = true;
+                } else if (keyIs(TEMPO_BPM)) {
+                    double bpm = readDouble();
+                    if (strict && !(bpm >= Tempo.MIN_BPM && bpm <= Tempo.MAX_BPM)) {
+                        throw syntaxError("tempo " + bpm + " is outside [" + Tempo.MIN_BPM + ", " + Tempo.MAX_BPM + "]");
+                    }
+                    loop.setTempo(new Tempo(bpm));
+                } else if (keyIs(NOTES)) {
+                    readNotes(loop);
+                } else {
+                    skipValue();
+                }
+            } while (nextMember('}'));
+        }
+
+        if (peekToken() != -1) {
+            throw syntaxError("unexpected content after the loop object");
+        }
+        if (!hasMeasures) {
+            throw new IOException("missing \"measures\"");
+        }
+        return loop;
+    }
+
+    private void readNotes(Loop loop) throws IOException {
+        expect('[');
+        if (consumeIf(']')) {
+            return;
+        }
+        do {
+            readNote(loop);
+        } while (nextMember(']'));
+    }
+
+    private void readNote(Loop loop) throws IOException {
+        int pitch = 0;
+        double startBeat = 0.0;
+        double durationBeats = 0.0;
+        int velocity = 0;
+        int seen = 0;
+
+        expect('{');
+        if (!consumeIf('}')) {
+            do {
+                readKey();
+                expect(':');
+                if (keyIs(PITCH)) {
+                    pitch = readInt();
+                    seen |= 1;
+                } else if (keyIs(START_BEAT)) {
+                    startBeat = readDouble();
+                    seen |= 2;
+                } else if (keyIs(DURATION_BEATS)) {
+                    durationBeats = readDouble();
+                    seen |= 4;
+                } else if (keyIs(VELOCITY)) {
+                    velocity = readInt();
+                    seen |= 8;
+                } else {
+                    skipValue();
+                }
+            } while (nextMember('}'));
+        }
+
+        if (seen != 15) {
+            throw syntaxError("incomplete note");
+        }
+        if (strict && !(Double.isFinite(startBeat) && Double.isFinite(durationBeats))) {
+            throw syntaxError("note beats must be finite");
+        }
+        try {
+            loop.addNote(pitch, startBeat, durationBeats, velocity);
+        } catch (IllegalArgumentException e) {
+            // Say where the bad note is
+            throw syntaxError(e.getMessage());
+        }
+    }
+
+    /** Consumes the ',' between members, or the closing bracket. @return true if more follow */
+    private boolean nextMember(char close) throws IOException {
+        int c = nextToken();
+        if (c == ',') {
+            return true;
+        }
+        if (c == close) {
+            return false;
+        }
+        throw syntaxError("expected ',' or '" + close + "'");
+    }
+
+    private void readKey() throws IOException {
+        expect('"');
+        keyLength = 0;
+        while (true) {
+            int c = nextByte();
+            if (c == '"') {
+                return;
+            }
+            if (c == -1) {
+                throw syntaxError("unterminated string");
+            }
+            if (c == '\\') {
+                nextByte();
+                keyLength = -1;   // escaped keys are never ones we know
+            } else if (keyLength >= 0) {
+                if (keyLength == key.length) {
+                    keyLength = -1;
+                } else {
+                    key[keyLength++] = (byte) c;
+                }
+            }
+        }
+    }
+
+    private boolean keyIs(byte[] expected) {
+        if (keyLength != expected.length) {
+            return false;
+        }
+        for (int i = 0; i < keyLength; i++) {
+            if (key[i] != expected[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void skipValue() throws IOException {
+        int c = peekToken();
+        switch (c) {
+            case '"':
+                nextByte();
+                skipString();
+                break;
+            case '{':
+                nextByte();
+                if (!consumeIf('}')) {
+                    do {
+                        readKey();
+                        expect(':');
+                        skipValue();
+                    } while (nextMember('}'));
+                }
+                break;
+            case '[':
+                nextByte();
+                if (!consumeIf(']')) {
+                    do {
+                        skipValue();
+                    } while (nextMember(']'));
+                }
+                break;
+            case 't':
+            case 'f':
+            case 'n':
+                while (peekByte() >= 'a' && peekByte() <= 'z') {
+                    nextByte();
+                }
+                break;
+            default:
+                readNumber();
+                break;
+        }
+    }
+
+    private void skipString() throws IOException {
+        while (true) {
+            int c = nextByte();
+            if (c == '"') {
+                return;
+            }
+            if (c == -1) {
+                throw syntaxError("unterminated string");
+            }
+            if (c == '\\') {
+                nextByte();
+            }
+        }
+    }
+
+    // ---- Numbers ----
+
+    private int readInt() throws IOException {
+        readNumber();
+        if (!integral || digits > 10) {
+            throw syntaxError("expected an integer");
+        }
+        long value = negative ? -mantissa : mantissa;
+        if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+            throw syntaxError("integer out of range");
+        }
+        return (int) value;
+    }
+
+    private double readDouble() throws IOException {
+        readNumber();
+        double value;
+        if (digits <= MAX_FAST_DIGITS && Math.abs(exponent) < POWERS_OF_TEN.length) {
+            // Both operands are exact, so one correctly rounded operation gives the exact result
+            value = exponent >= 0 ? mantissa * POWERS_OF_TEN[exponent] : mantissa / POWERS_OF_TEN[-exponent];
+        } else {
+            value = Math.abs(Double.parseDouble(numberText.toString()));
+        }
+        return negative ? -value : value;
+    }
+
+    /**
+     * Scans a JSON number into mantissa/digits/exponent, keeping its text in
+     * numberText for the rare values the fast path cannot convert exactly.
+     */
+    private void readNumber() throws IOException {
+        mantissa = 0;
+        digits = 0;
+        exponent = 0;
+        negative = false;
+        integral = true;
+        numberText.setLength(0);
+
+        peekToken();
+        if (consumeNumberChar('-')) {
+            negative = true;
+        }
+        int integerDigits = scanDigits(false);
+        if (integerDigits == 0) {
+            throw syntaxError("expected a number");
+        }
+        if (consumeNumberChar('.')) {
+            integral = false;
+            if (scanDigits(true) == 0) {
+                throw syntaxError("expected digits after '.'");
+            }
+        }
+        if (consumeNumberChar('e') || consumeNumberChar('E')) {
+            integral = false;
+            boolean negativeExponent = consumeNumberChar('-');
+            if (!negativeExponent) {
+                consumeNumberChar('+');
+            }
+            int explicit = 0;
+            int exponentDigits = 0;
+            int c;
+            while ((c = peekByte()) >= '0' && c <= '9') {
+                numberText.append((char) nextByte());
+                if (explicit < 10_000) {
+                    explicit = explicit * 10 + (c - '0');
+                }
+                exponentDigits++;
+            }
+            if (exponentDigits == 0) {
+                throw syntaxError("expected exponent digits");
+            }
+            exponent += negativeExponent ? -explicit : explicit;
+        }
+    }
+
+    /** @return the number of digits scanned */
+    private int scanDigits(boolean fraction) throws IOException {
+        int count = 0;
+        int c;
+        while ((c = peekByte()) >= '0' && c <= '9') {
+            numberText.append((char) nextByte());
+            count++;
+            if (mantissa == 0 && c == '0') {
+                // Leading zeros are not significant
+                if (fraction) {
+                    exponent--;
+                }
+                continue;
+            }
+            if (digits < 18) {
+                mantissa = mantissa * 10 + (c - '0');
+                digits++;
+                if (fraction) {
+                    exponent--;
+                }
+            } else {
+                digits++;   // too precise for the fast path; numberText is used instead
+                if (!fraction) {
+                    exponent++;
+                }
+            }
+        }
+        return count;
+    }
+
+    private boolean consumeNumberChar(char expected) throws IOException {
+        if (peekByte() == expected) {
+            numberText.append((char) nextByte());
+            return true;
+        }
+        return false;
+    }
+
+    // ---- Bytes ----
+
+    private void expect(char expected) throws IOException {
+        if (nextToken() != expected) {
+            throw syntaxError("expected '" + expected + "'");
+        }
+    }
+
+    private boolean consumeIf(char expected) throws IOException {
+        if (peekToken() == expected) {
+            nextByte();
+            return true;
+        }
+        return false;
+    }
+
+    /** Skips whitespace and consumes the next byte. */
+    private int nextToken() throws IOException {
+        peekToken();
+        return nextByte();
+    }
+
+    /** Skips whitespace and returns the next byte without consuming it, or -1 at the end. */
+    private int peekToken() throws IOException {
+        while (true) {
+            int c = peekByte();
+            if (c != ' ' && c != '\n' && c != '\r' && c != '\t') {
+                return c;
+            }
+            buffer.get();
+        }
+    }
+
+    private int peekByte() throws IOException {
+        if (!buffer.hasRemaining() && !fill()) {
+            return -1;
+        }
+        return buffer.get(buffer.position()) & 0xFF;
+    }
+
+    private int nextByte() throws IOException {
+        if (!buffer.hasRemaining() && !fill()) {
+            return -1;
+        }
+        return buffer.get() & 0xFF;
+    }
+
+    private boolean fill() throws IOException {
+        if (channel == null) {
+            return false;
+        }
+        bufferOffset += buffer.limit();
+        buffer.clear();
+        int read;
+        do {
+            read = channel.read(buffer);
+        } while (read == 0);
+        buffer.flip();
+        return read > 0;
+    }
+
+    private IOException syntaxError(String message) {
+        return new IOException(message + " at byte " + (bufferOffset + buffer.position()));
+    }
+
+    private static byte[] ascii(String text) {
+        return text.getBytes(StandardCharsets.US_ASCII);
+    }
+}
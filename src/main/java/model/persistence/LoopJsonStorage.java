@@ -1,16 +1,19 @@
 package model.persistence;
 
 import model.Loop;
-import model.LoopNote;
 
 import java.io.IOException;
-import java.nio.charset.StandardCharsets;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 /**
- * Handles saving Loop data as JSON files on disk.
+ * Handles saving and loading Loop data as JSON files on disk.
  */
 public class LoopJsonStorage implements LoopStorage {
 
@@ -37,7 +40,8 @@ public class LoopJsonStorage implements LoopStorage {
     }
 
     /**
-     * Saves the given loop as a JSON file under the base directory.
+     * Saves the given loop as a JSON file under the base directory. An existing
+     * file is replaced atomically, so a crash never leaves it truncated.
      *
      * @param loop     the loop to save
      * @param fileName file name (e.g. "loop-1.json")
@@ -53,51 +57,59 @@ public class LoopJsonStorage implements LoopStorage {
 
         Path filePath = baseDirectory.resolve(fileName);
 
-        String json = buildJson(loop);
-        Files.write(filePath, json.getBytes(StandardCharsets.UTF_8));
+        // Streamed in fixed-size chunks: memory use does not depend on the number of notes
+        LoopJsonWriter writer = new LoopJsonWriter();
+        AtomicFiles.write(filePath, channel -> writer.write(loop, channel));
 
         System.out.println("LoopJsonStorage: saved loop to " + filePath.toAbsolutePath());
     }
 
     /**
-     * Builds a simple JSON representation:
-     * {
-     *   "measures": 4,
-     *   "tempoBPM": 120.0,
-     *   "notes": [
-     *     { "pitch": 3, "startBeat": 0.0, "durationBeats": 1.0, "velocity": 100 },
-     *     ...
-     *   ]
-     * }
+     * Loads a loop previously written by saveLoop from the base directory.
+     *
+     * @param fileName file name (e.g. "loop-1.json")
+     * @throws IOException if the file cannot be read or is not a loop file
      */
-    private String buildJson(Loop loop) {
-        StringBuilder sb = new StringBuilder();
-        sb.append("{\n");
-
-        sb.append("  \"measures\": ").append(loop.getMeasures().getValue()).append(",\n");
-        sb.append("  \"tempoBPM\": ").append(loop.getTempo().getBpm()).append(",\n");
-
-        sb.append("  \"notes\": [\n");
+    @Override
+    public Loop loadLoop(String fileName) throws IOException {
+        if (fileName == null || fileName.trim().isEmpty()) {
+            throw new IllegalArgumentException("fileName cannot be null/empty");
+        }
+        return load(new LoopJsonReader(), baseDirectory.resolve(fileName));
+    }
 
-        List<LoopNote> notes = loop.getNotes();
-        for (int i = 0; i < notes.size(); i++) {
-            LoopNote note = notes.get(i);
-            sb.append("    {\n");
-            sb.append("      \"pitch\": ").append(note.getPitch().getMidiNumber()).append(",\n");
-            sb.append("      \"startBeat\": ").append(note.getStartBeat().getValue()).append(",\n");
-            sb.append("      \"durationBeats\": ").append(note.getDurationBeats().getValue()).append(",\n");
-            sb.append("      \"velocity\": ").append(note.getVelocity().getValue()).append("\n");
+    /**
+     * Loads every *.json file in the base directory, reusing one reader and its
+     * buffer for all of them. Files that fail to load are skipped.
+     */
+    @Override
+    public Map<String, Loop> loadAll() throws IOException {
+        List<Path> files;
+        try (Stream<Path> listing = Files.list(baseDirectory)) {
+            files = listing
+                    .filter(path -> path.getFileName().toString().endsWith(".json"))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
 
-            sb.append("    }");
-            if (i < notes.size() - 1) {
-                sb.append(",");
+        LoopJsonReader reader = new LoopJsonReader();
+        Map<String, Loop> loops = new LinkedHashMap<>();
+        for (Path file : files) {
+            try {
+                loops.put(file.getFileName().toString(), load(reader, file));
+            } catch (IOException e) {
+                System.err.println("LoopJsonStorage: skipping " + file.getFileName() + ": " + e.getMessage());
             }
-            sb.append("\n");
         }
+        return loops;
+    }
 
-        sb.append("  ]\n");
-        sb.append("}\n");
-
-        return sb.toString();
+    private static Loop load(LoopJsonReader reader, Path filePath) throws IOException {
+        try (ReadableByteChannel channel = Files.newByteChannel(filePath)) {
+            return reader.read(channel);
+        } catch (IllegalArgumentException | IOException e) {
+            // Name the file: reader errors only know the byte offset
+            throw new IOException("Failed to load loop file " + filePath + ": " + e.getMessage(), e);
+        }
     }
 }
@@ -0,0 +1,174 @@
+package model.persistence;
+
+import model.Loop;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Streaming writer for the loop JSON format:
+ * <pre>
+ * {
+ *   "schemaVersion": 1,
+ *   "measures": 4,
+ *   "tempoBPM": 120.0,
+ *   "notes": [
+ *     { "pitch": 3, "startBeat": 0.0, "durationBeats": 1.0, "velocity": 100 },
+ *     ...
+ *   ]
+ * }
+ * </pre>
+ * (each field on its own line).
+ * <p>
+ * The document is written to a channel in fixed-size chunks through one reusable
+ * buffer, so memory use does not grow with the number of notes. Numbers are formatted
+ * straight into that buffer; doubles go through a reusable StringBuilder, which uses the
+ * same algorithm as Double.toString, so the output is byte-for-byte what the format has
+ * always been.
+ * <p>
+ * A writer can be reused for many loops but is not thread-safe.
+ */
+public final class LoopJsonWriter {
+
+    /**
+     * Version of the format written. Files without a "schemaVersion" field predate it
+     * and count as version 0; they have the same fields.
+     */
+    public static final int SCHEMA_VERSION = 1;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final byte[] OPEN = ascii("{\n  \"schemaVersion\": ");
+    private static final byte[] MEASURES = ascii(",\n  \"measures\": ");
+    private static final byte[] TEMPO = ascii(",\n  \"tempoBPM\": ");
+    private static final byte[] NOTES = ascii(",\n  \"notes\": [\n");
+    private static final byte[] NOTE_PITCH = ascii("    {\n      \"pitch\": ");
+    private static final byte[] NOTE_START = ascii(",\n      \"startBeat\": ");
+    private static final byte[] NOTE_DURATION = ascii(",\n      \"durationBeats\": ");
+    private static final byte[] NOTE_VELOCITY = ascii(",\n      \"velocity\": ");
+    private static final byte[] NOTE_CLOSE = ascii("\n    }");
+    private static final byte[] NOTE_SEPARATOR = ascii(",\n");
+    private static final byte[] NOTE_LAST = ascii("\n");
+    private static final byte[] CLOSE = ascii("  ]\n}\n");
+
+    /** Integral doubles below this print as "<digits>.0"; larger ones switch to E notation. */
+    private static final double PLAIN_INTEGRAL_LIMIT = 1e7;
+
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+    private final byte[] digits = new byte[20];
+    private final StringBuilder number = new StringBuilder(32);
+    private WritableByteChannel channel;
+
+    /**
+     * Writes the loop to the channel, which is not closed.
+     */
+    public void write(Loop loop, WritableByteChannel channel) throws IOException {
+        this.channel = channel;
+        buffer.clear();
+        try {
+            put(OPEN);
+            putLong(SCHEMA_VERSION);
+            put(MEASURES);
+            putLong(loop.getMeasures().getValue());
+            put(TEMPO);
+            putDouble(loop.getTempo().getBpm());
+            put(NOTES);
+
+            int count = loop.getNoteCount();
+            for (int i = 0; i < count; i++) {
+                put(NOTE_PITCH);
+                putLong(loop.getNotePitch(i));
+                put(NOTE_START);
+                putDouble(loop.getNoteStartBeat(i));
+                put(NOTE_DURATION);
+                putDouble(loop.getNoteDurationBeats(i));
+                put(NOTE_VELOCITY);
+                putLong(loop.getNoteVelocity(i));
+                put(NOTE_CLOSE);
+                put(i < count - 1 ? NOTE_SEPARATOR : NOTE_LAST);
+            }
+
+            put(CLOSE);
+            flush();
+        } finally {
+            this.channel = null;
+        }
+    }
+
+    // ---- Formatting ----
+
+    private void putLong(long value) throws IOException {
+        if (value < 0) {
+            putByte('-');
+            if (value == Long.MIN_VALUE) {
+                putAscii(Long.toString(value).substring(1));
+                return;
+            }
+            value = -value;
+        }
+        int length = 0;
+        do {
+            digits[length++] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value != 0);
+        ensureRoom(length);
+        while (length > 0) {
+            buffer.put(digits[--length]);
+        }
+    }
+
+    private void putDouble(double value) throws IOException {
+        // Most beat positions and tempos are whole numbers: "<digits>.0"
+        if (value == Math.rint(value) && Math.abs(value) < PLAIN_INTEGRAL_LIMIT
+                && (value != 0.0 || 1.0 / value > 0)) {
+            putLong((long) value);
+            putByte('.');
+            putByte('0');
+            return;
+        }
+        number.setLength(0);
+        number.append(value);
+        ensureRoom(number.length());
+        for (int i = 0; i < number.length(); i++) {
+            buffer.put((byte) number.charAt(i));
+        }
+    }
+
+    private void putAscii(CharSequence text) throws IOException {
+        for (int i = 0; i < text.length(); i++) {
+            putByte(text.charAt(i));
+        }
+    }
+
+    // ---- Buffer ----
+
+    private void put(byte[] bytes) throws IOException {
+        ensureRoom(bytes.length);
+        buffer.put(bytes);
+    }
+
+    private void putByte(char c) throws IOException {
+        ensureRoom(1);
+        buffer.put((byte) c);
+    }
+
+    private void ensureRoom(int bytes) throws IOException {
+        if (buffer.remaining() < bytes) {
+            flush();
+        }
+    }
+
+    private void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    private static byte[] ascii(String text) {
+        return text.getBytes(StandardCharsets.US_ASCII);
+    }
+}
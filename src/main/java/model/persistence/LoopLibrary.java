@@ -0,0 +1,316 @@
+package model.persistence;
+
+import model.Loop;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.stream.Stream;
+
+/**
+ * Searchable index of the loop files (*.json and *.loop) in a directory.
+ * <p>
+ * Each file's metadata (measures, tempo, note count, pitch range, mtime, content hash)
+ * is kept in memory and in an index file next to the loops. On open, only files whose
+ * mtime changed since the index was written are read again. While watching, a
+ * WatchService keeps the index up to date one file at a time, without rescanning.
+ * <p>
+ * Queries may run on any thread; updates are serialized internally.
+ */
+public class LoopLibrary implements Closeable {
+
+    public static final String INDEX_FILE_NAME = ".loop-index.tsv";
+    private static final String INDEX_HEADER = "# loop-index 1";
+
+    private final Path directory;
+    private final Path indexFile;
+    private final Map<String, LoopIndexEntry> entries = new ConcurrentSkipListMap<>();
+    private final LoopJsonReader jsonReader = new LoopJsonReader();
+
+    private WatchService watchService;
+    private Thread watchThread;
+
+    public LoopLibrary(Path directory) {
+        if (directory == null) {
+            throw new IllegalArgumentException("directory cannot be null");
+        }
+        this.directory = directory;
+        this.indexFile = directory.resolve(INDEX_FILE_NAME);
+    }
+
+    /**
+     * Loads the index file and brings it up to date with the directory, reading only
+     * new files and files whose mtime changed.
+     *
+     * @return the number of files that had to be read
+     * @throws IOException if the directory cannot be listed
+     */
+    public synchronized int open() throws IOException {
+        Files.createDirectories(directory);
+        readIndexFile();
+        int read = reconcile();
+        writeIndexFile();
+        System.out.println("LoopLibrary: indexed " + entries.size() + " loops in " + directory
+                + " (" + read + " read from disk)");
+        return read;
+    }
+
+    /**
+     * Starts a background thread that updates the index as loop files are created,
+     * changed or deleted. Call after open().
+     */
+    public synchronized void startWatching() throws IOException {
+        if (watchService != null) {
+            return;
+        }
+        watchService = directory.getFileSystem().newWatchService();
+        directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+
+        final WatchService service = watchService;
+        watchThread = new Thread(() -> watch(service), "LoopLibrary-Watcher");
+        watchThread.setDaemon(true);
+        watchThread.start();
+    }
+
+    /** Stops watching. The index stays usable. */
+    @Override
+    public synchronized void close() throws IOException {
+        if (watchService != null) {
+            watchService.close();
+            watchService = null;
+            watchThread = null;
+        }
+    }
+
+    /**
+     * @return the loops matching the query, in file name order
+     */
+    public List<LoopIndexEntry> find(LoopQuery query) {
+        if (query == null) {
+            throw new IllegalArgumentException("query cannot be null");
+        }
+        List<LoopIndexEntry> result = new ArrayList<>();
+        for (LoopIndexEntry entry : entries.values()) {
+            if (query.matches(entry)) {
+                result.add(entry);
+            }
+        }
+        return result;
+    }
+
+    /** @return the entry for the file, or null if it is not indexed */
+    public LoopIndexEntry get(String fileName) {
+        return entries.get(fileName);
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    // ---- Updating ----
+
+    /** Re-reads changed files and drops deleted ones. @return the number of files read */
+    private int reconcile() throws IOException {
+        Set<String> present = new HashSet<>();
+        int read = 0;
+        try (Stream<Path> listing = Files.list(directory)) {
+            for (Path file : (Iterable<Path>) listing::iterator) {
+                String name = file.getFileName().toString();
+                if (!isLoopFile(name)) {
+                    continue;
+                }
+                present.add(name);
+                LoopIndexEntry known = entries.get(name);
+                if (known == null || known.getModifiedMillis() != modifiedMillis(file)) {
+                    refresh(file);
+                    read++;
+                }
+            }
+        }
+        entries.keySet().retainAll(present);
+        return read;
+    }
+
+    /**
+     * Indexes one file again, or drops it if it is gone or unreadable.
+     *
+     * @return true if the index changed
+     */
+    private boolean refresh(Path file) {
+        String name = file.getFileName().toString();
+        try {
+            long modified = modifiedMillis(file);
+            LoopIndexEntry known = entries.get(name);
+            if (known != null && known.getModifiedMillis() == modified) {
+                return false;
+            }
+            entries.put(name, index(file, modified));
+            return true;
+        } catch (NoSuchFileException e) {
+            return entries.remove(name) != null;
+        } catch (IOException | IllegalArgumentException | IndexOutOfBoundsException e) {
+            // Possibly caught mid-write; the next change event indexes it again
+            System.err.println("LoopLibrary: could not index " + name + ": " + e.getMessage());
+            return entries.remove(name) != null;
+        }
+    }
+
+    private LoopIndexEntry index(Path file, long modified) throws IOException {
+        byte[] bytes = Files.readAllBytes(file);
+        String hash = sha256(bytes);
+        String name = file.getFileName().toString();
+
+        if (name.endsWith(LoopBinaryStorage.EXTENSION)) {
+            // Only the pitch column is needed; no notes are materialized
+            MappedLoop loop = MappedLoop.wrap(ByteBuffer.wrap(bytes));
+            int lowest = -1;
+            int highest = -1;
+            MappedLoop.Cursor cursor = loop.cursor();
+            while (cursor.next()) {
+                int pitch = cursor.getPitch();
+                lowest = lowest < 0 ? pitch : Math.min(lowest, pitch);
+                highest = Math.max(highest, pitch);
+            }
+            return new LoopIndexEntry(name, loop.getMeasures(), loop.getTempoBpm(), loop.getNoteCount(),
+                    lowest, highest, modified, hash);
+        }
+
+        Loop loop = jsonReader.read(ByteBuffer.wrap(bytes));
+        int lowest = -1;
+        int highest = -1;
+        for (int i = 0; i < loop.getNoteCount(); i++) {
+            int pitch = loop.getNotePitch(i);
+            lowest = lowest < 0 ? pitch : Math.min(lowest, pitch);
+            highest = Math.max(highest, pitch);
+        }
+        return new LoopIndexEntry(name, loop.getMeasures().getValue(), loop.getTempo().getBpm(),
+                loop.getNoteCount(), lowest, highest, modified, hash);
+    }
+
+    private void watch(WatchService service) {
+        while (true) {
+            WatchKey key;
+            try {
+                key = service.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+
+            synchronized (this) {
+                boolean changed = false;
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        // Events were lost; fall back to an mtime comparison of the whole directory
+                        try {
+                            changed |= reconcile() > 0;
+                        } catch (IOException e) {
+                            System.err.println("LoopLibrary: rescan failed: " + e.getMessage());
+                        }
+                        continue;
+                    }
+                    Path name = (Path) event.context();
+                    if (isLoopFile(name.toString())) {
+                        changed |= refresh(directory.resolve(name));
+                    }
+                }
+                if (changed) {
+                    try {
+                        writeIndexFile();
+                    } catch (IOException e) {
+                        System.err.println("LoopLibrary: failed to write index: " + e.getMessage());
+                    }
+                }
+            }
+
+            if (!key.reset()) {
+                System.err.println("LoopLibrary: " + directory + " is no longer accessible, stopped watching.");
+                return;
+            }
+        }
+    }
+
+    // ---- Index file ----
+
+    private void readIndexFile() {
+        entries.clear();
+        if (!Files.exists(indexFile)) {
+            return;
+        }
+        try {
+            List<String> lines = Files.readAllLines(indexFile, StandardCharsets.UTF_8);
+            if (lines.isEmpty() || !lines.get(0).equals(INDEX_HEADER)) {
+                System.err.println("LoopLibrary: ignoring index in unknown format " + indexFile);
+                return;
+            }
+            for (int i = 1; i < lines.size(); i++) {
+                String[] f = lines.get(i).split("\t");
+                if (f.length != 8) {
+                    continue;
+                }
+                entries.put(f[0], new LoopIndexEntry(f[0], Integer.parseInt(f[1]), Double.parseDouble(f[2]),
+                        Integer.parseInt(f[3]), Integer.parseInt(f[4]), Integer.parseInt(f[5]),
+                        Long.parseLong(f[6]), f[7]));
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            // The index is only a cache: rebuild it from the files
+            System.err.println("LoopLibrary: ignoring unreadable index " + indexFile + ": " + e.getMessage());
+            entries.clear();
+        }
+    }
+
+    /** Writes the index next to the loops, replacing the old one atomically. */
+    private void writeIndexFile() throws IOException {
+        Path temp = indexFile.resolveSibling(INDEX_FILE_NAME + ".tmp");
+        try (BufferedWriter out = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+            out.write(INDEX_HEADER);
+            out.newLine();
+            for (LoopIndexEntry e : entries.values()) {
+                out.write(e.getFileName() + "\t" + e.getMeasures() + "\t" + e.getTempoBpm() + "\t"
+                        + e.getNoteCount() + "\t" + e.getLowestPitch() + "\t" + e.getHighestPitch() + "\t"
+                        + e.getModifiedMillis() + "\t" + e.getContentHash());
+                out.newLine();
+            }
+        }
+        Files.move(temp, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // ---- Helpers ----
+
+    private static boolean isLoopFile(String name) {
+        return !name.startsWith(".")
+                && (name.endsWith(".json") || name.endsWith(LoopBinaryStorage.EXTENSION));
+    }
+
+    private static long modifiedMillis(Path file) throws IOException {
+        return Files.getLastModifiedTime(file).toMillis();
+    }
+
+    private static String sha256(byte[] bytes) {
+        try {
+            return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(bytes));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+}
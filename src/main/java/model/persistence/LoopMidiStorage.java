@@ -0,0 +1,370 @@
+package model.persistence;
+
+import model.BeatDuration;
+import model.BeatPosition;
+import model.Loop;
+import model.LoopNote;
+import model.Measures;
+import model.Pitch;
+import model.Tempo;
+import model.Velocity;
+
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MetaMessage;
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.MidiSystem;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.Track;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Saves and loads loops as Standard MIDI Files, for exchanging material with DAWs.
+ * <p>
+ * Beat positions and durations map to ticks at {@link #PPQ} ticks per quarter note,
+ * rounded to the nearest tick. Pitches are written as keys relative to a base key, by
+ * default middle C, where the piano plays pitch 0. Files are written as type 1 (a tempo
+ * track plus a note track) or type 0 (one track); any type 0 or 1 file with PPQ timing
+ * can be read, with notes from all tracks and channels merged.
+ * <p>
+ * The loop length is kept in a "loop end" marker, since notes may ring past it. Overlapping
+ * notes on the same key pair their note-ons and note-offs first in, first out, as most
+ * sequencers do, so they may come back with different lengths.
+ */
+public class LoopMidiStorage implements LoopStorage {
+
+    public static final String EXTENSION = ".mid";
+
+    /** Same resolution as the playback transport. */
+    public static final int PPQ = 960;
+
+    /** Middle C: the key the piano instrument sounds for pitch 0. */
+    public static final int DEFAULT_BASE_KEY = 60;
+
+    private static final int BEATS_PER_MEASURE = 4;
+    private static final int META_MARKER = 0x06;
+    private static final int META_TEMPO = 0x51;
+    private static final int META_TIME_SIGNATURE = 0x58;
+    private static final int META_END_OF_TRACK = 0x2F;
+    private static final double MICROS_PER_MINUTE = 60_000_000.0;
+    private static final String LOOP_END_MARKER = "loop end";
+
+    private final Path baseDirectory;
+    private final int fileType;
+    private final int baseKey;
+
+    /**
+     * Writes type 1 files with pitch 0 on middle C.
+     */
+    public LoopMidiStorage(Path baseDirectory) {
+        this(baseDirectory, 1, DEFAULT_BASE_KEY);
+    }
+
+    /**
+     * @param baseDirectory directory where loop files will be written.
+     *                      Will be created if it doesn't exist.
+     * @param fileType      SMF type to write, 0 or 1
+     * @param baseKey       MIDI key that pitch 0 maps to
+     */
+    public LoopMidiStorage(Path baseDirectory, int fileType, int baseKey) {
+        if (fileType != 0 && fileType != 1) {
+            throw new IllegalArgumentException("fileType must be 0 or 1, got: " + fileType);
+        }
+        if (baseKey < 0 || baseKey > 127) {
+            throw new IllegalArgumentException("baseKey must be in [0, 127], got: " + baseKey);
+        }
+        this.baseDirectory = baseDirectory;
+        this.fileType = fileType;
+        this.baseKey = baseKey;
+        ensureDirectoryExists();
+    }
+
+    private void ensureDirectoryExists() {
+        try {
+            if (!Files.exists(baseDirectory)) {
+                Files.createDirectories(baseDirectory);
+            }
+        } catch (IOException e) {
+            System.err.println("LoopMidiStorage: failed to create directory "
+                    + baseDirectory + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Saves the given loop as a MIDI file under the base directory. An existing file is
+     * replaced atomically.
+     *
+     * @param loop     the loop to save
+     * @param fileName file name (e.g. "loop-1.mid")
+     * @throws IOException if the file cannot be written, or a pitch is out of MIDI range
+     *                     after adding the base key
+     */
+    @Override
+    public void saveLoop(Loop loop, String fileName) throws IOException {
+        if (loop == null) {
+            throw new IllegalArgumentException("loop cannot be null");
+        }
+        if (fileName == null || fileName.trim().isEmpty()) {
+            throw new IllegalArgumentException("fileName cannot be null/empty");
+        }
+
+        Sequence sequence;
+        try {
+            sequence = toSequence(loop);
+        } catch (InvalidMidiDataException e) {
+            throw new IOException("Cannot encode loop as MIDI: " + e.getMessage(), e);
+        }
+
+        Path filePath = baseDirectory.resolve(fileName);
+        AtomicFiles.write(filePath, channel -> {
+            OutputStream out = new BufferedOutputStream(Channels.newOutputStream(channel));
+            MidiSystem.write(sequence, fileType, out);
+            out.flush();
+        });
+
+        System.out.println("LoopMidiStorage: saved loop to " + filePath.toAbsolutePath());
+    }
+
+    /**
+     * Loads a loop from a MIDI file in the base directory. The tempo is the first tempo
+     * event (120 BPM if there is none). The length, in whole 4/4 measures, comes from the
+     * "loop end" marker, or else is long enough to hold every note and the end of every track.
+     *
+     * @throws IOException if the file cannot be read, is not a MIDI file, or uses SMPTE timing
+     */
+    @Override
+    public Loop loadLoop(String fileName) throws IOException {
+        if (fileName == null || fileName.trim().isEmpty()) {
+            throw new IllegalArgumentException("fileName cannot be null/empty");
+        }
+        Path filePath = baseDirectory.resolve(fileName);
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(filePath))) {
+            return fromSequence(MidiSystem.getSequence(in));
+        } catch (InvalidMidiDataException | IOException e) {
+            throw new IOException("Failed to load loop file " + filePath + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Loads every *.mid file in the base directory. Files that fail to load are skipped.
+     */
+    @Override
+    public Map<String, Loop> loadAll() throws IOException {
+        List<Path> files;
+        try (Stream<Path> listing = Files.list(baseDirectory)) {
+            files = listing
+                    .filter(path -> path.getFileName().toString().endsWith(EXTENSION))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+
+        Map<String, Loop> loops = new LinkedHashMap<>();
+        for (Path file : files) {
+            String name = file.getFileName().toString();
+            try {
+                loops.put(name, loadLoop(name));
+            } catch (IOException e) {
+                System.err.println("LoopMidiStorage: skipping " + name + ": " + e.getMessage());
+            }
+        }
+        return loops;
+    }
+
+    // ---- Encoding ----
+
+    private Sequence toSequence(Loop loop) throws InvalidMidiDataException {
+        Sequence sequence = new Sequence(Sequence.PPQ, PPQ);
+        Track conductor = sequence.createTrack();
+        Track notes = fileType == 1 ? sequence.createTrack() : conductor;
+
+        int microsPerQuarter = (int) Math.round(MICROS_PER_MINUTE / loop.getTempo().getBpm());
+        conductor.add(new MidiEvent(new MetaMessage(META_TEMPO, new byte[]{
+                (byte) (microsPerQuarter >>> 16), (byte) (microsPerQuarter >>> 8), (byte) microsPerQuarter}, 3), 0));
+        // 4/4, 24 clocks per metronome click, 8 thirty-seconds per quarter
+        conductor.add(new MidiEvent(new MetaMessage(META_TIME_SIGNATURE, new byte[]{4, 2, 24, 8}, 4), 0));
+
+        // Sorted up front: Track.add is cheap only when events arrive in tick order.
+        // Each event is packed as tick << 16 | isOn << 15 | velocity << 7 | key, so note-offs
+        // sort before note-ons on the same tick and a retriggered key is never cut short.
+        int count = loop.getNoteCount();
+        long[] events = new long[count * 2];
+        int[] velocities = new int[128];
+        Arrays.fill(velocities, -1);
+        int n = 0;
+        for (int i = 0; i < count; i++) {
+            int key = toKey(loop.getNotePitch(i));
+            double startBeat = loop.getNoteStartBeat(i);
+            long start = toTick(startBeat);
+            long end = Math.max(start + 1, toTick(startBeat + loop.getNoteDurationBeats(i)));
+            // Velocity 0 would read back as a note-off
+            int velocity = Math.max(1, loop.getNoteVelocity(i));
+            events[n++] = start << 16 | 1L << 15 | (long) velocity << 7 | key;
+            events[n++] = end << 16 | key;
+        }
+        Arrays.sort(events);
+
+        for (long event : events) {
+            long tick = event >>> 16;
+            boolean on = (event & (1L << 15)) != 0;
+            int velocity = (int) (event >>> 7) & 0x7F;
+            int key = (int) event & 0x7F;
+            notes.add(new MidiEvent(new ShortMessage(on ? ShortMessage.NOTE_ON : ShortMessage.NOTE_OFF,
+                    0, key, on ? velocity : 0), tick));
+        }
+
+        long loopEnd = toTick((double) loop.getMeasures().getValue() * BEATS_PER_MEASURE);
+        byte[] marker = LOOP_END_MARKER.getBytes(StandardCharsets.US_ASCII);
+        conductor.add(new MidiEvent(new MetaMessage(META_MARKER, marker, marker.length), loopEnd));
+        for (Track track : sequence.getTracks()) {
+            track.add(new MidiEvent(new MetaMessage(META_END_OF_TRACK, new byte[0], 0),
+                    Math.max(loopEnd, track.ticks())));
+        }
+        return sequence;
+    }
+
+    private int toKey(int pitch) throws InvalidMidiDataException {
+        int key = baseKey + pitch;
+        if (key > 127) {
+            throw new InvalidMidiDataException("pitch " + pitch + " is above MIDI key 127");
+        }
+        return key;
+    }
+
+    private static long toTick(double beats) {
+        return Math.round(beats * PPQ);
+    }
+
+    // ---- Decoding ----
+
+    private Loop fromSequence(Sequence sequence) throws InvalidMidiDataException {
+        if (sequence.getDivisionType() != Sequence.PPQ) {
+            throw new InvalidMidiDataException("SMPTE timing is not supported");
+        }
+        double ticksPerBeat = sequence.getResolution();
+
+        double bpm = 120.0;
+        long firstTempoTick = Long.MAX_VALUE;
+        long loopEndTick = -1;
+        long endTick = 0;
+        int skipped = 0;
+        List<LoopNote> notes = new ArrayList<>();
+        // Note-ons waiting for their note-off, by channel and key, oldest first
+        Map<Integer, ArrayDeque<long[]>> open = new HashMap<>();
+
+        for (Track track : sequence.getTracks()) {
+            endTick = Math.max(endTick, track.ticks());
+            for (int i = 0; i < track.size(); i++) {
+                MidiEvent event = track.get(i);
+                MidiMessage message = event.getMessage();
+                long tick = event.getTick();
+
+                if (message instanceof MetaMessage) {
+                    MetaMessage meta = (MetaMessage) message;
+                    byte[] data = meta.getData();
+                    if (meta.getType() == META_TEMPO && data.length == 3 && tick < firstTempoTick) {
+                        int micros = (data[0] & 0xFF) << 16 | (data[1] & 0xFF) << 8 | (data[2] & 0xFF);
+                        if (micros > 0) {
+                            bpm = toBpm(micros);
+                            firstTempoTick = tick;
+                        }
+                    } else if (meta.getType() == META_MARKER
+                            && LOOP_END_MARKER.equals(new String(data, StandardCharsets.US_ASCII))) {
+                        loopEndTick = tick;
+                    }
+                    continue;
+                }
+                if (!(message instanceof ShortMessage)) {
+                    continue;
+                }
+                ShortMessage shortMessage = (ShortMessage) message;
+                int command = shortMessage.getCommand();
+                int velocity = shortMessage.getData2();
+                boolean on = command == ShortMessage.NOTE_ON && velocity > 0;
+                boolean off = command == ShortMessage.NOTE_OFF || (command == ShortMessage.NOTE_ON && velocity == 0);
+                if (!on && !off) {
+                    continue;
+                }
+                int channelKey = shortMessage.getChannel() << 7 | shortMessage.getData1();
+                if (on) {
+                    open.computeIfAbsent(channelKey, k -> new ArrayDeque<>()).add(new long[]{tick, velocity});
+                } else {
+                    ArrayDeque<long[]> pending = open.get(channelKey);
+                    long[] start = pending == null ? null : pending.poll();
+                    if (start != null && !addNote(notes, shortMessage.getData1(), start, tick, ticksPerBeat)) {
+                        skipped++;
+                    }
+                }
+            }
+        }
+        // Notes never switched off last until the end of the sequence
+        for (Map.Entry<Integer, ArrayDeque<long[]>> entry : open.entrySet()) {
+            for (long[] start : entry.getValue()) {
+                if (!addNote(notes, entry.getKey() & 0x7F, start, endTick, ticksPerBeat)) {
+                    skipped++;
+                }
+            }
+        }
+        if (skipped > 0) {
+            System.err.println("LoopMidiStorage: skipped " + skipped + " notes below base key " + baseKey);
+        }
+
+        double lengthBeats = endTick / ticksPerBeat;
+        if (loopEndTick >= 0) {
+            lengthBeats = loopEndTick / ticksPerBeat;
+        } else {
+            for (LoopNote note : notes) {
+                lengthBeats = Math.max(lengthBeats, note.getStartBeat().getValue() + note.getDurationBeats().getValue());
+            }
+        }
+        int measures = Math.max(1, (int) Math.ceil(lengthBeats / BEATS_PER_MEASURE - 1e-9));
+
+        Loop loop = new Loop(new Measures(measures));
+        loop.setTempo(new Tempo(bpm));
+        notes.sort((a, b) -> Double.compare(a.getStartBeat().getValue(), b.getStartBeat().getValue()));
+        for (LoopNote note : notes) {
+            loop.addNote(note);
+        }
+        return loop;
+    }
+
+    /**
+     * Tempo events only hold whole microseconds per quarter, so 90 BPM reads back as
+     * 89.99995. Prefers the nearest hundredth of a BPM that encodes to the same value.
+     */
+    private static double toBpm(int microsPerQuarter) {
+        double bpm = MICROS_PER_MINUTE / microsPerQuarter;
+        double rounded = Math.round(bpm * 100) / 100.0;
+        return Math.round(MICROS_PER_MINUTE / rounded) == microsPerQuarter ? rounded : bpm;
+    }
+
+    /** @return false if the key is below the base key and has no pitch */
+    private boolean addNote(List<LoopNote> notes, int key, long[] start, long endTick, double ticksPerBeat) {
+        int pitch = key - baseKey;
+        if (pitch < 0) {
+            return false;
+        }
+        long startTick = start[0];
+        long durationTicks = Math.max(1, endTick - startTick);
+        notes.add(new LoopNote(Pitch.of(pitch), new BeatPosition(startTick / ticksPerBeat),
+                new BeatDuration(durationTicks / ticksPerBeat), Velocity.of((int) start[1])));
+        return true;
+    }
+}
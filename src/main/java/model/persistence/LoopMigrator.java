@@ -0,0 +1,205 @@
+package model.persistence;
+
+import model.Loop;
+
+import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Headless command that checks every JSON loop under a directory and upgrades old ones.
+ * <p>
+ * Each file is parsed with a strict reader, which applies the model's invariants (pitch
+ * and velocity 0-127, positive durations, tempo within the Tempo range, finite beats).
+ * Valid files from an older schema version are rewritten in place in the current one,
+ * with an atomic replace, keeping every field the format defines (unknown fields are
+ * dropped); invalid files are reported and left alone. Files are processed
+ * in parallel on a fork-join pool, with progress printed every second.
+ * <p>
+ * Usage: LoopMigrator [dir] [--check] [--threads n]
+ * <br>--check only reports, without rewriting. Exits with status 1 if any file is invalid
+ * or could not be rewritten.
+ */
+public class LoopMigrator {
+
+    private static final String JSON_EXTENSION = ".json";
+
+    /** Below this many files a task processes them itself instead of splitting. */
+    private static final int FILES_PER_TASK = 16;
+
+    private final boolean checkOnly;
+    private final LongAdder processed = new LongAdder();
+    private final LongAdder current = new LongAdder();
+    private final LongAdder migrated = new LongAdder();
+    private final LongAdder outdated = new LongAdder();
+    private final LongAdder invalid = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+
+    /**
+     * @param checkOnly report outdated files instead of rewriting them
+     */
+    public LoopMigrator(boolean checkOnly) {
+        this.checkOnly = checkOnly;
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        Path dir = Paths.get("loops");
+        boolean checkOnly = false;
+        int threads = Runtime.getRuntime().availableProcessors();
+
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--check")) {
+                checkOnly = true;
+            } else if (args[i].equals("--threads")) {
+                threads = Integer.parseInt(args[++i]);
+            } else {
+                dir = Paths.get(args[i]);
+            }
+        }
+
+        LoopMigrator migrator = new LoopMigrator(checkOnly);
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            migrator.run(dir, pool);
+        } finally {
+            pool.shutdown();
+        }
+        if (migrator.getInvalidCount() > 0 || migrator.getFailedCount() > 0) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Checks and migrates every *.json file under the directory, skipping hidden files
+     * and directories, and prints progress until done.
+     */
+    public void run(Path directory, ForkJoinPool pool) throws IOException, InterruptedException {
+        List<Path> files;
+        try (Stream<Path> walk = Files.walk(directory)) {
+            files = walk
+                    .filter(path -> path.getFileName().toString().endsWith(JSON_EXTENSION))
+                    .filter(path -> !isHidden(directory.relativize(path)))
+                    .filter(Files::isRegularFile)
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+        int total = files.size();
+        System.out.println("LoopMigrator: " + (checkOnly ? "checking " : "migrating ") + total
+                + " files under " + directory + " on " + pool.getParallelism() + " threads");
+
+        long start = System.nanoTime();
+        ForkJoinTask<Void> task = pool.submit(new MigrateTask(files, 0, total));
+        while (true) {
+            try {
+                task.get(1, TimeUnit.SECONDS);
+                break;
+            } catch (TimeoutException e) {
+                printProgress(total, start);
+            } catch (ExecutionException e) {
+                throw new IOException("migration failed: " + e.getCause(), e.getCause());
+            }
+        }
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("LoopMigrator: %d files in %.2f s (%.0f files/s): %d current, %d %s, %d invalid, %d failed%n",
+                total, seconds, total / Math.max(seconds, 1e-9), current.sum(),
+                checkOnly ? outdated.sum() : migrated.sum(), checkOnly ? "outdated" : "migrated",
+                invalid.sum(), failed.sum());
+    }
+
+    public long getInvalidCount() {
+        return invalid.sum();
+    }
+
+    public long getMigratedCount() {
+        return migrated.sum();
+    }
+
+    /** @return how many valid files could not be rewritten */
+    public long getFailedCount() {
+        return failed.sum();
+    }
+
+    private void printProgress(int total, long start) {
+        long done = processed.sum();
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("LoopMigrator: %d/%d files (%.0f files/s)%n", done, total, done / seconds);
+    }
+
+    /** Processes a range of the file list, splitting it in half until it is small. */
+    private final class MigrateTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final List<Path> files;
+        private final int begin;
+        private final int end;
+
+        MigrateTask(List<Path> files, int begin, int end) {
+            this.files = files;
+            this.begin = begin;
+            this.end = end;
+        }
+
+        @Override
+        protected void compute() {
+            if (end - begin > FILES_PER_TASK) {
+                int middle = (begin + end) >>> 1;
+                invokeAll(new MigrateTask(files, begin, middle), new MigrateTask(files, middle, end));
+                return;
+            }
+            // Readers and writers keep their buffers, but are not thread-safe: one pair per leaf
+            LoopJsonReader reader = new LoopJsonReader(true);
+            LoopJsonWriter writer = new LoopJsonWriter();
+            for (int i = begin; i < end; i++) {
+                migrate(files.get(i), reader, writer);
+                processed.increment();
+            }
+        }
+    }
+
+    private void migrate(Path file, LoopJsonReader reader, LoopJsonWriter writer) {
+        Loop loop;
+        try (ReadableByteChannel channel = Files.newByteChannel(file)) {
+            loop = reader.read(channel);
+        } catch (IOException | IllegalArgumentException e) {
+            invalid.increment();
+            System.err.println("LoopMigrator: invalid " + file + ": " + e.getMessage());
+            return;
+        }
+
+        if (reader.getSchemaVersion() == LoopJsonWriter.SCHEMA_VERSION) {
+            current.increment();
+        } else if (checkOnly) {
+            outdated.increment();
+        } else {
+            try {
+                AtomicFiles.write(file, channel -> writer.write(loop, channel));
+                migrated.increment();
+            } catch (IOException e) {
+                failed.increment();
+                System.err.println("LoopMigrator: could not rewrite " + file + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private static boolean isHidden(Path relative) {
+        for (Path part : relative) {
+            if (part.toString().startsWith(".")) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,80 @@
+package model.persistence;
+
+/**
+ * Criteria for finding loops in a LoopLibrary. Queries are immutable; each
+ * {@code with...} method returns a narrower copy.
+ * <p>
+ * Example: {@code LoopQuery.any().withTempo(118, 122).withMeasures(4).withMoreNotesThan(20)}
+ */
+public final class LoopQuery {
+
+    private static final LoopQuery ANY = new LoopQuery(0.0, Double.MAX_VALUE, 0, 0, Integer.MAX_VALUE, 0, 127);
+
+    private final double minTempo;
+    private final double maxTempo;
+    private final int measures;       // 0 = any
+    private final int minNotes;
+    private final int maxNotes;
+    private final int lowestPitch;
+    private final int highestPitch;
+
+    private LoopQuery(double minTempo, double maxTempo, int measures, int minNotes, int maxNotes,
+                      int lowestPitch, int highestPitch) {
+        this.minTempo = minTempo;
+        this.maxTempo = maxTempo;
+        this.measures = measures;
+        this.minNotes = minNotes;
+        this.maxNotes = maxNotes;
+        this.lowestPitch = lowestPitch;
+        this.highestPitch = highestPitch;
+    }
+
+    /** Matches every loop. */
+    public static LoopQuery any() {
+        return ANY;
+    }
+
+    /** Tempo between min and max BPM, inclusive. */
+    public LoopQuery withTempo(double minBpm, double maxBpm) {
+        if (!(minBpm <= maxBpm)) {
+            throw new IllegalArgumentException("tempo range is empty: " + minBpm + " to " + maxBpm);
+        }
+        return new LoopQuery(minBpm, maxBpm, measures, minNotes, maxNotes, lowestPitch, highestPitch);
+    }
+
+    public LoopQuery withMeasures(int measures) {
+        if (measures <= 0) {
+            throw new IllegalArgumentException("Measures must be positive, got: " + measures);
+        }
+        return new LoopQuery(minTempo, maxTempo, measures, minNotes, maxNotes, lowestPitch, highestPitch);
+    }
+
+    /** Between min and max notes, inclusive. */
+    public LoopQuery withNotes(int min, int max) {
+        if (min < 0 || min > max) {
+            throw new IllegalArgumentException("note count range is empty: " + min + " to " + max);
+        }
+        return new LoopQuery(minTempo, maxTempo, measures, min, max, lowestPitch, highestPitch);
+    }
+
+    public LoopQuery withMoreNotesThan(int count) {
+        return withNotes(count + 1, Integer.MAX_VALUE);
+    }
+
+    /** Every note's pitch within [lowest, highest]; empty loops match. */
+    public LoopQuery withPitchesWithin(int lowest, int highest) {
+        if (lowest < 0 || highest > 127 || lowest > highest) {
+            throw new IllegalArgumentException("pitch range must be within [0, 127], got: "
+                    + lowest + " to " + highest);
+        }
+        return new LoopQuery(minTempo, maxTempo, measures, minNotes, maxNotes, lowest, highest);
+    }
+
+    public boolean matches(LoopIndexEntry entry) {
+        return entry.getTempoBpm() >= minTempo && entry.getTempoBpm() <= maxTempo
+                && (measures == 0 || entry.getMeasures() == measures)
+                && entry.getNoteCount() >= minNotes && entry.getNoteCount() <= maxNotes
+                && (entry.getNoteCount() == 0
+                    || (entry.getLowestPitch() >= lowestPitch && entry.getHighestPitch() <= highestPitch));
+    }
+}
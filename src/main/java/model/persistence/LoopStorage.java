@@ -3,9 +3,10 @@ package model.persistence;
 import model.Loop;
 
 import java.io.IOException;
+import java.util.Map;
 
 /**
- * Abstraction for saving loop data.
+ * Abstraction for saving and loading loop data.
  * Different implementations can persist loops to JSON, a database, etc.
  */
 public interface LoopStorage {
@@ -18,4 +19,21 @@ public interface LoopStorage {
      * @throws IOException if the save operation fails
      */
     void saveLoop(Loop loop, String fileName) throws IOException;
+
+    /**
+     * Loads a loop previously saved under the given name.
+     *
+     * @param fileName the name the loop was saved under
+     * @throws IOException if the loop cannot be read or is not valid
+     */
+    Loop loadLoop(String fileName) throws IOException;
+
+    /**
+     * Loads every loop in storage. Loops that cannot be read are reported and skipped,
+     * so one bad file does not hide the rest of the library.
+     *
+     * @return loops by name, in name order
+     * @throws IOException if the storage itself cannot be listed
+     */
+    Map<String, Loop> loadAll() throws IOException;
 }
@@ -0,0 +1,209 @@
+package model.persistence;
+
+import model.Loop;
+import model.Measures;
+import model.Tempo;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Read-only view of a loop in the binary format, directly over its bytes (usually a
+ * memory-mapped file). Notes are decoded one at a time by a {@link Cursor}, so a large
+ * loop can be scanned without copying it onto the heap.
+ * <p>
+ * Layout (little-endian), version 1:
+ * <pre>
+ *  0  magic "LOOP"          4 bytes
+ *  4  version               u8
+ *  5  flags                 u8 (reserved, 0)
+ *  6  reserved              u16
+ *  8  measures              i32
+ * 12  tempo BPM             f64
+ * 20  note count            i32
+ * 24  ticks per beat        i32; 0 = positions stored as raw f64 beats
+ * 28  start column bytes    i32
+ * 32  duration column bytes i32
+ * 36  start column          per note, sorted by start: varint tick delta from the previous note
+ *     duration column       per note: varint ticks
+ *     pitch column          per note: u8
+ *     velocity column       per note: u8
+ * </pre>
+ * In raw mode the start and duration columns hold one f64 per note instead.
+ */
+public final class MappedLoop {
+
+    static final byte[] MAGIC = {'L', 'O', 'O', 'P'};
+    static final int VERSION = 1;
+    static final int HEADER_BYTES = 36;
+
+    private final ByteBuffer data;
+    private final int measures;
+    private final double tempoBpm;
+    private final int noteCount;
+    private final int ticksPerBeat;
+    private final int startColumn;
+    private final int durationColumn;
+    private final int pitchColumn;
+    private final int velocityColumn;
+
+    private MappedLoop(ByteBuffer data, int measures, double tempoBpm, int noteCount, int ticksPerBeat,
+                       int startBytes, int durationBytes) {
+        this.data = data;
+        this.measures = measures;
+        this.tempoBpm = tempoBpm;
+        this.noteCount = noteCount;
+        this.ticksPerBeat = ticksPerBeat;
+        this.startColumn = HEADER_BYTES;
+        this.durationColumn = startColumn + startBytes;
+        this.pitchColumn = durationColumn + durationBytes;
+        this.velocityColumn = pitchColumn + noteCount;
+    }
+
+    /**
+     * Checks the header and wraps the bytes. The buffer's position and limit mark the
+     * loop; the buffer itself is not modified.
+     *
+     * @throws IOException if the bytes are not a loop in a supported version
+     */
+    public static MappedLoop wrap(ByteBuffer bytes) throws IOException {
+        ByteBuffer data = bytes.slice().order(ByteOrder.LITTLE_ENDIAN);
+        if (data.remaining() < HEADER_BYTES) {
+            throw new IOException("too short for a loop header");
+        }
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (data.get(i) != MAGIC[i]) {
+                throw new IOException("not a binary loop file");
+            }
+        }
+        int version = data.get(4) & 0xFF;
+        if (version != VERSION) {
+            throw new IOException("unsupported binary loop version " + version);
+        }
+
+        int measures = data.getInt(8);
+        double tempoBpm = data.getDouble(12);
+        int noteCount = data.getInt(20);
+        int ticksPerBeat = data.getInt(24);
+        int startBytes = data.getInt(28);
+        int durationBytes = data.getInt(32);
+
+        long expected = (long) HEADER_BYTES + startBytes + durationBytes + 2L * noteCount;
+        if (noteCount < 0 || ticksPerBeat < 0 || startBytes < 0 || durationBytes < 0
+                || expected != data.limit()) {
+            throw new IOException("corrupt binary loop header");
+        }
+        return new MappedLoop(data, measures, tempoBpm, noteCount, ticksPerBeat, startBytes, durationBytes);
+    }
+
+    public int getMeasures() {
+        return measures;
+    }
+
+    public double getTempoBpm() {
+        return tempoBpm;
+    }
+
+    public int getNoteCount() {
+        return noteCount;
+    }
+
+    /** A new cursor before the first note. Cursors are independent of each other. */
+    public Cursor cursor() {
+        return new Cursor();
+    }
+
+    /**
+     * Copies the loop onto the heap as a model Loop.
+     *
+     * @throws IOException if the note data is corrupt
+     */
+    public Loop toLoop() throws IOException {
+        try {
+            Loop loop = new Loop(new Measures(measures));
+            loop.setTempo(new Tempo(tempoBpm));
+            Cursor cursor = cursor();
+            while (cursor.next()) {
+                loop.addNote(cursor.getPitch(), cursor.getStartBeat(),
+                        cursor.getDurationBeats(), cursor.getVelocity());
+            }
+            return loop;
+        } catch (IllegalArgumentException | IndexOutOfBoundsException | BufferUnderflowException e) {
+            throw new IOException("corrupt binary loop: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Walks the notes in start order, decoding each column in place.
+     */
+    public final class Cursor {
+        private int index = -1;
+        private int startPosition = startColumn;
+        private int durationPosition = durationColumn;
+        private long startTick;
+        private double startBeat;
+        private double durationBeats;
+
+        private Cursor() {
+        }
+
+        /** Moves to the next note. @return false after the last one */
+        public boolean next() {
+            if (index + 1 >= noteCount) {
+                index = noteCount;
+                return false;
+            }
+            index++;
+            if (ticksPerBeat == 0) {
+                startBeat = data.getDouble(startPosition);
+                durationBeats = data.getDouble(durationPosition);
+                startPosition += Double.BYTES;
+                durationPosition += Double.BYTES;
+            } else {
+                startTick += readVarint(true);
+                startBeat = (double) startTick / ticksPerBeat;
+                durationBeats = (double) readVarint(false) / ticksPerBeat;
+            }
+            return true;
+        }
+
+        public double getStartBeat() {
+            return startBeat;
+        }
+
+        public double getDurationBeats() {
+            return durationBeats;
+        }
+
+        public int getPitch() {
+            return data.get(pitchColumn + index) & 0xFF;
+        }
+
+        public int getVelocity() {
+            return data.get(velocityColumn + index) & 0xFF;
+        }
+
+        private long readVarint(boolean starts) {
+            int position = starts ? startPosition : durationPosition;
+            long value = 0;
+            int shift = 0;
+            int b;
+            do {
+                if (shift > 63) {
+                    throw new IndexOutOfBoundsException("varint too long at byte " + position);
+                }
+                b = data.get(position++);
+                value |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            if (starts) {
+                startPosition = position;
+            } else {
+                durationPosition = position;
+            }
+            return value;
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package view;
+
+/**
+ * Listener for the Undo and Redo controls.
+ */
+public interface HistoryListener {
+
+    /**
+     * User requested to take back the last edit.
+     */
+    void onUndoRequested();
+
+    /**
+     * User requested to make the last undone edit again.
+     */
+    void onRedoRequested();
+}
@@ -4,10 +4,16 @@ import controller.AppController;
 import controller.engine.AudioEngine;
 import model.Loop;
 import model.Measures;
+import model.persistence.LoopDedupStorage;
+import model.persistence.LoopJournal;
 import model.persistence.LoopJsonStorage;
 import model.persistence.LoopStorage;
 
 import javax.swing.*;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+import java.io.IOException;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 
 public class Main {
@@ -17,12 +23,64 @@ public class Main {
             MainView mainView = new MainView();
             AudioEngine audioEngine = new AudioEngine();
 
-            Loop loop = new Loop(new Measures(4));
-            // Composition root: choose the persistence implementation here
-            LoopStorage loopStorage = new LoopJsonStorage(Paths.get("loops"));
+            // Picks up where the last session left off if it crashed; a clean exit starts fresh
+            Path autosaveDirectory = Paths.get("loops", ".autosave");
+            Loop loop = recoverAutosave(autosaveDirectory);
+            LoopJournal autosave = startAutosave(autosaveDirectory, loop);
+            if (autosave != null) {
+                mainView.addWindowListener(new WindowAdapter() {
+                    @Override
+                    public void windowClosing(WindowEvent e) {
+                        closeAutosave(autosave);
+                    }
+                });
+            }
+            // Composition root: choose the persistence implementation here.
+            LoopStorage loopStorage = createLoopStorage();
 
             AppController controller = new AppController(mainView, audioEngine, loop, loopStorage);
             controller.startApplication();
         });
     }
+
+    /**
+     * Plain JSON files in loops/, which the library, migrator and batch renderer read.
+     * -Dloopsketch.dedup=true stores content-addressed instead, so an unchanged loop is
+     * not written again; that store lives in the hidden loops/.dedup, which they skip.
+     */
+    private static LoopStorage createLoopStorage() {
+        if (Boolean.getBoolean("loopsketch.dedup")) {
+            return new LoopDedupStorage(Paths.get("loops", ".dedup"));
+        }
+        return new LoopJsonStorage(Paths.get("loops"));
+    }
+
+    private static Loop recoverAutosave(Path directory) {
+        try {
+            Loop recovered = LoopJournal.recoverLatest(directory);
+            if (recovered != null) {
+                return recovered;
+            }
+        } catch (IOException e) {
+            System.err.println("Main: could not read autosave: " + e.getMessage());
+        }
+        return new Loop(new Measures(4));
+    }
+
+    private static LoopJournal startAutosave(Path directory, Loop loop) {
+        try {
+            return LoopJournal.start(directory, loop);
+        } catch (IOException e) {
+            System.err.println("Main: autosave disabled: " + e.getMessage());
+            return null;
+        }
+    }
+
+    private static void closeAutosave(LoopJournal autosave) {
+        try {
+            autosave.close();
+        } catch (IOException e) {
+            System.err.println("Main: could not close autosave: " + e.getMessage());
+        }
+    }
 }
@@ -8,6 +8,7 @@ import java.awt.*;
 public class MainView extends JFrame {
 
     private JLabel statusLabel;
+    private JLabel timingLabel;
     private PianoRollView pianoRollView;
     private Loop currentLoop;
 
@@ -15,8 +16,10 @@ public class MainView extends JFrame {
     private PianoRollListener pianoRollListener;
     private TempoListener tempoListener;
     private SaveLoopListener saveLoopListener;
+    private HistoryListener historyListener;
 
     private JTextField tempoField;
+    private JTextField rampBeatsField;
 
     public MainView() {
         super("LoopSketch");
@@ -37,8 +40,13 @@ public class MainView extends JFrame {
         statusLabel = new JLabel("Initializing audio...", SwingConstants.CENTER);
         statusLabel.setFont(statusLabel.getFont().deriveFont(Font.PLAIN, 14f));
 
+        // Sequencer timing summary, refreshed by the controller while playing
+        timingLabel = new JLabel(" ", SwingConstants.CENTER);
+        timingLabel.setFont(timingLabel.getFont().deriveFont(Font.PLAIN, 11f));
+
         header.add(titleLabel, BorderLayout.NORTH);
-        header.add(statusLabel, BorderLayout.SOUTH);
+        header.add(statusLabel, BorderLayout.CENTER);
+        header.add(timingLabel, BorderLayout.SOUTH);
 
         add(header, BorderLayout.NORTH);
 
@@ -54,6 +62,8 @@ public class MainView extends JFrame {
         JButton playButton = new JButton("Play");
         JButton pauseButton = new JButton("Pause");
         JButton saveButton = new JButton("Save Loop");
+        JButton undoButton = new JButton("Undo");
+        JButton redoButton = new JButton("Redo");
 
         playButton.addActionListener(e -> {
             if (transportListener != null) {
@@ -73,9 +83,23 @@ public class MainView extends JFrame {
             }
         });
 
+        undoButton.addActionListener(e -> {
+            if (historyListener != null) {
+                historyListener.onUndoRequested();
+            }
+        });
+
+        redoButton.addActionListener(e -> {
+            if (historyListener != null) {
+                historyListener.onRedoRequested();
+            }
+        });
+
         transportPanel.add(playButton);
         transportPanel.add(pauseButton);
         transportPanel.add(saveButton);
+        transportPanel.add(undoButton);
+        transportPanel.add(redoButton);
 
         bottomPanel.add(transportPanel, BorderLayout.WEST);
 
@@ -84,16 +108,27 @@ public class MainView extends JFrame {
         JLabel tempoLabel = new JLabel("Tempo (BPM):");
         tempoField = new JTextField(5);
 
+        rampBeatsField = new JTextField(3);
+        rampBeatsField.setToolTipText("Leave empty to change tempo instantly");
+
         JButton setTempoButton = new JButton("Set");
         setTempoButton.addActionListener(e -> {
             if (tempoListener != null) {
                 String text = tempoField.getText();
-                tempoListener.onTempoChangeRequested(text);
+                String beatsText = rampBeatsField.getText();
+                if (beatsText.isBlank()) {
+                    tempoListener.onTempoChangeRequested(text);
+                } else {
+                    tempoListener.onTempoRampRequested(text, beatsText);
+                }
             }
         });
 
         tempoPanel.add(tempoLabel);
         tempoPanel.add(tempoField);
+        tempoPanel.add(new JLabel("over"));
+        tempoPanel.add(rampBeatsField);
+        tempoPanel.add(new JLabel("beats"));
         tempoPanel.add(setTempoButton);
 
         bottomPanel.add(tempoPanel, BorderLayout.EAST);
@@ -147,6 +182,10 @@ public class MainView extends JFrame {
         this.saveLoopListener = saveLoopListener;
     }
 
+    public void setHistoryListener(HistoryListener historyListener) {
+        this.historyListener = historyListener;
+    }
+
     public void refreshPianoRoll() {
         pianoRollView.repaint();
     }
@@ -155,6 +194,13 @@ public class MainView extends JFrame {
         statusLabel.setText(message);
     }
 
+    /**
+     * Shows a one-line summary of playback timing accuracy under the status message.
+     */
+    public void setTimingSummary(String summary) {
+        timingLabel.setText(summary == null || summary.isEmpty() ? " " : summary);
+    }
+
     /**
      * Updates the tempo text field to show the current BPM.
      */
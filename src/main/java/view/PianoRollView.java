@@ -1,7 +1,6 @@
 package view;
 
 import model.Loop;
-import model.LoopNote;
 
 import javax.swing.*;
 import java.awt.*;
@@ -21,6 +20,8 @@ public class PianoRollView extends JPanel {
     private static final int PADDING_RIGHT = 20;
     private static final int PADDING_TOP = 20;
     private static final int PADDING_BOTTOM = 30;
+    /** Notes are drawn at least this many pixels wide and high. */
+    private static final int MIN_NOTE_SIZE = 4;
 
     public PianoRollView() {
         setBackground(Color.DARK_GRAY);
@@ -132,7 +133,7 @@ public class PianoRollView extends JPanel {
                            int gridWidth, int gridHeight,
                            int measures) {
 
-        if (loop.getNotes().isEmpty()) {
+        if (loop.getNoteCount() == 0) {
             return;
         }
 
@@ -140,41 +141,53 @@ public class PianoRollView extends JPanel {
         double beatWidth = (double) gridWidth / totalBeats;
         double rowHeight = (double) gridHeight / numPitches;
 
-        for (LoopNote note : loop.getNotes()) {
-            Rectangle rect = computeNoteRect(note, gridX, gridY, gridWidth, gridHeight,
-                    totalBeats, beatWidth, rowHeight);
+        // Only the notes reaching into the area being repainted
+        double fromBeat = Double.NEGATIVE_INFINITY;
+        double toBeat = Double.POSITIVE_INFINITY;
+        Rectangle clip = g2.getClipBounds();
+        if (clip != null && beatWidth > 0) {
+            fromBeat = pixelToBeat(clip.x - MIN_NOTE_SIZE - 1, gridX, beatWidth);
+            toBeat = pixelToBeat(clip.x + clip.width + 1, gridX, beatWidth);
+        }
+
+        Color fill = new Color(0, 180, 255);
+        Color outline = new Color(0, 80, 140);
+        BasicStroke stroke = new BasicStroke(1.2f);
+        loop.visitNotes(fromBeat, toBeat, (id, pitch, startBeat, durationBeats, velocity) -> {
+            Rectangle rect = computeNoteRect(pitch, startBeat, durationBeats, gridX, gridY,
+                    gridWidth, gridHeight, totalBeats, beatWidth, rowHeight);
 
-            g2.setColor(new Color(0, 180, 255));
+            g2.setColor(fill);
             g2.fillRoundRect(rect.x, rect.y, rect.width, rect.height, 6, 6);
 
-            g2.setColor(new Color(0, 80, 140));
-            g2.setStroke(new BasicStroke(1.2f));
+            g2.setColor(outline);
+            g2.setStroke(stroke);
             g2.drawRoundRect(rect.x, rect.y, rect.width, rect.height, 6, 6);
-        }
+        });
     }
 
-    private Rectangle computeNoteRect(LoopNote note,
+    private static double pixelToBeat(int x, int gridX, double beatWidth) {
+        return (x - gridX) / beatWidth;
+    }
+
+    private Rectangle computeNoteRect(int pitch, double startBeat, double durationBeats,
                                       int gridX, int gridY,
                                       int gridWidth, int gridHeight,
                                       int totalBeats, double beatWidth, double rowHeight) {
 
-        double startBeat = note.getStartBeat().getValue();
-        double durationBeats = note.getDurationBeats().getValue();
-        int pitch = note.getPitch().getMidiNumber();
-
         int pitchIndex = Math.floorMod(pitch, numPitches);
 
         int x = gridX + (int) Math.round(startBeat * beatWidth);
-        int w = (int) Math.max(4, Math.round(durationBeats * beatWidth));
+        int w = (int) Math.max(MIN_NOTE_SIZE, Math.round(durationBeats * beatWidth));
 
         int rowFromTop = (numPitches - 1) - pitchIndex;
         int y = gridY + (int) Math.round(rowFromTop * rowHeight);
-        int h = (int) Math.max(4, Math.round(rowHeight) - 2);
+        int h = (int) Math.max(MIN_NOTE_SIZE, Math.round(rowHeight) - 2);
 
         return new Rectangle(x, y, w, h);
     }
 
-    private void handleClick(int mouseX, int mouseY) {
+    void handleClick(int mouseX, int mouseY) {
         if (listener == null) {
             return;
         }
@@ -199,16 +212,23 @@ public class PianoRollView extends JPanel {
         double beatWidth = (double) gridWidth / totalBeats;
         double rowHeight = (double) gridHeight / numPitches;
 
-        // 1) First, see if the click hit an existing note
+        // 1) First, see if the click hit an existing note; only notes around the
+        //    click's beat can
         if (loop != null) {
-            for (LoopNote note : loop.getNotes()) {
-                Rectangle rect = computeNoteRect(note, gridX, gridY,
-                        gridWidth, gridHeight,
-                        totalBeats, beatWidth, rowHeight);
-                if (rect.contains(mouseX, mouseY)) {
-                    listener.onNoteClicked(note);
-                    return; // do not treat as empty cell
-                }
+            int[] hit = {-1};
+            loop.visitNotes(pixelToBeat(mouseX - MIN_NOTE_SIZE - 1, gridX, beatWidth),
+                    pixelToBeat(mouseX + 1, gridX, beatWidth),
+                    (id, pitch, startBeat, durationBeats, velocity) -> {
+                        Rectangle rect = computeNoteRect(pitch, startBeat, durationBeats, gridX, gridY,
+                                gridWidth, gridHeight,
+                                totalBeats, beatWidth, rowHeight);
+                        if (hit[0] < 0 && rect.contains(mouseX, mouseY)) {
+                            hit[0] = id;
+                        }
+                    });
+            if (hit[0] >= 0) {
+                listener.onNoteClicked(loop.getNoteById(hit[0]));
+                return; // do not treat as empty cell
             }
         }
 
@@ -11,4 +11,12 @@ public interface TempoListener {
      * @param bpmText the raw text entered by the user (e.g. "120")
      */
     void onTempoChangeRequested(String bpmText);
+
+    /**
+     * Called when the user requests a gradual tempo change via the UI.
+     *
+     * @param bpmText   the raw target tempo entered by the user (e.g. "140")
+     * @param beatsText the raw ramp length in beats (e.g. "8")
+     */
+    void onTempoRampRequested(String bpmText, String beatsText);
 }
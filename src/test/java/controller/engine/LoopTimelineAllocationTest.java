@@ -0,0 +1,117 @@
+package controller.engine;
+
+import com.sun.management.ThreadMXBean;
+import model.Loop;
+import model.Measures;
+import model.Pitch;
+import model.Tempo;
+import model.Velocity;
+import org.junit.jupiter.api.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * The playback thread walks the compiled timeline and sends every event to the engine,
+ * so its loop must not allocate: garbage made there turns into GC pauses in the audio.
+ * The real playback loop runs against an engine that only counts events; the playback
+ * thread's own allocation counter is read over several passes of the loop, across an
+ * edit published mid-pass.
+ */
+class LoopTimelineAllocationTest {
+
+    /** One beat per measure at 300 BPM: a pass of the loop takes 200 ms. */
+    private static final int BEATS_PER_MEASURE = 1;
+    private static final long WARM_UP_MS = 1_500;
+    private static final long MEASURE_MS = 1_000;
+
+    /** Counts events instead of playing them, with a clock for LOOKAHEAD mode. */
+    private static final class CountingEngine extends AudioEngine {
+        final AtomicLong events = new AtomicLong();
+
+        @Override
+        public void noteOn(int track, Pitch pitch, Velocity velocity, long timestampMicros) {
+            events.incrementAndGet();
+        }
+
+        @Override
+        public void noteOff(int track, Pitch pitch, long timestampMicros) {
+            events.incrementAndGet();
+        }
+
+        @Override
+        public long getMicrosecondPosition() {
+            return System.nanoTime() / 1000;
+        }
+    }
+
+    @Test
+    void directPlaybackDoesNotAllocate() throws InterruptedException {
+        assertPlaybackDoesNotAllocate(SchedulingMode.DIRECT);
+    }
+
+    @Test
+    void lookaheadPlaybackDoesNotAllocate() throws InterruptedException {
+        assertPlaybackDoesNotAllocate(SchedulingMode.LOOKAHEAD);
+    }
+
+    private static void assertPlaybackDoesNotAllocate(SchedulingMode mode) throws InterruptedException {
+        ThreadMXBean threads = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+        assumeTrue(threads.isThreadAllocatedMemorySupported(), "allocation counting is not supported");
+        threads.setThreadAllocatedMemoryEnabled(true);
+
+        CountingEngine engine = new CountingEngine();
+        LoopSequencer sequencer = new LoopSequencer(engine, BEATS_PER_MEASURE);
+        sequencer.setSchedulingMode(mode);
+        Loop loop = randomLoop();
+        sequencer.play(loop);
+        Thread playback = playbackThread();
+        try {
+            assertNotNull(playback, "playback thread not found");
+            Thread.sleep(WARM_UP_MS);
+
+            long boundaries = sequencer.getLoopBoundaryCount();
+            long events = engine.events.get();
+            long before = threads.getThreadAllocatedBytes(playback.getId());
+            Thread.sleep(MEASURE_MS / 2);
+            loop.addNote(60, 0.5, 0.25, 100);
+            sequencer.publish(loop);
+            Thread.sleep(MEASURE_MS / 2);
+            long allocated = threads.getThreadAllocatedBytes(playback.getId()) - before;
+
+            assertTrue(sequencer.getLoopBoundaryCount() - boundaries >= 3, "loop passes while measuring");
+            assertTrue(engine.events.get() > events, "events played while measuring");
+            assertEquals(0, allocated, "bytes allocated by the " + mode + " playback thread");
+        } finally {
+            sequencer.pause();
+            if (playback != null) {
+                playback.join(1_000);
+            }
+        }
+    }
+
+    private static Thread playbackThread() {
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().equals("LoopSequencer-Playback") && thread.isAlive()) {
+                return thread;
+            }
+        }
+        return null;
+    }
+
+    private static Loop randomLoop() {
+        Loop loop = new Loop(new Measures(1));
+        loop.setTempo(new Tempo(Tempo.MAX_BPM));
+        Random random = new Random(42);
+        for (int i = 0; i < 64; i++) {
+            loop.addNote(random.nextInt(128), random.nextInt(16) / 16.0, 1 / 32.0, 1 + random.nextInt(127));
+        }
+        return loop;
+    }
+}